@@ -0,0 +1,32 @@
+import org.rioproject.config.Constants
+
+/*
+ * Deploys three Zookeeper services, each running an embedded ZooKeeper quorum peer. Together they
+ * form a co-located ensemble, service instance n is quorum member n and serves clients on port 2180+n.
+ */
+deployment(name:'Zookeeper') {
+    groups System.getProperty(Constants.GROUPS_PROPERTY_NAME,
+                              System.getProperty('user.name'))
+
+    artifact id:'service', 'org.rioproject.zookeeper:zookeeper-service:1.0-SNAPSHOT'
+    artifact id:'service-dl', 'org.rioproject.zookeeper:zookeeper-api:1.0-SNAPSHOT'
+
+    service(name: 'Zookeeper') {
+        interfaces {
+            classes 'org.rioproject.zookeeper.api.Zookeeper'
+            artifact ref:'service-dl'
+        }
+        implementation(class:'org.rioproject.zookeeper.service.ZookeeperImpl') {
+            artifact ref:'service'
+        }
+        configuration '''
+            org.rioproject.zookeeper {
+                embedded = true;
+                clientPort = 2181;
+                servers = new String[]{"127.0.0.1:2888:3888", "127.0.0.1:2889:3889", "127.0.0.1:2890:3890"};
+                purgeInterval = 1;
+            }
+        '''
+        maintain 3
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.api;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The members of a group, as known to the {@link Zookeeper} service.
+ *
+ * @author Dennis Reedy
+ */
+public class Membership implements Serializable {
+    static final long serialVersionUID = 1L;
+    private final String group;
+    private final long version;
+    private final List<String> members;
+    private final boolean stale;
+
+    public Membership(final String group, final long version, final List<String> members) {
+        this(group, version, members, false);
+    }
+
+    /**
+     * Create a {@code Membership}.
+     *
+     * @param group The name of the group, must not be {@code null}.
+     * @param version The version of the membership.
+     * @param members The members of the group, must not be {@code null}.
+     * @param stale Whether the membership is a last known view that has not been confirmed with the ensemble.
+     */
+    public Membership(final String group, final long version, final List<String> members, final boolean stale) {
+        if(group==null)
+            throw new IllegalArgumentException("group must not be null");
+        if(members==null)
+            throw new IllegalArgumentException("members must not be null");
+        this.group = group;
+        this.version = version;
+        this.members = Collections.unmodifiableList(members);
+        this.stale = stale;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Get the version of the membership. The version is opaque, it changes whenever the membership
+     * changes and can be passed to {@link Zookeeper#getMembershipChanges(String, long)}.
+     *
+     * @return The version of the membership, -1 if the group does not exist.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the members of the group, sorted by name.
+     *
+     * @return An unmodifiable {@code List} of member names, never {@code null}.
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Determine whether the membership is stale. A stale membership is the last known view, served
+     * while the service is not connected to the ensemble or before it has read the group.
+     *
+     * @return {@code true} if the membership has not been confirmed with the ensemble.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, version: %d, members: %d%s", group, version, members.size(), stale?" (stale)":"");
+    }
+}
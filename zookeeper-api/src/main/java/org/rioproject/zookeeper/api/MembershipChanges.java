@@ -0,0 +1,98 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.api;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes to the members of a group between two versions. To bring a previously obtained
+ * membership up to date remove the {@link #getRemoved() removed} members, then add the
+ * {@link #getAdded() added} members.
+ *
+ * <p>If the service no longer has the history back to the requested version, the changes are a
+ * {@link #isReset() reset}: {@link #getAdded()} returns the complete membership and the previous
+ * membership must be discarded.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipChanges implements Serializable {
+    static final long serialVersionUID = 1L;
+    private final String group;
+    private final long fromVersion;
+    private final long version;
+    private final List<String> added;
+    private final List<String> removed;
+    private final boolean reset;
+
+    public MembershipChanges(final String group,
+                             final long fromVersion,
+                             final long version,
+                             final List<String> added,
+                             final List<String> removed,
+                             final boolean reset) {
+        if(group==null)
+            throw new IllegalArgumentException("group must not be null");
+        if(added==null)
+            throw new IllegalArgumentException("added must not be null");
+        if(removed==null)
+            throw new IllegalArgumentException("removed must not be null");
+        this.group = group;
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.reset = reset;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Get the version the changes were requested from.
+     */
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Get the version of the membership once the changes have been applied.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * Determine whether the membership has changed since the requested version.
+     */
+    public boolean hasChanges() {
+        return reset || !added.isEmpty() || !removed.isEmpty();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.api;
+
+import java.util.List;
+
+/**
+ * A page of the members of a group. Pages are taken from the sorted member list; if the
+ * {@link #getVersion() version} changes between pages the membership changed while paging.
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipPage extends Membership {
+    static final long serialVersionUID = 1L;
+    private final int offset;
+    private final int total;
+
+    public MembershipPage(final String group,
+                          final long version,
+                          final List<String> members,
+                          final int offset,
+                          final int total) {
+        super(group, version, members);
+        this.offset = offset;
+        this.total = total;
+    }
+
+    /**
+     * Get the index of the first member in this page.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of members in the group.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Determine whether there are members after this page.
+     */
+    public boolean hasMore() {
+        return offset+getMembers().size()<total;
+    }
+}
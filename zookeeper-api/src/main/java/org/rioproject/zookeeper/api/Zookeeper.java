@@ -1,10 +1,71 @@
 package org.rioproject.zookeeper.api;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
 /**
- * Zookeeper service interface
+ * Zookeeper service interface. Membership queries are served from the service's watch-maintained
+ * cache, clients do not need their own ZooKeeper session to track group membership.
  *
  * @author Generated by the Rio Archetype
  */
 public interface Zookeeper {
 
+    /**
+     * Get the members of a group.
+     *
+     * @param group The name of the group, must not be {@code null}.
+     *
+     * @return The {@code Membership} of the group. If the group does not exist the membership is
+     * empty, with a version of -1.
+     *
+     * @throws IOException if the membership cannot be obtained, or the service cannot be reached.
+     */
+    Membership getMembership(String group) throws IOException;
+
+    /**
+     * Get the members of many groups.
+     *
+     * @param groups The names of the groups, must not be {@code null}.
+     *
+     * @return A {@code Map} of group names to their {@code Membership}.
+     *
+     * @throws IOException if the membership cannot be obtained, or the service cannot be reached.
+     */
+    Map<String, Membership> getMemberships(Collection<String> groups) throws IOException;
+
+    /**
+     * Get a page of the members of a group, from the members sorted by name.
+     *
+     * @param group The name of the group, must not be {@code null}.
+     * @param offset The index of the first member to return.
+     * @param limit The maximum number of members to return.
+     *
+     * @return A {@code MembershipPage}.
+     *
+     * @throws IOException if the membership cannot be obtained, or the service cannot be reached.
+     */
+    MembershipPage getMembershipPage(String group, int offset, int limit) throws IOException;
+
+    /**
+     * Get the changes to the members of a group since a version.
+     *
+     * @param group The name of the group, must not be {@code null}.
+     * @param version A version previously returned by this service.
+     *
+     * @return The {@code MembershipChanges} since the version.
+     *
+     * @throws IOException if the membership cannot be obtained, or the service cannot be reached.
+     */
+    MembershipChanges getMembershipChanges(String group, long version) throws IOException;
+
+    /**
+     * Determine whether this instance is the elected coordinator of its deployment.
+     *
+     * @return {@code true} if this instance is the leader.
+     *
+     * @throws IOException if the service cannot be reached.
+     */
+    boolean isLeader() throws IOException;
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.apache.zookeeper.KeeperException;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the in-process ZooKeeper server used by the benchmarks, and provides helpers for
+ * populating groups.
+ *
+ * @author Dennis Reedy
+ */
+final class BenchmarkSupport {
+    static final int SESSION_TIMEOUT = 30*1000;
+    private final ZooKeeperStarter starter = new ZooKeeperStarter();
+    private String hosts;
+
+    void start() throws Exception {
+        starter.start();
+        hosts = "127.0.0.1:"+starter.getPort();
+    }
+
+    void stop() {
+        starter.stop(true);
+    }
+
+    String getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Create a new, unshared client connected to the embedded server.
+     */
+    ZooKeeperClient connect() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        client.connect(hosts, SESSION_TIMEOUT).get();
+        return client;
+    }
+
+    static List<String> names(final String prefix, final int count) {
+        List<String> names = new ArrayList<String>(count);
+        for(int i=0; i<count; i++)
+            names.add(prefix+i);
+        return names;
+    }
+
+    /**
+     * Create the group and join {@code members} members to it, failing if any of them could not be created.
+     */
+    static List<String> populate(final GroupManagement groupManagement,
+                                 final String group,
+                                 final int members) throws Exception {
+        groupManagement.create(group).get();
+        List<String> names = names("member:", members);
+        int failed = 0;
+        for(KeeperException.Code code : groupManagement.joinAll(group, names).values()) {
+            if(!KeeperException.Code.OK.equals(code))
+                failed++;
+        }
+        if(failed>0)
+            throw new IllegalStateException("Unable to join "+failed+" members to "+group);
+        return names;
+    }
+}
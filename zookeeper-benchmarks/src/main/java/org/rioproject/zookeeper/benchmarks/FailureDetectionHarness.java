@@ -0,0 +1,326 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.OperationFuture;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+import org.rioproject.zookeeper.watcher.ZooKeeperServiceWatcher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from killing a member to {@link FaultDetectionListener#serviceFailure} being
+ * invoked, for many simulated members running against an in-process server.
+ *
+ * <p>Members are spread over a number of sessions and killed by closing their sessions, deleting their
+ * nodes, or expiring their sessions. The harness reports p50/p99/max detection latency, and the CPU
+ * time and heap used by the watcher (its ZooKeeper threads and the dispatcher threads).</p>
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.rioproject.zookeeper.benchmarks.FailureDetectionHarness \
+ *     -members 10000 -sessions 500 -kill close -mode GROUP
+ * </pre>
+ *
+ * @author Dennis Reedy
+ */
+public class FailureDetectionHarness {
+    enum Kill { CLOSE, DELETE, EXPIRE }
+    private static final String GROUP = "harness";
+    private static final String WATCHER_THREAD = "fdh-watcher";
+    private int members = 10000;
+    private int sessions = 500;
+    private Kill kill = Kill.CLOSE;
+    private ZooKeeperServiceWatcher.Mode mode = ZooKeeperServiceWatcher.Mode.MEMBER;
+    private long timeout = TimeUnit.MINUTES.toMillis(5);
+    private final BenchmarkSupport support = new BenchmarkSupport();
+    private final List<Session> memberSessions = new ArrayList<Session>();
+    private final Map<String, Long> killed = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> detected = new ConcurrentHashMap<String, Long>();
+
+    public static void main(String[] args) throws Exception {
+        FailureDetectionHarness harness = new FailureDetectionHarness();
+        for(int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if(i==args.length-1)
+                usage("Missing value for "+arg);
+            String value = args[++i];
+            if(arg.equals("-members"))
+                harness.members = Integer.parseInt(value);
+            else if(arg.equals("-sessions"))
+                harness.sessions = Integer.parseInt(value);
+            else if(arg.equals("-kill"))
+                harness.kill = Kill.valueOf(value.toUpperCase());
+            else if(arg.equals("-mode"))
+                harness.mode = ZooKeeperServiceWatcher.Mode.valueOf(value.toUpperCase());
+            else if(arg.equals("-timeout"))
+                harness.timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+            else
+                usage("Unknown option "+arg);
+        }
+        if(harness.members<1 || harness.sessions<1)
+            usage("members and sessions must be greater than zero");
+        harness.sessions = Math.min(harness.sessions, harness.members);
+        harness.run();
+        System.exit(0);
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: FailureDetectionHarness [-members n] [-sessions n] [-kill close|delete|expire] "+
+                           "[-mode member|group] [-timeout seconds]");
+        System.exit(1);
+    }
+
+    void run() throws Exception {
+        support.start();
+        try {
+            System.out.println(String.format("Starting %d members over %d sessions, kill=%s, mode=%s",
+                                             members, sessions, kill, mode));
+            ZooKeeperClient admin = support.connect();
+            GroupManagement groupManagement = new GroupManagement(admin.getZooKeeper());
+            groupManagement.create(GROUP).get();
+            startMembers();
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long heapBefore = usedHeap(memory);
+            long cpuBefore = watcherCpuTime(threads);
+
+            final CountDownLatch failures = new CountDownLatch(members);
+            FaultDetectionListener<String> listener = new FaultDetectionListener<String>() {
+                public void serviceFailure(Object service, String path) {
+                    if(detected.put(path, System.nanoTime())==null)
+                        failures.countDown();
+                }
+            };
+            ZooKeeperClient watcherClient = connectWatcher();
+            ZooKeeperServiceWatcher watcher = new ZooKeeperServiceWatcher(watcherClient, mode);
+            long registerStart = System.nanoTime();
+            for(Session session : memberSessions) {
+                for(String member : session.members)
+                    watcher.addService(path(member), listener);
+            }
+            /* Registration is asynchronous, a synchronous round trip on the same session waits for it */
+            watcherClient.getZooKeeper().exists("/"+GROUP, false);
+            long registerTime = System.nanoTime()-registerStart;
+            long heapAfter = usedHeap(memory);
+
+            long killStart = System.nanoTime();
+            killMembers(groupManagement);
+            long killTime = System.nanoTime()-killStart;
+            boolean complete = failures.await(timeout, TimeUnit.MILLISECONDS);
+            long cpuAfter = watcherCpuTime(threads);
+
+            report(complete, registerTime, killTime, heapAfter-heapBefore, cpuAfter-cpuBefore);
+            watcher.close();
+            watcherClient.close();
+            admin.close();
+        } finally {
+            for(Session session : memberSessions)
+                session.client.close();
+            support.stop();
+        }
+    }
+
+    private void startMembers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Session>> started = new ArrayList<Future<Session>>();
+            for(int i=0; i<sessions; i++) {
+                final List<String> names = new ArrayList<String>();
+                for(int j=i; j<members; j+=sessions)
+                    names.add(String.format("member:%d", j));
+                started.add(executor.submit(new Callable<Session>() {
+                    public Session call() throws Exception {
+                        Session session = new Session(support.connect(), names);
+                        GroupManagement groupManagement = new GroupManagement(session.client.getZooKeeper());
+                        groupManagement.joinAll(GROUP, names);
+                        return session;
+                    }
+                }));
+            }
+            for(Future<Session> future : started)
+                memberSessions.add(future.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /*
+     * The watcher's ZooKeeper threads are named after the thread that created the ZooKeeper instance,
+     * connect from a named thread so their CPU time can be attributed to the watcher
+     */
+    private ZooKeeperClient connectWatcher() throws Exception {
+        final ZooKeeperClient client = new ZooKeeperClient();
+        final OperationFuture<ZooKeeper> connected = new OperationFuture<ZooKeeper>();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    connected.set(client.connect(support.getHosts(), BenchmarkSupport.SESSION_TIMEOUT).get());
+                } catch(Exception e) {
+                    connected.setException(e);
+                }
+            }
+        }, WATCHER_THREAD);
+        thread.start();
+        connected.get();
+        return client;
+    }
+
+    private void killMembers(final GroupManagement groupManagement) throws Exception {
+        switch(kill) {
+            case CLOSE:
+                for(Session session : memberSessions) {
+                    markKilled(session);
+                    session.client.close();
+                }
+                break;
+            case DELETE:
+                List<OperationFuture<String>> deletes = new ArrayList<OperationFuture<String>>();
+                for(Session session : memberSessions) {
+                    for(String member : session.members) {
+                        killed.put(path(member), System.nanoTime());
+                        deletes.add(groupManagement.delete(GROUP, member));
+                    }
+                }
+                for(OperationFuture<String> delete : deletes)
+                    delete.get();
+                break;
+            case EXPIRE:
+                for(Session session : memberSessions) {
+                    markKilled(session);
+                    expire(session.client.getZooKeeper());
+                }
+                break;
+        }
+    }
+
+    private void markKilled(final Session session) {
+        long now = System.nanoTime();
+        for(String member : session.members)
+            killed.put(path(member), now);
+    }
+
+    /*
+     * Expire a session by connecting with its id and password, then closing the duplicate
+     */
+    private void expire(final ZooKeeper zooKeeper) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(support.getHosts(), BenchmarkSupport.SESSION_TIMEOUT, new Watcher() {
+            public void process(WatchedEvent event) {
+                if(event.getState()==Event.KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        }, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+        if(!connected.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Unable to connect duplicate session");
+        duplicate.close();
+    }
+
+    private void report(final boolean complete,
+                        final long registerTime,
+                        final long killTime,
+                        final long heap,
+                        final long cpu) {
+        long[] latencies = new long[detected.size()];
+        int n = 0;
+        for(Map.Entry<String, Long> entry : detected.entrySet()) {
+            Long killedAt = killed.get(entry.getKey());
+            if(killedAt!=null)
+                latencies[n++] = entry.getValue()-killedAt;
+        }
+        latencies = Arrays.copyOf(latencies, n);
+        Arrays.sort(latencies);
+        System.out.println(String.format("Registered %d services in %.1f ms, killed in %.1f ms",
+                                         members, millis(registerTime), millis(killTime)));
+        if(!complete)
+            System.out.println(String.format("WARNING: only %d of %d failures detected", detected.size(), members));
+        System.out.println(String.format("Detection latency (ms): p50=%.2f p99=%.2f max=%.2f (n=%d)",
+                                         millis(percentile(latencies, 50)),
+                                         millis(percentile(latencies, 99)),
+                                         millis(n==0?0:latencies[n-1]),
+                                         n));
+        System.out.println(String.format("Watcher CPU time: %.1f ms, heap: %.1f MB (%.0f bytes/service)",
+                                         millis(cpu), heap/(1024d*1024), (double)heap/members));
+    }
+
+    static long percentile(final long[] sorted, final double percentile) {
+        if(sorted.length==0)
+            return 0;
+        int rank = (int)Math.ceil(percentile/100*sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank)-1)];
+    }
+
+    private long watcherCpuTime(final ThreadMXBean threads) {
+        long total = 0;
+        for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if(info==null)
+                continue;
+            String name = info.getThreadName();
+            if(name.startsWith(WATCHER_THREAD) || name.startsWith("FaultDetectionDispatcher-")) {
+                long cpu = threads.getThreadCpuTime(info.getThreadId());
+                if(cpu>0)
+                    total += cpu;
+            }
+        }
+        return total;
+    }
+
+    private static long usedHeap(final MemoryMXBean memory) throws InterruptedException {
+        for(int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static double millis(final long nanos) {
+        return nanos/1000000d;
+    }
+
+    private static String path(final String member) {
+        return String.format("/%s/%s", GROUP, member);
+    }
+
+    static class Session {
+        final ZooKeeperClient client;
+        final List<String> members;
+
+        Session(final ZooKeeperClient client, final List<String> members) {
+            this.client = client;
+            this.members = members;
+        }
+    }
+}
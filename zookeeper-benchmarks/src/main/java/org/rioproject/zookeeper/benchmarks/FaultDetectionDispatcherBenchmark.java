@@ -0,0 +1,67 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.watcher.FaultDetectionDispatcher;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of handing failure notifications to the {@link FaultDetectionDispatcher}, spread over
+ * 100, 10k and 100k distinct services. Measures the cost paid on the ZooKeeper event thread.
+ *
+ * @author Dennis Reedy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class FaultDetectionDispatcherBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int members;
+
+    private FaultDetectionDispatcher dispatcher;
+    private FaultDetectionListener<String> listener;
+    private String[] paths;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dispatcher = new FaultDetectionDispatcher();
+        listener = new FaultDetectionListener<String>() {
+            public void serviceFailure(Object service, String path) {
+            }
+        };
+        List<String> names = BenchmarkSupport.names("/services/member:", members);
+        paths = names.toArray(new String[names.size()]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        dispatcher.dispatch(listener, paths[next]);
+        next = (next+1)%paths.length;
+    }
+}
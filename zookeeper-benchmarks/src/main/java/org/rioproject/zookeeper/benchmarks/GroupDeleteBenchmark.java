@@ -0,0 +1,69 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by {@link GroupManagement#delete(String)} to remove a group of 100, 10k and 100k members.
+ * The group is re-populated before each invocation.
+ *
+ * @author Dennis Reedy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djute.maxbuffer=8388608"})
+public class GroupDeleteBenchmark {
+    private static final String GROUP = "doomed";
+
+    @Param({"100", "10000", "100000"})
+    public int members;
+
+    private final BenchmarkSupport support = new BenchmarkSupport();
+    private ZooKeeperClient client;
+    private GroupManagement groupManagement;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support.start();
+        client = support.connect();
+        groupManagement = new GroupManagement(client.getZooKeeper());
+    }
+
+    @Setup(Level.Invocation)
+    public void populate() throws Exception {
+        BenchmarkSupport.populate(groupManagement, GROUP, members);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(client!=null)
+            client.close();
+        support.stop();
+    }
+
+    @Benchmark
+    public int delete() throws Exception {
+        return groupManagement.delete(GROUP).get();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.GroupMembership;
+import org.rioproject.zookeeper.client.OperationFuture;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link GroupManagement} joins and listings against an embedded server, for groups of
+ * 100, 10k and 100k members. Joins are measured one at a time, pipelined and through the
+ * {@code multi} based {@code joinAll}.
+ *
+ * @author Dennis Reedy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djute.maxbuffer=8388608"})
+public class GroupManagementBenchmark {
+    static final int BATCH = 100;
+    private static final String GROUP = "bench";
+    private static final String JOINS = "joins";
+
+    @Param({"100", "10000", "100000"})
+    public int members;
+
+    private final BenchmarkSupport support = new BenchmarkSupport();
+    private ZooKeeperClient client;
+    private GroupManagement groupManagement;
+    private GroupManagement cachedGroupManagement;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support.start();
+        client = support.connect();
+        groupManagement = new GroupManagement(client.getZooKeeper());
+        BenchmarkSupport.populate(groupManagement, GROUP, members);
+        cachedGroupManagement = new GroupManagement(client.getZooKeeper());
+        GroupMembership membership = cachedGroupManagement.watch(GROUP);
+        while(!membership.isInitialized())
+            Thread.sleep(10);
+    }
+
+    /* Joins accumulate, start each iteration with an empty group so the results are comparable */
+    @Setup(Level.Iteration)
+    public void resetJoins() throws Exception {
+        if(groupManagement.groupExists(JOINS))
+            groupManagement.delete(JOINS).get();
+        groupManagement.create(JOINS).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(client!=null)
+            client.close();
+        support.stop();
+    }
+
+    @Benchmark
+    public List<String> list() throws Exception {
+        return groupManagement.list(GROUP);
+    }
+
+    @Benchmark
+    public List<String> listCached() throws Exception {
+        return cachedGroupManagement.list(GROUP);
+    }
+
+    @Benchmark
+    public String join() throws Exception {
+        return groupManagement.join(JOINS, "member:"+(sequence++)).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int joinPipelined() throws Exception {
+        List<OperationFuture<String>> futures = new ArrayList<OperationFuture<String>>(BATCH);
+        for(int i=0; i<BATCH; i++)
+            futures.add(groupManagement.join(JOINS, "member:"+(sequence++)));
+        for(OperationFuture<String> future : futures)
+            future.get();
+        return futures.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int joinBatch() throws Exception {
+        List<String> names = new ArrayList<String>(BATCH);
+        for(int i=0; i<BATCH; i++)
+            names.add("member:"+(sequence++));
+        return groupManagement.joinAll(JOINS, names).size();
+    }
+}
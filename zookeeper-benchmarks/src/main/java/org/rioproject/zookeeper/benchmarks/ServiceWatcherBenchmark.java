@@ -0,0 +1,141 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.benchmarks;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.*;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+import org.rioproject.zookeeper.watcher.ZooKeeperServiceWatcher;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of registering 100, 10k and 100k services with a {@link ZooKeeperServiceWatcher}, and of
+ * delivering their failure notifications, in both {@code MEMBER} and {@code GROUP} modes.
+ *
+ * <p>Each invocation uses a new session so watches registered by earlier invocations do not
+ * accumulate on the server.</p>
+ *
+ * @author Dennis Reedy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djute.maxbuffer=8388608"})
+public class ServiceWatcherBenchmark {
+    private static final String GROUP = "services";
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    @Param({"100", "10000", "100000"})
+    public int members;
+
+    @Param({"MEMBER", "GROUP"})
+    public ZooKeeperServiceWatcher.Mode mode;
+
+    private final BenchmarkSupport support = new BenchmarkSupport();
+    private ZooKeeperClient client;
+    private GroupManagement groupManagement;
+    private List<String> names;
+    private ZooKeeperClient watcherClient;
+    private ZooKeeperServiceWatcher watcher;
+    private CountingListener listener;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support.start();
+        client = support.connect();
+        groupManagement = new GroupManagement(client.getZooKeeper());
+        names = BenchmarkSupport.populate(groupManagement, GROUP, members);
+    }
+
+    @Setup(Level.Invocation)
+    public void connect() throws Exception {
+        if(!groupManagement.groupExists(GROUP))
+            names = BenchmarkSupport.populate(groupManagement, GROUP, members);
+        watcherClient = support.connect();
+        watcher = new ZooKeeperServiceWatcher(watcherClient.getZooKeeper(), mode);
+        listener = new CountingListener(members);
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() {
+        watcher.close();
+        watcherClient.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(client!=null)
+            client.close();
+        support.stop();
+    }
+
+    /**
+     * Register every member, completing once the watcher's session has processed all registrations.
+     */
+    @Benchmark
+    public void register() throws Exception {
+        for(String name : names)
+            watcher.addService(String.format("/%s/%s", GROUP, name), listener);
+        barrier();
+    }
+
+    /**
+     * Register every member, remove them all and wait until every failure notification has been delivered.
+     */
+    @Benchmark
+    public void detect() throws Exception {
+        for(String name : names)
+            watcher.addService(String.format("/%s/%s", GROUP, name), listener);
+        barrier();
+        groupManagement.delete(GROUP).get();
+        if(!listener.latch.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new IllegalStateException("Only "+(members-listener.latch.getCount())+" of "+members+" failures detected");
+    }
+
+    /*
+     * Callbacks for a session are delivered in order, once the exists callback has run the callbacks of all
+     * earlier registrations have run
+     */
+    private void barrier() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        watcherClient.getZooKeeper().exists("/"+GROUP, false, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                done.countDown();
+            }
+        }, null);
+        done.await();
+    }
+
+    static class CountingListener implements FaultDetectionListener<String> {
+        final CountDownLatch latch;
+
+        CountingListener(final int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        public void serviceFailure(Object service, String path) {
+            latch.countDown();
+        }
+    }
+}
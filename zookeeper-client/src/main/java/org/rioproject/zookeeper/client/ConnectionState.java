@@ -0,0 +1,50 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+/**
+ * The state of a {@link ZooKeeperClient}'s connection to the ensemble.
+ *
+ * @author Dennis Reedy
+ */
+public enum ConnectionState {
+    /**
+     * The first connection to the ensemble has been established.
+     */
+    CONNECTED,
+    /**
+     * The connection to the ensemble has been lost, the session may still be valid. Operations
+     * will fail until the connection is re-established.
+     */
+    SUSPENDED,
+    /**
+     * The session has expired or could not be re-established. Ephemeral nodes and watches
+     * belonging to the session are gone.
+     */
+    LOST,
+    /**
+     * The connection has been re-established after being suspended, or a new session has been
+     * established after the previous one was lost.
+     */
+    RECONNECTED,
+    /**
+     * The connection has been established with a server that has lost contact with the quorum, which
+     * is only done if the client {@link ZooKeeperClient#setCanBeReadOnly(boolean) can be read-only}.
+     * Reads are served, possibly out of date, and writes fail. {@code RECONNECTED} follows once a
+     * server that is part of the quorum has been reached.
+     */
+    READ_ONLY
+}
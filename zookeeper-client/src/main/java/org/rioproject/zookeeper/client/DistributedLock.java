@@ -0,0 +1,203 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A reentrant distributed lock. Waiters are granted the lock in the order they asked for it, and
+ * each waiter watches only the waiter ahead of it, so a release wakes exactly one waiter.
+ *
+ * <p>The blocking methods are reentrant for the calling thread: a thread holding the lock may
+ * acquire it again, and must release it as many times. Threads of the same process contend for the
+ * lock like separate processes do. {@link #acquireAsync()} is not reentrant, each call queues for
+ * the lock and completes with its own {@link Lease}.</p>
+ *
+ * <p>If the session expires the lock is no longer held; {@link #isHeldByCurrentThread()} returns
+ * {@code false} and waiting acquisitions fail with a {@code KeeperException.SessionExpiredException}.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class DistributedLock {
+    static final LockQueue.Policy MUTEX = new LockQueue.Policy() {
+        public List<String> blockers(final List<String> queue, final int index) {
+            return index==0?Collections.<String>emptyList():Collections.singletonList(queue.get(index-1));
+        }
+
+        public boolean announce() {
+            return false;
+        }
+    };
+    private final LockQueue queue;
+    private final String prefix;
+    private final LockQueue.Policy policy;
+    private final ConcurrentMap<Thread, Hold> holds = new ConcurrentHashMap<Thread, Hold>();
+    private DistributedLock excluded;
+
+    /**
+     * Create a {@code DistributedLock}.
+     *
+     * @param client The connected {@code ZooKeeperClient}, must not be {@code null}.
+     * @param path The path of the lock node, must not be {@code null}. The node is created if it does not exist.
+     */
+    public DistributedLock(final ZooKeeperClient client, final String path) {
+        this(new LockQueue(client, path), "lock-", MUTEX);
+    }
+
+    DistributedLock(final LockQueue queue, final String prefix, final LockQueue.Policy policy) {
+        this.queue = queue;
+        this.prefix = prefix;
+        this.policy = policy;
+    }
+
+    /*
+     * A lock the calling thread must not hold while acquiring this one, a read-write lock's other half
+     */
+    void exclude(final DistributedLock excluded) {
+        this.excluded = excluded;
+    }
+
+    /**
+     * Acquire the lock, waiting until it is granted.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws KeeperException if the lock cannot be acquired, for example because the session expired.
+     */
+    public void acquire() throws InterruptedException, KeeperException {
+        if(!tryAcquire(-1, TimeUnit.MILLISECONDS))
+            throw new IllegalStateException("Lock not granted");
+    }
+
+    /**
+     * Acquire the lock, waiting at most the given time.
+     *
+     * @param time The maximum time to wait, a negative value waits until the lock is granted.
+     * @param unit The unit of the {@code time} argument.
+     *
+     * @return {@code true} if the lock was acquired, {@code false} if the time elapsed first.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws KeeperException if the lock cannot be acquired, for example because the session expired.
+     */
+    public boolean tryAcquire(final long time, final TimeUnit unit) throws InterruptedException, KeeperException {
+        Thread thread = Thread.currentThread();
+        Hold hold = holds.get(thread);
+        if(hold!=null && hold.lease.isValid()) {
+            hold.count++;
+            return true;
+        }
+        if(excluded!=null && excluded.isHeldByCurrentThread())
+            throw new IllegalStateException("Cannot acquire the "+prefix+"lock of "+getPath()+
+                                            " while holding the "+excluded.prefix+"lock, waiting would deadlock");
+        Lease lease = await(queue.enqueue(prefix, policy), time, unit);
+        if(lease==null)
+            return false;
+        holds.put(thread, new Hold(lease));
+        return true;
+    }
+
+    /**
+     * Queue for the lock without blocking.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code Lease} once the lock is granted.
+     * The lock is released by releasing the {@code Lease}.
+     */
+    public OperationFuture<Lease> acquireAsync() {
+        return queue.enqueue(prefix, policy).future;
+    }
+
+    /**
+     * Release the lock held by the calling thread. The lock is released once the number of releases
+     * matches the number of acquisitions.
+     *
+     * @throws IllegalMonitorStateException if the calling thread does not hold the lock.
+     */
+    public void release() {
+        Thread thread = Thread.currentThread();
+        Hold hold = holds.get(thread);
+        if(hold==null)
+            throw new IllegalMonitorStateException("The lock is not held by "+thread.getName());
+        if(--hold.count==0) {
+            holds.remove(thread);
+            hold.lease.release();
+        }
+    }
+
+    /**
+     * Determine whether the calling thread holds the lock.
+     */
+    public boolean isHeldByCurrentThread() {
+        Hold hold = holds.get(Thread.currentThread());
+        return hold!=null && hold.lease.isValid();
+    }
+
+    public String getPath() {
+        return queue.getPath();
+    }
+
+    /**
+     * Stop using the lock. Waiting acquisitions are cancelled and the lock is released if held.
+     * Closing either lock of a {@link DistributedReadWriteLock} closes both.
+     */
+    public void close() {
+        holds.clear();
+        queue.close();
+    }
+
+    /**
+     * Wait for an acquisition, giving up after the time has elapsed.
+     *
+     * @return The {@code Lease}, or {@code null} if the time elapsed.
+     */
+    static Lease await(final LockQueue.Acquisition acquisition, final long time, final TimeUnit unit)
+        throws InterruptedException, KeeperException {
+        try {
+            if(time<0)
+                return acquisition.future.get();
+            return acquisition.future.get(time, unit);
+        } catch (TimeoutException e) {
+            acquisition.cancel();
+            return null;
+        } catch (InterruptedException e) {
+            acquisition.cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof KeeperException)
+                throw (KeeperException)e.getCause();
+            throw new IllegalStateException("Unable to acquire "+acquisition, e.getCause());
+        }
+    }
+
+    /**
+     * A thread's hold on the lock, only accessed by that thread.
+     */
+    static class Hold {
+        final Lease lease;
+        int count = 1;
+
+        Hold(final Lease lease) {
+            this.lease = lease;
+        }
+    }
+}
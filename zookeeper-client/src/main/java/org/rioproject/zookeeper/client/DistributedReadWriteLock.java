@@ -0,0 +1,88 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A distributed read-write lock. Any number of readers may hold the read lock while no writer holds
+ * the write lock. Waiters are granted the lock in the order they asked for it, so a waiting writer
+ * is not starved by readers arriving after it.
+ *
+ * <p>A writer watches only the node ahead of it. A reader watches only the closest writer ahead of
+ * it, so releasing the write lock wakes just the readers queued up to the next writer, all of which
+ * are granted the read lock.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class DistributedReadWriteLock {
+    private static final String READ = "read-";
+    private static final String WRITE = "write-";
+    private final DistributedLock readLock;
+    private final DistributedLock writeLock;
+
+    /**
+     * Create a {@code DistributedReadWriteLock}.
+     *
+     * @param client The connected {@code ZooKeeperClient}, must not be {@code null}.
+     * @param path The path of the lock node, must not be {@code null}. The node is created if it does not exist.
+     */
+    public DistributedReadWriteLock(final ZooKeeperClient client, final String path) {
+        LockQueue queue = new LockQueue(client, path);
+        readLock = new DistributedLock(queue, READ, new LockQueue.Policy() {
+            public List<String> blockers(final List<String> queue, final int index) {
+                for(int i=index-1; i>=0; i--) {
+                    if(queue.get(i).startsWith(WRITE))
+                        return Collections.singletonList(queue.get(i));
+                }
+                return Collections.emptyList();
+            }
+
+            public boolean announce() {
+                return false;
+            }
+        });
+        writeLock = new DistributedLock(queue, WRITE, DistributedLock.MUTEX);
+        readLock.exclude(writeLock);
+        writeLock.exclude(readLock);
+    }
+
+    /**
+     * Get the read lock. The read lock is reentrant, but a thread holding it cannot acquire the write
+     * lock, the attempt fails with an {@code IllegalStateException}.
+     */
+    public DistributedLock readLock() {
+        return readLock;
+    }
+
+    /**
+     * Get the write lock. The write lock is reentrant, but cannot be downgraded: a thread holding it
+     * cannot acquire the read lock, the attempt fails with an {@code IllegalStateException}. The read
+     * node would queue behind the thread's own write node, and behind any writer that queued in
+     * between, so it could never be granted.
+     */
+    public DistributedLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * Stop using the lock. Waiting acquisitions are cancelled and held locks are released.
+     */
+    public void close() {
+        readLock.close();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distributed counting semaphore. All participants must be created with the same number of
+ * permits. Waiters are granted permits in the order they asked for them.
+ *
+ * <p>Only the first waiter watches the permit holders, every other waiter watches the waiter ahead
+ * of it. A release therefore wakes exactly one waiter, the first; once it has been granted a permit
+ * it marks its node, which makes the next waiter the first.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class DistributedSemaphore {
+    private final LockQueue queue;
+    private final int permits;
+    private final LockQueue.Policy policy;
+
+    /**
+     * Create a {@code DistributedSemaphore}.
+     *
+     * @param client The connected {@code ZooKeeperClient}, must not be {@code null}.
+     * @param path The path of the semaphore node, must not be {@code null}. The node is created if it does not exist.
+     * @param permits The number of permits, must be greater than zero.
+     */
+    public DistributedSemaphore(final ZooKeeperClient client, final String path, final int permits) {
+        if(permits<1)
+            throw new IllegalArgumentException("permits must be greater than zero");
+        this.queue = new LockQueue(client, path);
+        this.permits = permits;
+        this.policy = new LockQueue.Policy() {
+            public List<String> blockers(final List<String> queue, final int index) {
+                if(index<permits)
+                    return Collections.emptyList();
+                if(index==permits)
+                    return queue.subList(0, permits);
+                return Collections.singletonList(queue.get(index-1));
+            }
+
+            public boolean announce() {
+                return permits>1;
+            }
+        };
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * Acquire a permit, waiting until one is granted.
+     *
+     * @return The {@code Lease} for the permit, release it to return the permit.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws KeeperException if a permit cannot be acquired, for example because the session expired.
+     */
+    public Lease acquire() throws InterruptedException, KeeperException {
+        return DistributedLock.await(queue.enqueue("lease-", policy), -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquire a permit, waiting at most the given time.
+     *
+     * @param time The maximum time to wait.
+     * @param unit The unit of the {@code time} argument.
+     *
+     * @return The {@code Lease} for the permit, or {@code null} if the time elapsed first.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws KeeperException if a permit cannot be acquired, for example because the session expired.
+     */
+    public Lease tryAcquire(final long time, final TimeUnit unit) throws InterruptedException, KeeperException {
+        return DistributedLock.await(queue.enqueue("lease-", policy), time, unit);
+    }
+
+    /**
+     * Queue for a permit without blocking.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code Lease} once a permit is granted.
+     */
+    public OperationFuture<Lease> acquireAsync() {
+        return queue.enqueue("lease-", policy).future;
+    }
+
+    /**
+     * Stop using the semaphore. Waiting acquisitions are cancelled and permits still held are returned.
+     */
+    public void close() {
+        queue.close();
+    }
+}
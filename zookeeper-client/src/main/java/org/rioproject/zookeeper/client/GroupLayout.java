@@ -0,0 +1,159 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the members of a group are laid out below the group node. A flat group has its
+ * members as direct children, {@code /<group>/<member>}. A sharded group hashes its members into a
+ * fixed number of bucket nodes, {@code /<group>/b07/<member>}, so a membership change only requires
+ * the one small bucket it touched to be re-read.
+ *
+ * <p>The layout is recorded as the data of the group node when the group is created, allowing
+ * every client to discover it.</p>
+ *
+ * @author Dennis Reedy
+ */
+public final class GroupLayout {
+    /**
+     * The maximum number of buckets a group may be sharded into.
+     */
+    public static final int MAX_BUCKETS = 100;
+    public static final GroupLayout FLAT = new GroupLayout(0);
+    private static final String PREFIX = "buckets=";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final int buckets;
+    private final List<String> bucketNames;
+
+    private GroupLayout(final int buckets) {
+        this.buckets = buckets;
+        List<String> names = new ArrayList<String>();
+        for(int i=0; i<buckets; i++)
+            names.add(String.format("b%02d", i));
+        this.bucketNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Get a sharded layout.
+     *
+     * @param buckets The number of buckets, between 1 and {@link #MAX_BUCKETS}.
+     *
+     * @return A {@code GroupLayout} hashing members into the given number of buckets.
+     */
+    public static GroupLayout sharded(final int buckets) {
+        if(buckets<1 || buckets>MAX_BUCKETS)
+            throw new IllegalArgumentException("buckets must be between 1 and "+MAX_BUCKETS);
+        return new GroupLayout(buckets);
+    }
+
+    public boolean isSharded() {
+        return buckets>0;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Get the names of the bucket nodes.
+     *
+     * @return An unmodifiable {@code List} of bucket names, empty for a flat layout.
+     */
+    public List<String> getBucketNames() {
+        return bucketNames;
+    }
+
+    /**
+     * Get the bucket a member belongs in. The hash is {@code String.hashCode()}, which is the same in
+     * every JVM.
+     *
+     * @param memberName The name of the member, must not be {@code null}.
+     *
+     * @return The name of the bucket, or {@code null} for a flat layout.
+     */
+    public String bucketOf(final String memberName) {
+        if(memberName==null)
+            throw new IllegalArgumentException("memberName must not be null");
+        if(buckets==0)
+            return null;
+        return bucketNames.get((memberName.hashCode() & 0x7fffffff)%buckets);
+    }
+
+    /**
+     * Get the path of a member's node.
+     *
+     * @param groupPath The path of the group node, must not be {@code null}.
+     * @param memberName The name of the member, must not be {@code null}.
+     *
+     * @return The path of the member's node.
+     */
+    public String memberPath(final String groupPath, final String memberName) {
+        if(groupPath==null)
+            throw new IllegalArgumentException("groupPath must not be null");
+        String bucket = bucketOf(memberName);
+        return bucket==null?String.format("%s/%s", groupPath, memberName):String.format("%s/%s/%s", groupPath, bucket, memberName);
+    }
+
+    /**
+     * Get the data recorded on the group node.
+     *
+     * @return The encoded layout, {@code null} for a flat layout.
+     */
+    public byte[] encode() {
+        return buckets==0?null:(PREFIX+buckets).getBytes(UTF8);
+    }
+
+    /**
+     * Get the layout recorded on a group node. Data that does not describe a layout, including no
+     * data at all, is a flat layout.
+     *
+     * @param data The data of the group node, may be {@code null}.
+     *
+     * @return The {@code GroupLayout}, never {@code null}.
+     */
+    public static GroupLayout decode(final byte[] data) {
+        if(data==null || data.length<=PREFIX.length() || data.length>PREFIX.length()+3)
+            return FLAT;
+        String s = new String(data, UTF8);
+        if(!s.startsWith(PREFIX))
+            return FLAT;
+        try {
+            int buckets = Integer.parseInt(s.substring(PREFIX.length()));
+            return buckets<1 || buckets>MAX_BUCKETS?FLAT:new GroupLayout(buckets);
+        } catch(NumberFormatException e) {
+            return FLAT;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof GroupLayout && ((GroupLayout)o).buckets==buckets;
+    }
+
+    @Override
+    public int hashCode() {
+        return buckets;
+    }
+
+    @Override
+    public String toString() {
+        return buckets==0?"flat":String.format("sharded(%d)", buckets);
+    }
+}
@@ -20,16 +20,48 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides group management support for ZooKeeper clients.
  *
+ * <p>A group is either flat, with its members as direct children of the group node, or sharded into
+ * bucket nodes as described by its {@link GroupLayout}. The layout is chosen when the group is
+ * created and is handled transparently by the methods of this class.</p>
+ *
+ * <p>A {@code GroupManagement} is bound to the session of its {@code ZooKeeper}. If that session
+ * expires, members joined through it are gone and watched groups are no longer kept current; a
+ * {@link ConnectionStateListener} should create a new {@code GroupManagement} with the
+ * {@code ZooKeeper} of the new session, and join again, once {@link ConnectionState#RECONNECTED}
+ * follows {@link ConnectionState#LOST}.</p>
+ *
  * @author Dennis Reedy
  */
 public class GroupManagement {
+    /**
+     * The default maximum number of operations sent to the ensemble in a single {@code multi} transaction.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    /**
+     * The default maximum number of outstanding delete requests when deleting a group.
+     */
+    public static final int DEFAULT_MAX_DELETES_IN_FLIGHT = 200;
     private final ZooKeeper zooKeeper;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxDeletesInFlight = DEFAULT_MAX_DELETES_IN_FLIGHT;
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private volatile long coalesceWindow;
+    private volatile long maxCoalesceDelay;
+    private MemberInfoReader memberInfoReader;
+    private volatile MembershipStore store;
+    private final ConcurrentMap<String, GroupMembership> memberships = new ConcurrentHashMap<String, GroupMembership>();
+    private final ConcurrentMap<String, GroupLayout> layouts = new ConcurrentHashMap<String, GroupLayout>();
+    private final ConcurrentMap<String, PendingCreate> creating = new ConcurrentHashMap<String, PendingCreate>();
     private static Logger logger = LoggerFactory.getLogger(GroupManagement.class);
 
     public GroupManagement(final ZooKeeper zooKeeper) {
@@ -38,10 +70,74 @@ public class GroupManagement {
         this.zooKeeper = zooKeeper;
     }
 
+    /**
+     * Set the maximum number of operations that are packed into a single {@code multi} transaction
+     * by {@link #createAll(Collection)} and {@link #joinAll(String, Collection)}.
+     *
+     * @param maxBatchSize The maximum batch size, must be greater than zero.
+     *
+     * @throws IllegalArgumentException if the {@code maxBatchSize} is less than 1.
+     */
+    public void setMaxBatchSize(final int maxBatchSize) {
+        if(maxBatchSize<1)
+            throw new IllegalArgumentException("maxBatchSize must be greater than zero");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of outstanding requests used by {@link #delete(String)}.
+     *
+     * @param maxDeletesInFlight The maximum number of outstanding requests, must be greater than zero.
+     *
+     * @throws IllegalArgumentException if the {@code maxDeletesInFlight} is less than 1.
+     */
+    public void setMaxDeletesInFlight(final int maxDeletesInFlight) {
+        if(maxDeletesInFlight<1)
+            throw new IllegalArgumentException("maxDeletesInFlight must be greater than zero");
+        this.maxDeletesInFlight = maxDeletesInFlight;
+    }
+
+    public int getMaxDeletesInFlight() {
+        return maxDeletesInFlight;
+    }
+
+    /**
+     * Set the {@code ZooKeeperMetrics} operations are recorded in. Defaults to {@link ZooKeeperMetrics#getInstance()}.
+     *
+     * @param metrics The {@code ZooKeeperMetrics}, must not be {@code null}.
+     */
+    public void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Coalesce the membership changes of groups {@link #watch(String) watched} from now on.
+     *
+     * @param window The window (ms), 0 disables coalescing.
+     * @param maxDelay The longest time (ms) a change is held back, must not be less than the {@code window}.
+     *
+     * @see GroupMembership#setCoalescing(long, long)
+     */
+    public void setCoalescing(final long window, final long maxDelay) {
+        if(window<0)
+            throw new IllegalArgumentException("window must not be negative");
+        if(maxDelay<window)
+            throw new IllegalArgumentException("maxDelay must not be less than the window");
+        this.coalesceWindow = window;
+        this.maxCoalesceDelay = maxDelay;
+    }
+
     public boolean groupExists(final String groupName) {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
         String path = String.format("/%s", groupName);
+        long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
         try {
             Stat stat = zooKeeper.exists(path, false);
             return stat!=null;
@@ -49,90 +145,763 @@ public class GroupManagement {
             logger.error("Checking for existence of group {}", path, e);
         } catch (InterruptedException e) {
             logger.warn("Transaction was interrupted", e);
+        } finally {
+            metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
         }
         return false;
     }
 
-    public void create(final String groupName) {
+    /**
+     * Asynchronously determine whether a group exists.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with {@code true} if the group exists.
+     */
+    public OperationFuture<Boolean> groupExistsAsync(final String groupName) {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
+        final OperationFuture<Boolean> future = new OperationFuture<Boolean>();
         String path = String.format("/%s", groupName);
-        zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+        zooKeeper.exists(path, false, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object context, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(KeeperException.Code.NONODE.equals(code)) {
+                    future.set(false);
+                } else {
+                    future.complete(rc, path, true);
+                }
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Create a group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the group once it has been
+     * created. If the group already exists the {@code OperationFuture} fails with a
+     * {@code KeeperException.NodeExistsException}.
+     */
+    public OperationFuture<String> create(final String groupName) {
+        return create(groupName, GroupLayout.FLAT);
+    }
+
+    /**
+     * Create a group with the given layout. For a sharded layout the bucket nodes are created along
+     * with the group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     * @param layout The {@code GroupLayout} of the group, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the group once it, and any
+     * bucket nodes, have been created. If the group already exists the {@code OperationFuture} fails
+     * with a {@code KeeperException.NodeExistsException}.
+     */
+    public OperationFuture<String> create(final String groupName, final GroupLayout layout) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        if(layout==null)
+            throw new IllegalArgumentException("layout must not be null");
+        final OperationFuture<String> future = new OperationFuture<String>();
+        String path = String.format("/%s", groupName);
+        /* Members joining before the create has been acknowledged check the layout once it is */
+        final PendingCreate pending = new PendingCreate(layout);
+        creating.put(groupName, pending);
+        final long start = metrics.start(ZooKeeperMetrics.Operation.CREATE);
+        zooKeeper.create(path, layout.encode(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
             public void processResult(int rc, String createdPath, Object context, String name) {
+                metrics.stop(ZooKeeperMetrics.Operation.CREATE, start);
+                creating.remove(groupName, pending);
                 if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
                     logger.info("Created {}", createdPath);
+                    layouts.put(groupName, layout);
+                    pending.resolved.set(layout);
+                    if(layout.isSharded()) {
+                        createBuckets(createdPath, layout, future);
+                        return;
+                    }
                 } else {
                     logger.error("Unable to create {}, {}", createdPath, KeeperException.Code.get(rc));
+                    /* The group may exist with another layout */
+                    getLayout(groupName).addListener(new OperationListener<GroupLayout>() {
+                        public void operationComplete(OperationFuture<GroupLayout> read) {
+                            try {
+                                pending.resolved.set(read.get());
+                            } catch(Exception e) {
+                                pending.resolved.setException(e instanceof ExecutionException?e.getCause():e);
+                            }
+                        }
+                    });
+                }
+                future.complete(rc, createdPath, name);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * A create that has not been acknowledged, and the layout of the group once it is.
+     */
+    static class PendingCreate {
+        final GroupLayout layout;
+        final OperationFuture<GroupLayout> resolved = new OperationFuture<GroupLayout>();
+
+        PendingCreate(final GroupLayout layout) {
+            this.layout = layout;
+        }
+    }
+
+    private void createBuckets(final String groupPath, final GroupLayout layout, final OperationFuture<String> future) {
+        final AtomicInteger remaining = new AtomicInteger(layout.getBuckets());
+        for(String bucket : layout.getBucketNames()) {
+            final long start = metrics.start(ZooKeeperMetrics.Operation.CREATE);
+            zooKeeper.create(String.format("%s/%s", groupPath, bucket), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                             new AsyncCallback.StringCallback() {
+                                 public void processResult(int rc, String createdPath, Object context, String name) {
+                                     metrics.stop(ZooKeeperMetrics.Operation.CREATE, start);
+                                     KeeperException.Code code = KeeperException.Code.get(rc);
+                                     if(!KeeperException.Code.OK.equals(code) && !KeeperException.Code.NODEEXISTS.equals(code)) {
+                                         logger.error("Unable to create bucket {}, {}", createdPath, code);
+                                         future.complete(rc, createdPath, groupPath);
+                                     } else if(remaining.decrementAndGet()==0) {
+                                         future.set(groupPath);
+                                     }
+                                 }
+                             }, null);
+        }
+    }
+
+    /**
+     * Get the layout of a group. The layout is read from the group node once and then cached.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code GroupLayout}. If the group
+     * does not exist the {@code OperationFuture} fails with a {@code KeeperException.NoNodeException}.
+     */
+    public OperationFuture<GroupLayout> getLayout(final String groupName) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        GroupLayout layout = layouts.get(groupName);
+        if(layout!=null)
+            return OperationFuture.completed(layout);
+        final OperationFuture<GroupLayout> future = new OperationFuture<GroupLayout>();
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_DATA);
+        zooKeeper.getData(String.format("/%s", groupName), false, new AsyncCallback.DataCallback() {
+            public void processResult(int rc, String path, Object context, byte[] data, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_DATA, start);
+                GroupLayout layout = null;
+                if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                    layout = GroupLayout.decode(data);
+                    layouts.put(groupName, layout);
                 }
+                future.complete(rc, path, layout);
             }
         }, null);
+        return future;
+    }
+
+    /*
+     * Blocking variant of getLayout, for the synchronous methods
+     */
+    private GroupLayout readLayout(final String groupName) throws KeeperException, InterruptedException {
+        GroupLayout layout = layouts.get(groupName);
+        if(layout!=null)
+            return layout;
+        long start = metrics.start(ZooKeeperMetrics.Operation.GET_DATA);
+        try {
+            layout = GroupLayout.decode(zooKeeper.getData(String.format("/%s", groupName), false, null));
+        } finally {
+            metrics.stop(ZooKeeperMetrics.Operation.GET_DATA, start);
+        }
+        layouts.put(groupName, layout);
+        return layout;
     }
 
-    public void join(final String groupName, final String memberName) {
+    /*
+     * Run a task once the layout of a group is known, failing the future if it cannot be read
+     */
+    private void withLayout(final String groupName, final OperationFuture<?> future, final LayoutTask task) {
+        getLayout(groupName).addListener(new OperationListener<GroupLayout>() {
+            public void operationComplete(OperationFuture<GroupLayout> layout) {
+                try {
+                    task.run(layout.get());
+                } catch(ExecutionException e) {
+                    future.setException(e.getCause());
+                } catch(InterruptedException e) {
+                    /* The future has completed, get() does not block */
+                    future.setException(e);
+                }
+            }
+        });
+    }
+
+    private interface LayoutTask {
+        void run(GroupLayout layout);
+    }
+
+    /**
+     * Join a group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     * @param memberName The name of the member, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the member once the join
+     * has been committed.
+     */
+    public OperationFuture<String> join(final String groupName, final String memberName) {
+        return join(groupName, memberName, null);
+    }
+
+    /**
+     * Join a group, storing a {@code MemberInfo} as the data of the member's node so other members can
+     * reach it without a separate lookup.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     * @param memberName The name of the member, must not be {@code null}.
+     * @param memberInfo How to reach the member, may be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the member once the join
+     * has been committed.
+     */
+    public OperationFuture<String> join(final String groupName, final String memberName, final MemberInfo memberInfo) {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
         if(memberName==null)
             throw new IllegalArgumentException("memberName must not be null");
-        String path = String.format("/%s/%s", groupName, memberName);
-        zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, new AsyncCallback.StringCallback() {
-            public void processResult(int rc, String createdPath, Object context, String name) {
-                if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
-                    logger.info("Created {}", createdPath);
-                } else {
-                    logger.error("Unable to join group {}, {}", createdPath, KeeperException.Code.get(rc));
+        final OperationFuture<String> future = new OperationFuture<String>();
+        final byte[] data = memberInfo==null?null:memberInfo.encode();
+        PendingCreate pending = creating.get(groupName);
+        if(pending!=null && !layouts.containsKey(groupName)) {
+            /* Joined right behind the create, keep it in order and check the layout once the create is acknowledged */
+            createMember(groupName, pending.layout, memberName, data, future, true, pending.resolved);
+            return future;
+        }
+        withLayout(groupName, future, new LayoutTask() {
+            public void run(GroupLayout layout) {
+                createMember(groupName, layout, memberName, data, future, true, null);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * Create a member node. If the layout has not been confirmed, the member is moved once it is
+     * known that the group has another layout.
+     */
+    private void createMember(final String groupName,
+                              final GroupLayout layout,
+                              final String memberName,
+                              final byte[] data,
+                              final OperationFuture<String> future,
+                              final boolean retry,
+                              final OperationFuture<GroupLayout> unconfirmed) {
+        final String path = layout.memberPath(String.format("/%s", groupName), memberName);
+        final long start = metrics.start(ZooKeeperMetrics.Operation.CREATE);
+        zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, new AsyncCallback.StringCallback() {
+            public void processResult(final int rc, final String createdPath, Object context, final String name) {
+                metrics.stop(ZooKeeperMetrics.Operation.CREATE, start);
+                if(unconfirmed==null) {
+                    memberCreated(groupName, layout, memberName, data, future, retry, rc, createdPath, name);
+                    return;
                 }
+                unconfirmed.addListener(new OperationListener<GroupLayout>() {
+                    public void operationComplete(OperationFuture<GroupLayout> resolved) {
+                        GroupLayout actual;
+                        try {
+                            actual = resolved.get();
+                        } catch(Exception e) {
+                            actual = null;
+                        }
+                        if(layout.equals(actual)) {
+                            memberCreated(groupName, layout, memberName, data, future, retry, rc, createdPath, name);
+                            return;
+                        }
+                        if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc)))
+                            deleteMisplaced(createdPath);
+                        if(actual==null) {
+                            logger.error("Unable to join group {}, layout unknown", groupName);
+                            future.setException(resolved.getFailure());
+                            return;
+                        }
+                        logger.info("Group {} is {}, joining {} again", groupName, actual, memberName);
+                        createMember(groupName, actual, memberName, data, future, true, null);
+                    }
+                });
+            }
+        }, null);
+    }
+
+    private void memberCreated(final String groupName,
+                               final GroupLayout layout,
+                               final String memberName,
+                               final byte[] data,
+                               final OperationFuture<String> future,
+                               final boolean retry,
+                               final int rc,
+                               final String createdPath,
+                               final String name) {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if(KeeperException.Code.OK.equals(code)) {
+            logger.info("Created {}", createdPath);
+        } else if(KeeperException.Code.NONODE.equals(code) && layout.isSharded() && retry) {
+            /* The bucket may not have been created yet, create it and try again */
+            zooKeeper.create(createdPath.substring(0, createdPath.lastIndexOf('/')), null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                             CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String bucketPath, Object context, String name) {
+                    createMember(groupName, layout, memberName, data, future, false, null);
+                }
+            }, null);
+            return;
+        } else {
+            /* The group may have been re-created with another layout */
+            if(KeeperException.Code.NONODE.equals(code))
+                layouts.remove(groupName);
+            logger.error("Unable to join group {}, {}", createdPath, code);
+        }
+        future.complete(rc, createdPath, name);
+    }
+
+    private void deleteMisplaced(final String path) {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.DELETE);
+        zooKeeper.delete(path, -1, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String p, Object context) {
+                metrics.stop(ZooKeeperMetrics.Operation.DELETE, start);
+                if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc)))
+                    logger.warn("Unable to remove {} joined with the wrong layout, {}", p, KeeperException.Code.get(rc));
             }
         }, null);
     }
 
+    /**
+     * Get the {@code MemberInfo} of a member. The {@code MemberInfo} is read once, then kept current
+     * by a data watch until the member leaves the group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     * @param memberName The name of the member, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code MemberInfo}, or {@code null} if
+     * the member joined without one.
+     */
+    public OperationFuture<MemberInfo> getMemberInfo(final String groupName, final String memberName) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        if(memberName==null)
+            throw new IllegalArgumentException("memberName must not be null");
+        GroupLayout layout = layouts.get(groupName);
+        if(layout!=null)
+            return getMemberInfoReader().get(layout.memberPath(String.format("/%s", groupName), memberName));
+        final OperationFuture<MemberInfo> future = new OperationFuture<MemberInfo>();
+        withLayout(groupName, future, new LayoutTask() {
+            public void run(GroupLayout layout) {
+                String path = layout.memberPath(String.format("/%s", groupName), memberName);
+                getMemberInfoReader().get(path).addListener(new OperationListener<MemberInfo>() {
+                    public void operationComplete(OperationFuture<MemberInfo> read) {
+                        try {
+                            future.set(read.get());
+                        } catch(Exception e) {
+                            future.setException(e instanceof ExecutionException?e.getCause():e);
+                        }
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Set the {@code MembershipStore} the membership of groups {@link #watch(String) watched} from
+     * now on, and the member data read by {@link #getMemberInfo(String, String)}, is recorded in.
+     *
+     * @param store The {@code MembershipStore}, may be {@code null}. It should be {@link MembershipStore#open() open}.
+     */
+    public synchronized void setStore(final MembershipStore store) {
+        this.store = store;
+        if(memberInfoReader!=null)
+            memberInfoReader.setStore(store);
+    }
+
+    /**
+     * Get the {@code MemberInfoReader} used by {@link #getMemberInfo(String, String)}.
+     */
+    public synchronized MemberInfoReader getMemberInfoReader() {
+        if(memberInfoReader==null) {
+            memberInfoReader = new MemberInfoReader(zooKeeper);
+            memberInfoReader.setMetrics(metrics);
+            memberInfoReader.setStore(store);
+        }
+        return memberInfoReader;
+    }
+
+    /**
+     * Create many groups, packing the creates into as few {@code multi} transactions as the
+     * {@link #getMaxBatchSize() maximum batch size} allows.
+     *
+     * <p>This method blocks until all transactions have completed, it must not be invoked from a
+     * ZooKeeper callback or {@code Watcher}.</p>
+     *
+     * @param groupNames The names of the groups to create, must not be {@code null}.
+     *
+     * @return A {@code Map} of group names to the result of each create. Groups that already exist
+     * are reported with {@link KeeperException.Code#NODEEXISTS}.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public Map<String, KeeperException.Code> createAll(final Collection<String> groupNames) throws InterruptedException {
+        if(groupNames==null)
+            throw new IllegalArgumentException("groupNames must not be null");
+        List<String> names = new ArrayList<String>();
+        List<Op> ops = new ArrayList<Op>();
+        for(String groupName : groupNames) {
+            if(groupName==null)
+                throw new IllegalArgumentException("groupName must not be null");
+            names.add(groupName);
+            ops.add(Op.create(String.format("/%s", groupName), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        }
+        return commit(names, ops, CreateMode.PERSISTENT);
+    }
+
+    /**
+     * Join many members to a group, packing the ephemeral node creates into as few {@code multi}
+     * transactions as the {@link #getMaxBatchSize() maximum batch size} allows.
+     *
+     * <p>This method blocks until all transactions have completed, it must not be invoked from a
+     * ZooKeeper callback or {@code Watcher}.</p>
+     *
+     * @param groupName The name of the group to join, must not be {@code null}.
+     * @param memberNames The names of the members joining, must not be {@code null}.
+     *
+     * @return A {@code Map} of member names to the result of each join. Members that have already
+     * joined are reported with {@link KeeperException.Code#NODEEXISTS}, if the group does not exist
+     * each member is reported with {@link KeeperException.Code#NONODE}.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public Map<String, KeeperException.Code> joinAll(final String groupName,
+                                                     final Collection<String> memberNames) throws InterruptedException {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        if(memberNames==null)
+            throw new IllegalArgumentException("memberNames must not be null");
+        GroupLayout layout;
+        try {
+            layout = readLayout(groupName);
+        } catch(KeeperException e) {
+            logger.warn("Unable to read layout of group {}, {}", groupName, e.code());
+            Map<String, KeeperException.Code> results = new LinkedHashMap<String, KeeperException.Code>();
+            for(String memberName : memberNames)
+                results.put(memberName, e.code());
+            return results;
+        }
+        String groupPath = String.format("/%s", groupName);
+        List<String> names = new ArrayList<String>();
+        List<Op> ops = new ArrayList<Op>();
+        for(String memberName : memberNames) {
+            if(memberName==null)
+                throw new IllegalArgumentException("memberName must not be null");
+            names.add(memberName);
+            ops.add(Op.create(layout.memberPath(groupPath, memberName),
+                              null,
+                              ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                              CreateMode.EPHEMERAL));
+        }
+        return commit(names, ops, CreateMode.EPHEMERAL);
+    }
+
+    /**
+     * Get the members of a group. If the group is {@link #watch(String) watched} and its membership
+     * cache has been filled, the members are served from the cache without a round trip to the
+     * ensemble, and the returned {@code List} is unmodifiable.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return The members of the group, never {@code null}.
+     *
+     * @throws KeeperException if the server signals an error.
+     * @throws InterruptedException if the transaction is interrupted.
+     */
     public List<String> list(final String groupName) throws KeeperException, InterruptedException {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
+        GroupMembership membership = memberships.get(groupName);
+        if(membership!=null && membership.isInitialized())
+            return membership.getMembers();
         List<String> list = new ArrayList<String>();
         String path = String.format("/%s", groupName);
         try {
-            list.addAll(zooKeeper.getChildren(path, false));
+            GroupLayout layout = readLayout(groupName);
+            if(layout.isSharded()) {
+                for(String bucket : layout.getBucketNames())
+                    list.addAll(getChildren(String.format("%s/%s", path, bucket)));
+            } else {
+                list.addAll(getChildren(path));
+            }
         } catch (KeeperException.NoNodeException e) {
             logger.warn("Group {} does not exist", groupName);
         }
         return list;
     }
 
-    public void delete(final String groupName) {
+    private List<String> getChildren(final String path) throws KeeperException, InterruptedException {
+        long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+        try {
+            return zooKeeper.getChildren(path, false);
+        } finally {
+            metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+        }
+    }
+
+    /**
+     * Asynchronously get the members of a group. If the group is {@link #watch(String) watched}
+     * and its membership cache has been filled, the returned {@code OperationFuture} has already
+     * completed with the cached, unmodifiable list.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the members of the group. If the group
+     * does not exist the {@code OperationFuture} fails with a {@code KeeperException.NoNodeException}.
+     */
+    public OperationFuture<List<String>> listAsync(final String groupName) {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
-        String path = String.format("/%s", groupName);
-        zooKeeper.getChildren(path, false, new AsyncCallback.Children2Callback() {
-            public void processResult(int rc, String path, Object context, List<String> children, Stat stat) {
-                try {
-                    for (String child : children) {
-                        zooKeeper.delete(String.format("%s/%s", path, child), -1);
-                    }
-                    zooKeeper.delete(path, -1);
-                } catch (KeeperException.NoNodeException e) {
-                    logger.warn("Group {} does not exist", groupName);
-                } catch (InterruptedException e) {
-                    logger.warn("Transaction was interrupted", e);
-                } catch (KeeperException e) {
-                    logger.warn("Server error", e);
+        GroupMembership membership = memberships.get(groupName);
+        if(membership!=null && membership.isInitialized())
+            return OperationFuture.completed(membership.getMembers());
+        final OperationFuture<List<String>> future = new OperationFuture<List<String>>();
+        final String path = String.format("/%s", groupName);
+        withLayout(groupName, future, new LayoutTask() {
+            public void run(GroupLayout layout) {
+                if(!layout.isSharded()) {
+                    final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+                    zooKeeper.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+                        public void processResult(int rc, String path, Object context, List<String> children) {
+                            metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                            future.complete(rc, path, children);
+                        }
+                    }, null);
+                    return;
+                }
+                /* Read every bucket, the results are gathered in bucket order */
+                final List<List<String>> buckets = new ArrayList<List<String>>(Collections.nCopies(layout.getBuckets(), (List<String>)null));
+                final AtomicInteger remaining = new AtomicInteger(layout.getBuckets());
+                for(int i=0; i<layout.getBuckets(); i++) {
+                    final int index = i;
+                    final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+                    String bucket = String.format("%s/%s", path, layout.getBucketNames().get(i));
+                    zooKeeper.getChildren(bucket, false, new AsyncCallback.ChildrenCallback() {
+                        public void processResult(int rc, String p, Object context, List<String> children) {
+                            metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                            KeeperException.Code code = KeeperException.Code.get(rc);
+                            if(!KeeperException.Code.OK.equals(code) && !KeeperException.Code.NONODE.equals(code)) {
+                                future.complete(rc, p, null);
+                                return;
+                            }
+                            synchronized(buckets) {
+                                buckets.set(index, children==null?Collections.<String>emptyList():children);
+                            }
+                            if(remaining.decrementAndGet()==0) {
+                                List<String> members = new ArrayList<String>();
+                                synchronized(buckets) {
+                                    for(List<String> bucketMembers : buckets)
+                                        members.addAll(bucketMembers);
+                                }
+                                future.set(members);
+                            }
+                        }
+                    }, null);
                 }
             }
-        }, null);
+        });
+        return future;
     }
 
-    public void delete(final String groupName, final String memberName) {
+    /**
+     * Maintain a local, watch-driven cache of the members of a group. Once filled,
+     * {@link #list(String)} is served from the cache. If a {@link MembershipStore} is set the cache
+     * starts from the membership recorded there, flagged as stale until the group has been read.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     *
+     * @return The {@code GroupMembership} for the group. If the group is already watched the
+     * existing {@code GroupMembership} is returned.
+     */
+    public GroupMembership watch(final String groupName) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        GroupMembership membership = memberships.get(groupName);
+        if(membership==null) {
+            String path = String.format("/%s", groupName);
+            MembershipStore store = this.store;
+            GroupMembership created = new GroupMembership(zooKeeper, path, store==null?null:store.getSnapshot(path));
+            created.setMetrics(metrics);
+            created.setLayout(layouts.get(groupName));
+            created.setCoalescing(coalesceWindow, maxCoalesceDelay);
+            membership = memberships.putIfAbsent(groupName, created);
+            if(membership==null) {
+                membership = created;
+                if(store!=null)
+                    store.attach(membership);
+                membership.start();
+            }
+        }
+        return membership;
+    }
+
+    /**
+     * Stop maintaining the membership cache for a group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     */
+    public void unwatch(final String groupName) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        GroupMembership membership = memberships.remove(groupName);
+        if(membership!=null)
+            membership.close();
+    }
+
+    /**
+     * Delete a group and everything below it. The delete is carried out asynchronously with a
+     * bounded number of requests in flight, it never blocks the calling thread or the ZooKeeper
+     * event thread.
+     *
+     * @param groupName The name of the group to delete, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the number of nodes deleted once the
+     * group is gone.
+     */
+    public OperationFuture<Integer> delete(final String groupName) {
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        String path = String.format("/%s", groupName);
+        layouts.remove(groupName);
+        return new TreeDeleter(zooKeeper, maxDeletesInFlight, metrics).delete(path);
+    }
+
+    /**
+     * Remove a member from a group.
+     *
+     * @param groupName The name of the group, must not be {@code null}.
+     * @param memberName The name of the member, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the member once it has
+     * been deleted.
+     */
+    public OperationFuture<String> delete(final String groupName, final String memberName) {
         if(groupName==null)
             throw new IllegalArgumentException("groupName must not be null");
         if(memberName==null)
             throw new IllegalArgumentException("memberName must not be null");
-        String path = String.format("/%s/%s", groupName, memberName);
-        zooKeeper.delete(path, -1, new AsyncCallback.VoidCallback() {
-            public void processResult(int rc, String path, Object context) {
-                if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
-                    logger.info("Deleted {}", path);
+        final OperationFuture<String> future = new OperationFuture<String>();
+        withLayout(groupName, future, new LayoutTask() {
+            public void run(GroupLayout layout) {
+                String path = layout.memberPath(String.format("/%s", groupName), memberName);
+                final long start = metrics.start(ZooKeeperMetrics.Operation.DELETE);
+                zooKeeper.delete(path, -1, new AsyncCallback.VoidCallback() {
+                    public void processResult(int rc, String path, Object context) {
+                        metrics.stop(ZooKeeperMetrics.Operation.DELETE, start);
+                        if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                            logger.info("Deleted {}", path);
+                        }
+                        future.complete(rc, path, path);
+                    }
+                }, null);
+            }
+        });
+        return future;
+    }
+
+    private Map<String, KeeperException.Code> commit(final List<String> names,
+                                                     final List<Op> ops,
+                                                     final CreateMode createMode) throws InterruptedException {
+        Map<String, KeeperException.Code> results = new LinkedHashMap<String, KeeperException.Code>();
+        for(int i=0; i<ops.size(); i+=maxBatchSize) {
+            int end = Math.min(i+maxBatchSize, ops.size());
+            commitBatch(new ArrayList<String>(names.subList(i, end)), new ArrayList<Op>(ops.subList(i, end)), createMode, results);
+        }
+        return results;
+    }
+
+    /*
+     * A multi transaction is atomic, if one operation fails they all fail, and the operations after
+     * the first failure are only reported as RUNTIMEINCONSISTENCY. Rather than peeling off one failed
+     * operation per round, the operations that failed on their own account are recorded and the
+     * remainder of the batch is created with pipelined asynchronous requests.
+     */
+    private void commitBatch(final List<String> names,
+                             final List<Op> ops,
+                             final CreateMode createMode,
+                             final Map<String, KeeperException.Code> results) throws InterruptedException {
+        List<String> retryNames = new ArrayList<String>();
+        List<Op> retryOps = new ArrayList<Op>();
+        long start = metrics.start(ZooKeeperMetrics.Operation.MULTI);
+        try {
+            zooKeeper.multi(ops);
+            for(String name : names)
+                results.put(name, KeeperException.Code.OK);
+            if(logger.isDebugEnabled())
+                logger.debug("Committed batch of {} operations", ops.size());
+        } catch (KeeperException e) {
+            List<OpResult> opResults = e.getResults();
+            if(opResults==null || opResults.size()!=ops.size()) {
+                logger.warn("Batch of {} operations failed, {}", ops.size(), e.code());
+                for(String name : names)
+                    results.put(name, e.code());
+                return;
+            }
+            for(int i=0; i<opResults.size(); i++) {
+                KeeperException.Code code = KeeperException.Code.OK;
+                OpResult opResult = opResults.get(i);
+                if(opResult instanceof OpResult.ErrorResult)
+                    code = KeeperException.Code.get(((OpResult.ErrorResult)opResult).getErr());
+                if(KeeperException.Code.OK.equals(code) || KeeperException.Code.RUNTIMEINCONSISTENCY.equals(code)) {
+                    retryNames.add(names.get(i));
+                    retryOps.add(ops.get(i));
+                } else {
+                    results.put(names.get(i), code);
                 }
             }
-        }, null);
+            if(retryOps.size()==ops.size()) {
+                logger.warn("Batch of {} operations failed, {}", ops.size(), e.code());
+                for(String name : names)
+                    results.put(name, e.code());
+                return;
+            }
+        } finally {
+            metrics.stop(ZooKeeperMetrics.Operation.MULTI, start);
+        }
+        if(!retryOps.isEmpty())
+            createEach(retryNames, retryOps, createMode, results);
+    }
+
+    /*
+     * Issue the creates without waiting for each other and wait for all of them once sent
+     */
+    private void createEach(final List<String> names,
+                            final List<Op> ops,
+                            final CreateMode createMode,
+                            final Map<String, KeeperException.Code> results) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(ops.size());
+        final Map<String, KeeperException.Code> codes = new ConcurrentHashMap<String, KeeperException.Code>();
+        for(int i=0; i<ops.size(); i++) {
+            final String name = names.get(i);
+            final long start = metrics.start(ZooKeeperMetrics.Operation.CREATE);
+            zooKeeper.create(ops.get(i).getPath(), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, createMode, new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String path, Object context, String created) {
+                    metrics.stop(ZooKeeperMetrics.Operation.CREATE, start);
+                    codes.put(name, KeeperException.Code.get(rc));
+                    done.countDown();
+                }
+            }, null);
+        }
+        done.await();
+        for(String name : names)
+            results.put(name, codes.get(name));
     }
 
 }
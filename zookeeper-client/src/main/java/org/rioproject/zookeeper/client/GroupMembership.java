@@ -0,0 +1,480 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A local cache of the members of a group. The cache is filled once and then kept current by a
+ * child watch on the group node. Reads are served from an immutable {@link MembershipSnapshot},
+ * they never go to the ensemble.
+ *
+ * <p>If the group is sharded (see {@link GroupLayout}) each bucket is cached and watched on its own,
+ * so a change only re-reads the bucket it touched, and the buckets are merged into a single view of
+ * the group.</p>
+ *
+ * <p>Optionally, changes can be {@link #setCoalescing(long, long) coalesced}: changes arriving
+ * within a window of each other are merged into a single notification, so a burst of members
+ * leaving at once is reported to {@link MembershipListener}s as one diff.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class GroupMembership implements Watcher {
+    private final ZooKeeper zooKeeper;
+    private final String path;
+    private final OperationFuture<MembershipSnapshot> initialized = new OperationFuture<MembershipSnapshot>();
+    private final List<MembershipListener> listeners = new CopyOnWriteArrayList<MembershipListener>();
+    private volatile MembershipSnapshot snapshot;
+    private volatile boolean closed;
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private volatile long lastEventTime;
+    private volatile GroupLayout layout;
+    private final List<GroupMembership> buckets = new CopyOnWriteArrayList<GroupMembership>();
+    private GroupMembership parent;
+    private long coalesceWindow;
+    private long maxCoalesceDelay;
+    private boolean refreshScheduled;
+    private long pendingSince;
+    private ScheduledFuture<?> flush;
+    private MembershipSnapshot notified;
+    private boolean live;
+    private static final ScheduledExecutorService coalescer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "GroupMembership-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static Logger logger = LoggerFactory.getLogger(GroupMembership.class);
+
+    /**
+     * Create a {@code GroupMembership}.
+     *
+     * @param zooKeeper The {@code ZooKeeper}, must not be {@code null}.
+     * @param path The path of the group node, must not be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code zooKeeper} or {@code path} is {@code null}.
+     */
+    public GroupMembership(final ZooKeeper zooKeeper, final String path) {
+        this(zooKeeper, path, null);
+    }
+
+    /**
+     * Create a {@code GroupMembership} seeded with a previously known membership. The seed is
+     * served (flagged as stale) until the group has been read, and the first read is reported to
+     * {@link MembershipListener}s as a change relative to the seed. This allows a group to be
+     * reconciled after a session has been re-established.
+     *
+     * @param zooKeeper The {@code ZooKeeper}, must not be {@code null}.
+     * @param path The path of the group node, must not be {@code null}.
+     * @param seed The previously known membership, may be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code zooKeeper} or {@code path} is {@code null}.
+     */
+    public GroupMembership(final ZooKeeper zooKeeper, final String path, final MembershipSnapshot seed) {
+        if(zooKeeper==null)
+            throw new IllegalArgumentException("zooKeeper must not be null");
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        this.zooKeeper = zooKeeper;
+        this.path = path;
+        this.snapshot = seed==null?MembershipSnapshot.empty(path):seed.asStale(true);
+        this.notified = snapshot;
+    }
+
+    /**
+     * Coalesce membership changes. After a change the group is re-read once the window has passed,
+     * and listeners are notified once no further change has been seen for the window, merging all
+     * changes in between into one notification. Listeners are notified at most {@code maxDelay}
+     * after the first change of a burst. Must be set before the {@code GroupMembership} is started.
+     *
+     * @param window The window (ms), 0 disables coalescing.
+     * @param maxDelay The longest time (ms) a change is held back, must not be less than the {@code window}.
+     */
+    public synchronized void setCoalescing(final long window, final long maxDelay) {
+        if(window<0)
+            throw new IllegalArgumentException("window must not be negative");
+        if(maxDelay<window)
+            throw new IllegalArgumentException("maxDelay must not be less than the window");
+        this.coalesceWindow = window;
+        this.maxCoalesceDelay = maxDelay;
+    }
+
+    /**
+     * Read the group and set the child watch that keeps the cache current.
+     *
+     * @return An {@code OperationFuture} that completes with the first snapshot read.
+     */
+    public OperationFuture<MembershipSnapshot> start() {
+        refresh();
+        return initialized;
+    }
+
+    /**
+     * Stop maintaining the cache. Outstanding watches are ignored when they fire.
+     */
+    public void close() {
+        closed = true;
+        listeners.clear();
+        synchronized(this) {
+            if(flush!=null)
+                flush.cancel(false);
+        }
+        for(GroupMembership bucket : buckets)
+            bucket.close();
+    }
+
+    /**
+     * Set the layout of the group if it is already known, saving it being read when started.
+     *
+     * @param layout The {@code GroupLayout}, or {@code null} if not known.
+     */
+    void setLayout(final GroupLayout layout) {
+        this.layout = layout;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Set the {@code ZooKeeperMetrics} operations are recorded in. Defaults to {@link ZooKeeperMetrics#getInstance()}.
+     *
+     * @param metrics The {@code ZooKeeperMetrics}, must not be {@code null}.
+     */
+    public void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the time the last watch event for the group was received.
+     *
+     * @return The {@code System.nanoTime()} the last watch event was received, or 0 if none has been received.
+     */
+    public long getLastEventTime() {
+        return lastEventTime;
+    }
+
+    /**
+     * Get the current membership.
+     *
+     * @return The current {@code MembershipSnapshot}, never {@code null}.
+     */
+    public MembershipSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the current members.
+     *
+     * @return An unmodifiable {@code List} of member names, never {@code null}.
+     */
+    public List<String> getMembers() {
+        return snapshot.getMembers();
+    }
+
+    /**
+     * Get the child version of the group node the current snapshot was read at. For a sharded group
+     * this is the sum of the child versions of the buckets.
+     *
+     * @return The child version of the group node, or -1 if the group does not exist or has not been read.
+     */
+    public int getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * Determine whether the cache has been filled.
+     *
+     * @return {@code true} once the first read of the group has completed.
+     */
+    public boolean isInitialized() {
+        return initialized.isDone();
+    }
+
+    /**
+     * Get the {@code OperationFuture} that completes when the cache has been filled. Unlike
+     * {@link #start()} the group is not read again.
+     *
+     * @return An {@code OperationFuture} that completes with the first snapshot read.
+     */
+    public OperationFuture<MembershipSnapshot> getInitialized() {
+        return initialized;
+    }
+
+    public void addListener(final MembershipListener listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener must not be null");
+        listeners.add(listener);
+    }
+
+    public void removeListener(final MembershipListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void process(final WatchedEvent event) {
+        if(closed)
+            return;
+        if(event.getType()==Event.EventType.None) {
+            switch(event.getState()) {
+                case ConnectedReadOnly:
+                case SyncConnected:
+                    /* Watches are re-established by the client, re-read in case a refresh was lost */
+                    if(snapshot.isStale())
+                        refresh();
+                    break;
+                case Disconnected:
+                case Expired:
+                    snapshot = snapshot.asStale(true);
+                    if(parent!=null)
+                        parent.merge();
+                    break;
+            }
+            return;
+        }
+        if(path.equals(event.getPath())) {
+            lastEventTime = System.nanoTime();
+            metrics.watchEvent();
+            if(coalesceWindow>0)
+                scheduleRefresh();
+            else
+                refresh();
+        }
+    }
+
+    void refresh() {
+        if(closed)
+            return;
+        GroupLayout current = layout;
+        if(current==null) {
+            readLayout();
+            return;
+        }
+        /* The buckets of a sharded group keep themselves current */
+        if(current.isSharded())
+            return;
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+        zooKeeper.getChildren(path, this, new AsyncCallback.Children2Callback() {
+            public void processResult(int rc, String p, Object context, List<String> children, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(KeeperException.Code.OK.equals(code)) {
+                    List<String> members = Collections.unmodifiableList(new ArrayList<String>(children));
+                    update(new MembershipSnapshot(path, members, stat.getCversion(), stat.getPzxid(), isReadOnly()));
+                } else if(KeeperException.Code.NONODE.equals(code)) {
+                    groupMissing();
+                } else {
+                    logger.warn("Unable to read members of {}, {}", path, code);
+                    snapshot = snapshot.asStale(true);
+                    if(parent!=null)
+                        parent.merge();
+                }
+            }
+        }, null);
+    }
+
+    /*
+     * What a server that has lost contact with the quorum serves may be out of date, it is flagged as
+     * stale and read again once the client reaches a server that is part of the quorum
+     */
+    private boolean isReadOnly() {
+        return zooKeeper.getState()==ZooKeeper.States.CONNECTEDREADONLY;
+    }
+
+    private void groupMissing() {
+        /* A bucket's layout is fixed, a group may be created again with another layout */
+        if(parent==null)
+            layout = null;
+        update(new MembershipSnapshot(path, Collections.<String>emptyList(), -1, -1, isReadOnly()));
+        /* Watch for the group to be created */
+        final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+        zooKeeper.exists(path, GroupMembership.this, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String p, Object context, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc)))
+                    refresh();
+            }
+        }, null);
+    }
+
+    private void readLayout() {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_DATA);
+        zooKeeper.getData(path, false, new AsyncCallback.DataCallback() {
+            public void processResult(int rc, String p, Object context, byte[] data, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_DATA, start);
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(KeeperException.Code.OK.equals(code)) {
+                    GroupLayout read = GroupLayout.decode(data);
+                    layout = read;
+                    if(read.isSharded())
+                        startBuckets(read);
+                    else
+                        refresh();
+                } else if(KeeperException.Code.NONODE.equals(code)) {
+                    groupMissing();
+                } else {
+                    logger.warn("Unable to read layout of {}, {}", path, code);
+                    snapshot = snapshot.asStale(true);
+                }
+            }
+        }, null);
+    }
+
+    private synchronized void startBuckets(final GroupLayout layout) {
+        if(closed || !buckets.isEmpty())
+            return;
+        if(logger.isDebugEnabled())
+            logger.debug("{} is {}", path, layout);
+        for(String name : layout.getBucketNames()) {
+            GroupMembership bucket = new GroupMembership(zooKeeper, String.format("%s/%s", path, name));
+            bucket.layout = GroupLayout.FLAT;
+            bucket.parent = this;
+            bucket.metrics = metrics;
+            /* Buckets batch their reads, the merged view coalesces notifications */
+            bucket.coalesceWindow = coalesceWindow;
+            bucket.maxCoalesceDelay = maxCoalesceDelay;
+            buckets.add(bucket);
+        }
+        for(GroupMembership bucket : buckets)
+            bucket.start();
+    }
+
+    /*
+     * Merge the buckets of a sharded group once each has been read. The zxid of the merged view is
+     * the latest of the buckets, so it increases with every change to any bucket.
+     */
+    private void merge() {
+        List<String> members = new ArrayList<String>();
+        int version = 0;
+        long zxid = -1;
+        boolean stale = false;
+        for(GroupMembership bucket : buckets) {
+            if(!bucket.isInitialized())
+                return;
+            MembershipSnapshot bucketSnapshot = bucket.getSnapshot();
+            members.addAll(bucketSnapshot.getMembers());
+            version += Math.max(0, bucketSnapshot.getVersion());
+            zxid = Math.max(zxid, bucketSnapshot.getZxid());
+            stale |= bucketSnapshot.isStale();
+        }
+        update(new MembershipSnapshot(path, Collections.unmodifiableList(members), version, zxid, stale));
+    }
+
+    private void update(final MembershipSnapshot current) {
+        MembershipSnapshot previous;
+        synchronized(this) {
+            previous = snapshot;
+            /* Only live reads are ordered by zxid, a seed may come from a newer ensemble */
+            if(live && current.getZxid()!=-1 && current.getZxid()<previous.getZxid())
+                return;
+            live = true;
+            snapshot = current;
+        }
+        initialized.set(current);
+        if(parent!=null)
+            parent.merge();
+        if(coalesceWindow>0) {
+            scheduleFlush();
+            return;
+        }
+        if(listeners.isEmpty() || previous.getZxid()==current.getZxid() && previous.getVersion()==current.getVersion())
+            return;
+        notifyListeners(previous, current);
+    }
+
+    /*
+     * Re-read the group once the window has passed, changes made in the meantime are read together
+     */
+    private synchronized void scheduleRefresh() {
+        if(pendingSince==0)
+            pendingSince = System.currentTimeMillis();
+        if(refreshScheduled)
+            return;
+        refreshScheduled = true;
+        coalescer.schedule(new Runnable() {
+            public void run() {
+                synchronized(GroupMembership.this) {
+                    refreshScheduled = false;
+                }
+                refresh();
+            }
+        }, coalesceWindow, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Notify listeners once the window passes without a further change, or the maximum delay since
+     * the first change of the burst is reached
+     */
+    private synchronized void scheduleFlush() {
+        if(listeners.isEmpty() || closed) {
+            notified = snapshot;
+            pendingSince = 0;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if(pendingSince==0)
+            pendingSince = now;
+        long delay = Math.max(0, Math.min(coalesceWindow, pendingSince+maxCoalesceDelay-now));
+        if(flush!=null)
+            flush.cancel(false);
+        flush = coalescer.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        MembershipSnapshot previous;
+        MembershipSnapshot current;
+        synchronized(this) {
+            previous = notified;
+            current = snapshot;
+            notified = current;
+            pendingSince = 0;
+            flush = null;
+        }
+        notifyListeners(previous, current);
+    }
+
+    private void notifyListeners(final MembershipSnapshot previous, final MembershipSnapshot current) {
+        Set<String> before = new HashSet<String>(previous.getMembers());
+        List<String> added = new ArrayList<String>();
+        for(String member : current.getMembers()) {
+            if(!before.remove(member))
+                added.add(member);
+        }
+        if(added.isEmpty() && before.isEmpty())
+            return;
+        if(logger.isDebugEnabled())
+            logger.debug("{} changed, added: {}, removed: {}", path, added.size(), before.size());
+        for(MembershipListener listener : listeners) {
+            try {
+                listener.membershipChanged(current, added, before);
+            } catch(RuntimeException e) {
+                logger.warn("Notifying {} of membership change", listener, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two microsecond buckets. Recording a value is a
+ * couple of atomic increments, percentiles are computed from {@link Snapshot}s.
+ *
+ * @author Dennis Reedy
+ */
+public class LatencyHistogram {
+    /* Bucket i holds latencies in [2^(i-1), 2^i) microseconds, bucket 0 holds latencies under 1 microsecond */
+    static final int BUCKETS = 40;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(final long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        int bucket = Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        total.addAndGet(micros);
+        long current;
+        while(micros>(current = max.get()) && !max.compareAndSet(current, micros)) {
+            /* retry */
+        }
+    }
+
+    /**
+     * Take a snapshot of the values recorded so far.
+     *
+     * @return A {@code Snapshot} of the histogram.
+     */
+    public Snapshot snapshot() {
+        long[] values = new long[BUCKETS];
+        for(int i=0; i<BUCKETS; i++)
+            values[i] = counts.get(i);
+        return new Snapshot(values, total.get(), max.get());
+    }
+
+    /**
+     * An immutable copy of a {@code LatencyHistogram}.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(final long[] counts, final long total, final long max) {
+            this.counts = counts;
+            this.total = total;
+            this.max = max;
+            long n = 0;
+            for(long c : counts)
+                n += c;
+            this.count = n;
+        }
+
+        /**
+         * Get the values recorded since an earlier snapshot of the same histogram.
+         *
+         * @param earlier The earlier {@code Snapshot}, may be {@code null}.
+         *
+         * @return A {@code Snapshot} of the values recorded since {@code earlier}. The maximum is the
+         * upper bound of the highest bucket recorded in the interval.
+         */
+        public Snapshot since(final Snapshot earlier) {
+            if(earlier==null)
+                return this;
+            long[] delta = new long[BUCKETS];
+            int highest = -1;
+            for(int i=0; i<BUCKETS; i++) {
+                delta[i] = counts[i]-earlier.counts[i];
+                if(delta[i]>0)
+                    highest = i;
+            }
+            long intervalMax = highest<0?0:Math.min(max, upperBound(highest));
+            return new Snapshot(delta, total-earlier.total, intervalMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean latency.
+         *
+         * @return The mean latency in milliseconds.
+         */
+        public double getMean() {
+            return count==0?0:(double)total/count/1000;
+        }
+
+        /**
+         * Get the maximum latency.
+         *
+         * @return The maximum latency in milliseconds.
+         */
+        public double getMax() {
+            return (double)max/1000;
+        }
+
+        /**
+         * Get a percentile. The value is the upper bound of the bucket the percentile falls in.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         *
+         * @return The latency at the percentile in milliseconds, or 0 if nothing was recorded.
+         */
+        public double getPercentile(final double percentile) {
+            if(count==0)
+                return 0;
+            long rank = (long)Math.ceil(count*Math.max(0, Math.min(100, percentile))/100);
+            long seen = 0;
+            for(int i=0; i<BUCKETS; i++) {
+                seen += counts[i];
+                if(seen>=rank && counts[i]>0)
+                    return (double)Math.min(max, upperBound(i))/1000;
+            }
+            return getMax();
+        }
+
+        private static long upperBound(final int bucket) {
+            return bucket==0?0:(1L<<bucket)-1;
+        }
+    }
+}
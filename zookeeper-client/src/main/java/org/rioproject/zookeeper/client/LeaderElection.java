@@ -0,0 +1,412 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Elects a leader among candidates. Each candidate creates an {@code EPHEMERAL_SEQUENTIAL} node in
+ * the election group; the candidate with the lowest sequence number is the leader. Every other
+ * candidate watches only the node immediately preceding its own, so when the leader leaves only its
+ * successor is notified, and a leader change costs a single notification no matter how many
+ * candidates there are.
+ *
+ * <p>Leadership is held while the session is disconnected, since the leader's node remains until its
+ * session expires. If the session expires leadership is lost, and the candidate joins the election
+ * again once a new session has been established.</p>
+ *
+ * <p>A candidate's node name carries an id unique to the {@code LeaderElection}. If the connection
+ * is lost while the node is being created, the node may have been created nonetheless; the id lets
+ * the candidate find and adopt it rather than create a second node that would wait on the first.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class LeaderElection implements Watcher, ConnectionStateListener {
+    private static final String PREFIX = "n_";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ZooKeeperClient client;
+    private final String groupName;
+    private final String path;
+    private final String candidateId;
+    private final String prefix = PREFIX+UUID.randomUUID().toString()+"-";
+    private final List<LeadershipListener> listeners = new CopyOnWriteArrayList<LeadershipListener>();
+    private volatile String node;
+    private volatile String watching;
+    private volatile boolean leader;
+    private volatile boolean running;
+    private static Logger logger = LoggerFactory.getLogger(LeaderElection.class);
+
+    /**
+     * Create a {@code LeaderElection}.
+     *
+     * @param client The connected {@code ZooKeeperClient}, must not be {@code null}.
+     * @param groupName The name of the group used for the election, must not be {@code null}. The
+     * group is created if it does not exist.
+     * @param candidateId Identifies this candidate, returned by {@link #getLeader()}. Must not be {@code null}.
+     */
+    public LeaderElection(final ZooKeeperClient client, final String groupName, final String candidateId) {
+        if(client==null)
+            throw new IllegalArgumentException("client must not be null");
+        if(groupName==null)
+            throw new IllegalArgumentException("groupName must not be null");
+        if(candidateId==null)
+            throw new IllegalArgumentException("candidateId must not be null");
+        this.client = client;
+        this.groupName = groupName;
+        this.path = String.format("/%s", groupName);
+        this.candidateId = candidateId;
+    }
+
+    public void addListener(final LeadershipListener listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener must not be null");
+        listeners.add(listener);
+    }
+
+    public void removeListener(final LeadershipListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Join the election.
+     *
+     * @return An {@code OperationFuture} that completes with the path of this candidate's node once
+     * it has been created.
+     */
+    public synchronized OperationFuture<String> start() {
+        if(running)
+            throw new IllegalStateException("The election has already been started");
+        running = true;
+        client.addConnectionStateListener(this);
+        OperationFuture<String> future = new OperationFuture<String>();
+        join(future);
+        return future;
+    }
+
+    /**
+     * Leave the election, deleting this candidate's node. If this candidate is the leader,
+     * {@link LeadershipListener#leadershipLost(LeaderElection)} is invoked and the next candidate
+     * becomes the leader.
+     */
+    public void close() {
+        String current;
+        synchronized(this) {
+            if(!running)
+                return;
+            running = false;
+            current = node;
+            node = null;
+            watching = null;
+        }
+        client.removeConnectionStateListener(this);
+        ZooKeeper zooKeeper = client.getZooKeeper();
+        if(current!=null && zooKeeper!=null)
+            delete(zooKeeper, current);
+        lost();
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    public String getCandidateId() {
+        return candidateId;
+    }
+
+    /**
+     * Get the path of this candidate's node.
+     *
+     * @return The path of this candidate's node, or {@code null} if it has not joined the election.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Get the id of the current leader.
+     *
+     * @return An {@code OperationFuture} that completes with the id of the current leader, or
+     * {@code null} if there are no candidates.
+     */
+    public OperationFuture<String> getLeader() {
+        OperationFuture<String> future = new OperationFuture<String>();
+        readLeader(future);
+        return future;
+    }
+
+    private void readLeader(final OperationFuture<String> future) {
+        final ZooKeeper zooKeeper = client.getZooKeeper();
+        if(zooKeeper==null) {
+            future.setException(new KeeperException.ConnectionLossException());
+            return;
+        }
+        zooKeeper.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+            public void processResult(int rc, String p, Object context, List<String> children) {
+                if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                    future.complete(rc, p, null);
+                    return;
+                }
+                List<String> candidates = sort(children);
+                if(candidates.isEmpty()) {
+                    future.set(null);
+                    return;
+                }
+                zooKeeper.getData(path+"/"+candidates.get(0), false, new AsyncCallback.DataCallback() {
+                    public void processResult(int rc, String p, Object context, byte[] data, Stat stat) {
+                        if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc))) {
+                            /* The leader left, look again */
+                            readLeader(future);
+                            return;
+                        }
+                        future.complete(rc, p, data==null?null:new String(data, UTF8));
+                    }
+                }, null);
+            }
+        }, null);
+    }
+
+    public void process(final WatchedEvent event) {
+        /* Session events are handled through stateChanged */
+        if(event.getType()==Event.EventType.NodeDeleted && event.getPath().equals(watching) && running) {
+            if(logger.isDebugEnabled())
+                logger.debug("Predecessor {} of {} left", event.getPath(), node);
+            check();
+        }
+    }
+
+    public void stateChanged(final ZooKeeperClient client, final ConnectionState state) {
+        switch(state) {
+            case LOST:
+                synchronized(this) {
+                    node = null;
+                    watching = null;
+                }
+                lost();
+                break;
+            case CONNECTED:
+            case RECONNECTED:
+                boolean rejoin;
+                synchronized(this) {
+                    if(!running)
+                        break;
+                    rejoin = node==null;
+                }
+                if(rejoin) {
+                    logger.info("Rejoining election {} as {}", path, candidateId);
+                    join(new OperationFuture<String>());
+                } else {
+                    /* A check interrupted by the disconnect may have left no predecessor watched */
+                    check();
+                }
+                break;
+        }
+    }
+
+    /*
+     * Adopt this candidate's node if a create whose reply was lost made it, otherwise create it
+     */
+    private void join(final OperationFuture<String> future) {
+        final ZooKeeper zooKeeper = client.getZooKeeper();
+        if(zooKeeper==null) {
+            future.setException(new KeeperException.ConnectionLossException());
+            return;
+        }
+        zooKeeper.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+            public void processResult(int rc, String p, Object context, List<String> children) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(KeeperException.Code.NONODE.equals(code)) {
+                    createGroup(zooKeeper, future);
+                    return;
+                }
+                if(!KeeperException.Code.OK.equals(code)) {
+                    logger.error("Unable to join election {}, {}", path, code);
+                    future.complete(rc, p, null);
+                    return;
+                }
+                for(String child : children) {
+                    if(child.startsWith(prefix)) {
+                        logger.info("Adopting {} in election {}", child, path);
+                        joined(zooKeeper, path+"/"+child, future);
+                        return;
+                    }
+                }
+                create(zooKeeper, future);
+            }
+        }, null);
+    }
+
+    private void create(final ZooKeeper zooKeeper, final OperationFuture<String> future) {
+        zooKeeper.create(path+"/"+prefix,
+                         candidateId.getBytes(UTF8),
+                         ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                         CreateMode.EPHEMERAL_SEQUENTIAL,
+                         new AsyncCallback.StringCallback() {
+                             public void processResult(int rc, String p, Object context, String name) {
+                                 KeeperException.Code code = KeeperException.Code.get(rc);
+                                 if(KeeperException.Code.NONODE.equals(code)) {
+                                     createGroup(zooKeeper, future);
+                                     return;
+                                 }
+                                 if(!KeeperException.Code.OK.equals(code)) {
+                                     /* After a connection loss the node is looked for when rejoining */
+                                     logger.error("Unable to join election {}, {}", path, code);
+                                     future.complete(rc, p, null);
+                                     return;
+                                 }
+                                 joined(zooKeeper, name, future);
+                             }
+                         }, null);
+    }
+
+    private void joined(final ZooKeeper zooKeeper, final String name, final OperationFuture<String> future) {
+        synchronized(this) {
+            if(!running) {
+                delete(zooKeeper, name);
+                future.set(name);
+                return;
+            }
+            node = name;
+        }
+        future.set(name);
+        check();
+    }
+
+    private void createGroup(final ZooKeeper zooKeeper, final OperationFuture<String> future) {
+        new GroupManagement(zooKeeper).create(groupName).addListener(new OperationListener<String>() {
+            public void operationComplete(OperationFuture<String> created) {
+                KeeperException.Code code = created.getCode();
+                if(KeeperException.Code.OK.equals(code) || KeeperException.Code.NODEEXISTS.equals(code))
+                    join(future);
+                else
+                    future.setException(created.getFailure());
+            }
+        });
+    }
+
+    /*
+     * Determine whether this candidate leads, otherwise watch the candidate immediately preceding it
+     */
+    private void check() {
+        final ZooKeeper zooKeeper = client.getZooKeeper();
+        final String current = node;
+        if(zooKeeper==null || current==null || !running)
+            return;
+        zooKeeper.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+            public void processResult(int rc, String p, Object context, List<String> children) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(!KeeperException.Code.OK.equals(code) && !KeeperException.Code.NONODE.equals(code)) {
+                    /* Checked again once reconnected */
+                    logger.warn("Unable to read election {}, {}", path, code);
+                    return;
+                }
+                if(!current.equals(node))
+                    return;
+                /* If the group has been deleted this candidate's node went with it */
+                List<String> candidates = sort(children==null?Collections.<String>emptyList():children);
+                int index = candidates.indexOf(current.substring(path.length()+1));
+                if(index<0) {
+                    boolean rejoin;
+                    synchronized(LeaderElection.this) {
+                        rejoin = running && current.equals(node);
+                        if(rejoin)
+                            node = null;
+                    }
+                    if(rejoin) {
+                        logger.warn("{} is no longer in election {}, rejoining", current, path);
+                        lost();
+                        join(new OperationFuture<String>());
+                    }
+                    return;
+                }
+                if(index==0) {
+                    acquired();
+                    return;
+                }
+                final String predecessor = path+"/"+candidates.get(index-1);
+                watching = predecessor;
+                zooKeeper.exists(predecessor, LeaderElection.this, new AsyncCallback.StatCallback() {
+                    public void processResult(int rc, String p, Object context, Stat stat) {
+                        /* The predecessor left before the watch was set */
+                        if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                            check();
+                    }
+                }, null);
+            }
+        }, null);
+    }
+
+    private void acquired() {
+        synchronized(this) {
+            if(leader || !running)
+                return;
+            leader = true;
+        }
+        logger.info("{} is the leader of {}", candidateId, path);
+        for(LeadershipListener listener : listeners)
+            listener.leadershipAcquired(this);
+    }
+
+    private void lost() {
+        synchronized(this) {
+            if(!leader)
+                return;
+            leader = false;
+        }
+        logger.info("{} is no longer the leader of {}", candidateId, path);
+        for(LeadershipListener listener : listeners)
+            listener.leadershipLost(this);
+    }
+
+    private void delete(final ZooKeeper zooKeeper, final String name) {
+        zooKeeper.delete(name, -1, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String p, Object context) {
+                if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc)) &&
+                   !KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                    logger.warn("Unable to delete {}, {}", p, KeeperException.Code.get(rc));
+            }
+        }, null);
+    }
+
+    private static List<String> sort(final List<String> children) {
+        List<String> candidates = new ArrayList<String>();
+        for(String child : children) {
+            if(child.startsWith(PREFIX))
+                candidates.add(child);
+        }
+        /* Sort by the zero padded sequence number ZooKeeper appends, the candidate ids differ */
+        Collections.sort(candidates, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return sequence(a).compareTo(sequence(b));
+            }
+        });
+        return candidates;
+    }
+
+    private static String sequence(final String name) {
+        return name.length()<10?name:name.substring(name.length()-10);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+/**
+ * A granted {@link DistributedLock} or {@link DistributedSemaphore} permit, held by the node that
+ * was queued for it.
+ *
+ * @author Dennis Reedy
+ */
+public class Lease {
+    private final LockQueue queue;
+    private final String path;
+    private volatile boolean valid = true;
+
+    Lease(final LockQueue queue, final String path) {
+        this.queue = queue;
+        this.path = path;
+    }
+
+    /**
+     * Get the path of the node holding the lease.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Determine whether the lease is still held. A lease is no longer held once it has been released,
+     * or if the session that acquired it has expired.
+     *
+     * @return {@code true} if the lease is held.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Release the lease, deleting its node. The next waiter is notified by the deletion.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the node once it has been deleted.
+     */
+    public OperationFuture<String> release() {
+        valid = false;
+        return queue.release(this);
+    }
+
+    void invalidate() {
+        valid = false;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
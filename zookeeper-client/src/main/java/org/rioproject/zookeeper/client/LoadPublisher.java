@@ -0,0 +1,303 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes a member's load (in-flight requests and CPU utilization) as part of the
+ * {@link MemberInfo} stored in its node, for use by a {@link MemberSelector}. CPU utilization is
+ * that of the member's process: the CPU time it used between samples relative to the time
+ * available on all processors. It is published as 0 if the JVM does not report process CPU time.
+ *
+ * <p>Writes are throttled: at most one write is outstanding, and writes are at least the
+ * {@link #setMinInterval(long) minimum interval} apart. Changes made in the meantime are
+ * combined into the next write. Each write is conditional on the node version of the previous
+ * write, if the node has been written by someone else its version is re-read before writing again.
+ * Publishing stops if the member node is deleted.</p>
+ *
+ * <p>A {@link #setHeartbeatInterval(long) heartbeat interval} can be set, in which case the
+ * {@code MemberInfo} is re-written whenever nothing has been written for that long. Every write
+ * changes the data version of the node, which a {@code ZooKeeperServiceWatcher} monitoring
+ * heartbeats uses as a sign of life.</p>
+ *
+ * <p>A {@code LoadPublisher} is bound to the session that created the member node. If the session
+ * expires it stops, a new one must be created once the member has joined again.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class LoadPublisher {
+    /**
+     * The default minimum time (ms) between writes.
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 1000;
+    /* The shortest time (ns) CPU utilization is measured over, shorter ones are too noisy */
+    private static final long MIN_CPU_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+    private final ZooKeeper zooKeeper;
+    private final String path;
+    private final MemberInfo memberInfo;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    private int version;
+    private long lastWrite;
+    private boolean writing;
+    private boolean scheduled;
+    private boolean closed;
+    private MemberInfo published;
+    private long cpuTime = -1;
+    private long cpuSampledAt;
+    private double cpu;
+    private ScheduledFuture<?> sampler;
+    private ScheduledFuture<?> heartbeat;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LoadPublisher-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static Logger logger = LoggerFactory.getLogger(LoadPublisher.class);
+
+    /**
+     * Create a {@code LoadPublisher}.
+     *
+     * @param zooKeeper The {@code ZooKeeper}, must not be {@code null}.
+     * @param path The path of the member node, must not be {@code null}.
+     * @param memberInfo The {@code MemberInfo} the member joined with, must not be {@code null}.
+     */
+    public LoadPublisher(final ZooKeeper zooKeeper, final String path, final MemberInfo memberInfo) {
+        if(zooKeeper==null)
+            throw new IllegalArgumentException("zooKeeper must not be null");
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        if(memberInfo==null)
+            throw new IllegalArgumentException("memberInfo must not be null");
+        this.zooKeeper = zooKeeper;
+        this.path = path;
+        this.memberInfo = memberInfo;
+        this.published = memberInfo;
+    }
+
+    /**
+     * Set the minimum time between writes.
+     *
+     * @param minInterval The minimum time (ms) between writes, must not be negative.
+     */
+    public synchronized void setMinInterval(final long minInterval) {
+        if(minInterval<0)
+            throw new IllegalArgumentException("minInterval must not be negative");
+        this.minInterval = minInterval;
+    }
+
+    public void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Publish the load periodically, so CPU utilization is published even while the number of
+     * in-flight requests does not change.
+     *
+     * @param period The time (ms) between samples, 0 stops sampling.
+     */
+    public synchronized void setSamplePeriod(final long period) {
+        if(period<0)
+            throw new IllegalArgumentException("period must not be negative");
+        if(sampler!=null)
+            sampler.cancel(false);
+        sampler = null;
+        if(period>0 && !closed) {
+            sampler = scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    publish();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the {@code MemberInfo} periodically even if the load has not changed.
+     *
+     * @param interval The longest time (ms) between writes, 0 stops heartbeats.
+     */
+    public synchronized void setHeartbeatInterval(final long interval) {
+        if(interval<0)
+            throw new IllegalArgumentException("interval must not be negative");
+        if(heartbeat!=null)
+            heartbeat.cancel(false);
+        heartbeat = null;
+        if(interval>0 && !closed) {
+            heartbeat = scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    boolean due;
+                    synchronized(LoadPublisher.this) {
+                        /* A write made for a load change is as good as a heartbeat */
+                        due = System.currentTimeMillis()-lastWrite>=interval/2;
+                    }
+                    if(due)
+                        publish(true);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Record that the member has started processing a request.
+     */
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+        publish();
+    }
+
+    /**
+     * Record that the member has finished processing a request.
+     */
+    public void requestCompleted() {
+        inFlight.decrementAndGet();
+        publish();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the {@code MemberInfo} most recently written.
+     */
+    public synchronized MemberInfo getPublished() {
+        return published;
+    }
+
+    /**
+     * Stop publishing.
+     */
+    public synchronized void close() {
+        closed = true;
+        if(sampler!=null)
+            sampler.cancel(false);
+        if(heartbeat!=null)
+            heartbeat.cancel(false);
+    }
+
+    /**
+     * Publish the current load, subject to throttling.
+     */
+    public void publish() {
+        publish(false);
+    }
+
+    private synchronized void publish(final boolean force) {
+        if(closed || writing || scheduled)
+            return;
+        long delay = lastWrite+minInterval-System.currentTimeMillis();
+        if(delay>0) {
+            scheduled = true;
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    synchronized(LoadPublisher.this) {
+                        scheduled = false;
+                    }
+                    publish(force);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        final MemberInfo next = memberInfo.withLoad(inFlight.get(), cpu());
+        /* Small CPU fluctuations are not worth a write */
+        if(!force && next.getInFlight()==published.getInFlight() && Math.abs(next.getCpu()-published.getCpu())<0.05)
+            return;
+        writing = true;
+        lastWrite = System.currentTimeMillis();
+        final long start = metrics.start(ZooKeeperMetrics.Operation.SET_DATA);
+        zooKeeper.setData(path, next.encode(), version, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String p, Object context, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.SET_DATA, start);
+                written(KeeperException.Code.get(rc), next, stat);
+            }
+        }, null);
+    }
+
+    private void written(final KeeperException.Code code, final MemberInfo written, final Stat stat) {
+        synchronized(this) {
+            writing = false;
+            if(KeeperException.Code.OK.equals(code)) {
+                version = stat.getVersion();
+                published = written;
+            } else if(KeeperException.Code.BADVERSION.equals(code)) {
+                logger.warn("{} was modified by another writer, reading its version", path);
+                writing = true;
+                zooKeeper.exists(path, false, new AsyncCallback.StatCallback() {
+                    public void processResult(int rc, String p, Object context, Stat stat) {
+                        synchronized(LoadPublisher.this) {
+                            writing = false;
+                            if(stat!=null)
+                                version = stat.getVersion();
+                            else
+                                closed = true;
+                        }
+                        publish();
+                    }
+                }, null);
+                return;
+            } else if(KeeperException.Code.NONODE.equals(code)) {
+                logger.info("{} has been deleted, no longer publishing load", path);
+                close();
+                return;
+            } else {
+                logger.warn("Unable to publish load to {}, {}", path, code);
+            }
+        }
+        /* Pick up changes made while the write was outstanding */
+        publish();
+    }
+
+    /*
+     * The utilization since the previous sample, or the previous value if that was taken too recently
+     */
+    private double cpu() {
+        if(!(os instanceof com.sun.management.OperatingSystemMXBean))
+            return 0;
+        long time = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        if(time<0)
+            return 0;
+        long now = System.nanoTime();
+        if(cpuTime<0) {
+            cpuTime = time;
+            cpuSampledAt = now;
+            return cpu;
+        }
+        long window = now-cpuSampledAt;
+        if(window<MIN_CPU_WINDOW)
+            return cpu;
+        cpu = Math.max(0, Math.min(1, (double)(time-cpuTime)/window/os.getAvailableProcessors()));
+        cpuTime = time;
+        cpuSampledAt = now;
+        return cpu;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The queue shared by the lock and semaphore recipes. Each acquisition creates an
+ * {@code EPHEMERAL_SEQUENTIAL} node below the queue's path and is granted once its {@link Policy}
+ * finds nothing ahead of it that blocks it. Otherwise it watches only the nodes the policy names,
+ * normally just the node immediately ahead of it, so a release notifies only the waiter that can
+ * proceed.
+ *
+ * <p>When the session expires, pending acquisitions fail with a
+ * {@code KeeperException.SessionExpiredException} and granted leases become invalid.</p>
+ *
+ * @author Dennis Reedy
+ */
+class LockQueue implements ConnectionStateListener {
+    private static final byte[] GRANTED = new byte[]{1};
+    private final ZooKeeperClient client;
+    private final String path;
+    private final Set<Acquisition> pending = Collections.newSetFromMap(new ConcurrentHashMap<Acquisition, Boolean>());
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private volatile boolean closed;
+    private static Logger logger = LoggerFactory.getLogger(LockQueue.class);
+
+    /**
+     * Decides whether a queued node may proceed.
+     */
+    interface Policy {
+        /**
+         * Get the nodes blocking a queued node.
+         *
+         * @param queue The names of the queued nodes, in queue order.
+         * @param index The position of the node being considered.
+         *
+         * @return The names of the nodes to watch, empty if the node may proceed.
+         */
+        List<String> blockers(List<String> queue, int index);
+
+        /**
+         * Whether a node that waited announces its grant by setting its data, notifying its successor.
+         */
+        boolean announce();
+    }
+
+    LockQueue(final ZooKeeperClient client, final String path) {
+        if(client==null)
+            throw new IllegalArgumentException("client must not be null");
+        if(path==null || !path.startsWith("/") || (path.length()>1 && path.endsWith("/")))
+            throw new IllegalArgumentException("path must be an absolute path");
+        this.client = client;
+        this.path = path;
+        client.addConnectionStateListener(this);
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Queue for a lease.
+     *
+     * @param prefix The name prefix of the queued node, identifies the kind of lease.
+     * @param policy Decides when the lease is granted.
+     *
+     * @return The {@code Acquisition}, its future completes with the {@code Lease} once granted.
+     */
+    Acquisition enqueue(final String prefix, final Policy policy) {
+        if(closed)
+            throw new IllegalStateException("The queue for "+path+" has been closed");
+        Acquisition acquisition = new Acquisition(prefix, policy);
+        pending.add(acquisition);
+        acquisition.create();
+        return acquisition;
+    }
+
+    OperationFuture<String> release(final Lease lease) {
+        leases.remove(lease);
+        return delete(lease.getPath());
+    }
+
+    /**
+     * Close the queue, stop listening to the client's connection state. Pending acquisitions are
+     * cancelled and leases still held are released.
+     */
+    void close() {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+        }
+        client.removeConnectionStateListener(this);
+        for(Acquisition acquisition : pending)
+            acquisition.cancel();
+        for(Lease lease : leases)
+            lease.release();
+    }
+
+    public void stateChanged(final ZooKeeperClient client, final ConnectionState state) {
+        if(state!=ConnectionState.LOST)
+            return;
+        for(Acquisition acquisition : pending)
+            acquisition.future.setException(new KeeperException.SessionExpiredException());
+        pending.clear();
+        for(Lease lease : leases) {
+            logger.warn("Session expired, lease {} is no longer held", lease.getPath());
+            lease.invalidate();
+        }
+        leases.clear();
+    }
+
+    private OperationFuture<String> delete(final String node) {
+        final OperationFuture<String> future = new OperationFuture<String>();
+        ZooKeeper zooKeeper = client.getZooKeeper();
+        if(zooKeeper==null) {
+            future.setException(new KeeperException.ConnectionLossException());
+            return future;
+        }
+        zooKeeper.delete(node, -1, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String p, Object context) {
+                /* Already gone is as good as deleted */
+                if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                    future.set(p);
+                else
+                    future.complete(rc, p, p);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Sort node names by their sequence number, the 10 digit suffix added by ZooKeeper.
+     */
+    static List<String> sort(final List<String> children) {
+        List<String> sorted = new ArrayList<String>(children);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return sequence(a).compareTo(sequence(b));
+            }
+        });
+        return sorted;
+    }
+
+    private static String sequence(final String name) {
+        return name.length()<10?name:name.substring(name.length()-10);
+    }
+
+    /**
+     * A queued request for a lease.
+     */
+    class Acquisition implements Watcher {
+        final OperationFuture<Lease> future = new OperationFuture<Lease>();
+        private final String prefix;
+        private final Policy policy;
+        private volatile String node;
+        private volatile boolean cancelled;
+        private volatile boolean waited;
+        private volatile Set<String> watching = Collections.emptySet();
+
+        Acquisition(final String prefix, final Policy policy) {
+            this.prefix = prefix;
+            this.policy = policy;
+        }
+
+        /**
+         * Give up on the acquisition. If the lease was granted in the meantime it is released.
+         */
+        void cancel() {
+            cancelled = true;
+            pending.remove(this);
+            if(!future.isDone())
+                future.setException(new KeeperException.OperationTimeoutException());
+            if(node!=null)
+                delete(node);
+        }
+
+        private void create() {
+            final ZooKeeper zooKeeper = client.getZooKeeper();
+            if(zooKeeper==null) {
+                fail(new KeeperException.ConnectionLossException());
+                return;
+            }
+            zooKeeper.create(path+"/"+prefix, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                             new AsyncCallback.StringCallback() {
+                                 public void processResult(int rc, String p, Object context, String name) {
+                                     KeeperException.Code code = KeeperException.Code.get(rc);
+                                     if(KeeperException.Code.NONODE.equals(code)) {
+                                         createParents(zooKeeper, 0);
+                                     } else if(KeeperException.Code.OK.equals(code)) {
+                                         node = name;
+                                         if(cancelled)
+                                             delete(name);
+                                         else
+                                             evaluate();
+                                     } else {
+                                         fail(KeeperException.create(code, p));
+                                     }
+                                 }
+                             }, null);
+        }
+
+        /*
+         * Create the queue's path one level at a time, then queue
+         */
+        private void createParents(final ZooKeeper zooKeeper, final int from) {
+            int next = path.indexOf('/', from+1);
+            final int end = next<0?path.length():next;
+            zooKeeper.create(path.substring(0, end), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                             new AsyncCallback.StringCallback() {
+                                 public void processResult(int rc, String p, Object context, String name) {
+                                     KeeperException.Code code = KeeperException.Code.get(rc);
+                                     if(!KeeperException.Code.OK.equals(code) && !KeeperException.Code.NODEEXISTS.equals(code))
+                                         fail(KeeperException.create(code, p));
+                                     else if(end==path.length())
+                                         create();
+                                     else
+                                         createParents(zooKeeper, end);
+                                 }
+                             }, null);
+        }
+
+        private void evaluate() {
+            final ZooKeeper zooKeeper = client.getZooKeeper();
+            if(zooKeeper==null || cancelled || future.isDone())
+                return;
+            zooKeeper.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+                public void processResult(int rc, String p, Object context, List<String> children) {
+                    if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                        fail(KeeperException.create(KeeperException.Code.get(rc), p));
+                        return;
+                    }
+                    List<String> queue = sort(children);
+                    String name = node.substring(path.length()+1);
+                    int index = queue.indexOf(name);
+                    if(index<0) {
+                        fail(new KeeperException.NoNodeException(node));
+                        return;
+                    }
+                    List<String> blockers = policy.blockers(queue, index);
+                    if(blockers.isEmpty()) {
+                        granted(zooKeeper);
+                        return;
+                    }
+                    waited = true;
+                    Set<String> watch = new HashSet<String>();
+                    for(String blocker : blockers)
+                        watch.add(path+"/"+blocker);
+                    watching = watch;
+                    for(String blocker : watch) {
+                        zooKeeper.exists(blocker, Acquisition.this, new AsyncCallback.StatCallback() {
+                            public void processResult(int rc, String p, Object context, Stat stat) {
+                                /* Gone before the watch was set */
+                                if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                                    evaluate();
+                            }
+                        }, null);
+                    }
+                }
+            }, null);
+        }
+
+        private synchronized void granted(final ZooKeeper zooKeeper) {
+            if(future.isDone())
+                return;
+            pending.remove(this);
+            Lease lease = new Lease(LockQueue.this, node);
+            leases.add(lease);
+            if(cancelled || !future.set(lease)) {
+                lease.release();
+                return;
+            }
+            if(waited && policy.announce())
+                zooKeeper.setData(node, GRANTED, -1, new AsyncCallback.StatCallback() {
+                    public void processResult(int rc, String p, Object context, Stat stat) {
+                    }
+                }, null);
+        }
+
+        private void fail(final Exception e) {
+            pending.remove(this);
+            if(future.setException(e))
+                logger.warn("Unable to acquire {}, {}", path, e.getMessage());
+            if(node!=null)
+                delete(node);
+        }
+
+        public void process(final WatchedEvent event) {
+            if(event.getType()==Event.EventType.None || !watching.contains(event.getPath()))
+                return;
+            if(event.getType()==Event.EventType.NodeDeleted || event.getType()==Event.EventType.NodeDataChanged)
+                evaluate();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Describes how to reach a group member: its host, port, instance ID and custom attributes, along
+ * with the load the member last published. A {@code MemberInfo} is stored as the data of the
+ * member's node in a compact binary form.
+ *
+ * <p>The encoding starts with a format version byte. Later versions only append fields, so a
+ * reader ignores any bytes following the fields it knows about. Version 2 added the load.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class MemberInfo {
+    /**
+     * The format version written by {@link #encode()}.
+     */
+    public static final int FORMAT_VERSION = 2;
+    private final String host;
+    private final int port;
+    private final long instanceID;
+    private final Map<String, String> attributes;
+    private final int inFlight;
+    private final float cpu;
+
+    /**
+     * Create a {@code MemberInfo}.
+     *
+     * @param host The host name or address of the member, must not be {@code null}.
+     * @param port The port the member accepts requests on, 0 if not applicable.
+     * @param instanceID The member's instance ID.
+     * @param attributes Custom attributes, may be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code host} is {@code null} or the {@code port} is out of range.
+     */
+    public MemberInfo(final String host, final int port, final long instanceID, final Map<String, String> attributes) {
+        this(host, port, instanceID, attributes, 0, 0);
+    }
+
+    private MemberInfo(final String host,
+                       final int port,
+                       final long instanceID,
+                       final Map<String, String> attributes,
+                       final int inFlight,
+                       final float cpu) {
+        if(host==null)
+            throw new IllegalArgumentException("host must not be null");
+        if(port<0 || port>0xFFFF)
+            throw new IllegalArgumentException("port must be between 0 and 65535");
+        this.host = host;
+        this.port = port;
+        this.instanceID = instanceID;
+        this.attributes = attributes==null?Collections.<String, String>emptyMap():
+                          Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributes));
+        this.inFlight = inFlight;
+        this.cpu = cpu;
+    }
+
+    /**
+     * Create a copy of this {@code MemberInfo} with a different load.
+     *
+     * @param inFlight The number of requests the member is processing.
+     * @param cpu The member's CPU utilization, from 0 to 1.
+     *
+     * @return A new {@code MemberInfo}.
+     */
+    public MemberInfo withLoad(final int inFlight, final double cpu) {
+        return new MemberInfo(host, port, instanceID, attributes, Math.max(0, inFlight), (float)Math.max(0, cpu));
+    }
+
+    /**
+     * Get the number of requests the member was processing when it published its load.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the member's CPU utilization, from 0 to 1, when it published its load.
+     */
+    public double getCpu() {
+        return cpu;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getInstanceID() {
+        return instanceID;
+    }
+
+    /**
+     * Get the custom attributes.
+     *
+     * @return An unmodifiable {@code Map} of attributes, never {@code null}.
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(final String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * Encode this {@code MemberInfo}.
+     *
+     * @return The encoded form.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32+host.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            out.writeUTF(host);
+            out.writeShort(port);
+            out.writeLong(instanceID);
+            out.writeShort(attributes.size());
+            for(Map.Entry<String, String> entry : attributes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue()==null?"":entry.getValue());
+            }
+            out.writeInt(inFlight);
+            out.writeFloat(cpu);
+            out.flush();
+        } catch (IOException e) {
+            /* Cannot happen writing to a byte array */
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a {@code MemberInfo}.
+     *
+     * @param data The encoded form, as produced by {@link #encode()}.
+     *
+     * @return The decoded {@code MemberInfo}, or {@code null} if the {@code data} is {@code null} or empty.
+     *
+     * @throws IOException if the {@code data} is not a valid encoding.
+     */
+    public static MemberInfo decode(final byte[] data) throws IOException {
+        if(data==null || data.length==0)
+            return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            int version = in.readUnsignedByte();
+            if(version<1)
+                throw new IOException("Unknown MemberInfo format version "+version);
+            String host = in.readUTF();
+            int port = in.readUnsignedShort();
+            long instanceID = in.readLong();
+            int count = in.readUnsignedShort();
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            for(int i=0; i<count; i++)
+                attributes.put(in.readUTF(), in.readUTF());
+            int inFlight = 0;
+            float cpu = 0;
+            if(version>=2) {
+                inFlight = in.readInt();
+                cpu = in.readFloat();
+            }
+            return new MemberInfo(host, port, instanceID, attributes, inFlight, cpu);
+        } catch (EOFException e) {
+            throw new IOException("Truncated MemberInfo, "+data.length+" bytes");
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if(this==o)
+            return true;
+        if(!(o instanceof MemberInfo))
+            return false;
+        MemberInfo that = (MemberInfo)o;
+        return port==that.port &&
+               instanceID==that.instanceID &&
+               inFlight==that.inFlight &&
+               Float.compare(cpu, that.cpu)==0 &&
+               host.equals(that.host) &&
+               attributes.equals(that.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = host.hashCode();
+        result = 31*result+port;
+        result = 31*result+(int)(instanceID^(instanceID>>>32));
+        result = 31*result+attributes.hashCode();
+        result = 31*result+inFlight;
+        result = 31*result+Float.floatToIntBits(cpu);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d, instanceID: %d, attributes: %s, inFlight: %d, cpu: %.2f",
+                             host, port, instanceID, attributes, inFlight, cpu);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the {@link MemberInfo} of group members. Member data is read once, with a data watch, and
+ * cached by path and node version. Decoding is deferred until the {@code MemberInfo} is first
+ * asked for, and done once per node version. When the watch reports that a member's data changed
+ * the member is read again, the previous entry is served until the new one arrives. When the member
+ * leaves its entry is dropped. If a {@link MembershipStore} is set, data read is recorded in it and
+ * {@link #getCached(String)} falls back to it for members not yet read.
+ *
+ * @author Dennis Reedy
+ */
+public class MemberInfoReader implements Watcher {
+    private final ZooKeeper zooKeeper;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private volatile MembershipStore store;
+    private static Logger logger = LoggerFactory.getLogger(MemberInfoReader.class);
+
+    public MemberInfoReader(final ZooKeeper zooKeeper) {
+        if(zooKeeper==null)
+            throw new IllegalArgumentException("zooKeeper must not be null");
+        this.zooKeeper = zooKeeper;
+    }
+
+    /**
+     * Set the {@code ZooKeeperMetrics} operations are recorded in. Defaults to {@link ZooKeeperMetrics#getInstance()}.
+     *
+     * @param metrics The {@code ZooKeeperMetrics}, must not be {@code null}.
+     */
+    public void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the {@code MembershipStore} member data is recorded in.
+     *
+     * @param store The {@code MembershipStore}, may be {@code null}.
+     */
+    public void setStore(final MembershipStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Get the {@code MemberInfo} of a member, reading it if it is not cached.
+     *
+     * @param path The path of the member node, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code MemberInfo}, or {@code null}
+     * if the member joined without one. If the member does not exist the {@code OperationFuture} fails
+     * with a {@code KeeperException.NoNodeException}; if the data cannot be decoded it fails with an
+     * {@code IOException}.
+     */
+    public OperationFuture<MemberInfo> get(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        Entry entry = cache.get(path);
+        if(entry!=null)
+            return decoded(entry);
+        return read(path);
+    }
+
+    private OperationFuture<MemberInfo> read(final String path) {
+        final OperationFuture<MemberInfo> future = new OperationFuture<MemberInfo>();
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_DATA);
+        zooKeeper.getData(path, this, new AsyncCallback.DataCallback() {
+            public void processResult(int rc, String p, Object context, byte[] data, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_DATA, start);
+                if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                    if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                        dropped(path);
+                    future.complete(rc, p, null);
+                    return;
+                }
+                Entry read = new Entry(stat.getVersion(), data);
+                /* Keep whichever read saw the later version */
+                Entry cached = cache.putIfAbsent(path, read);
+                while(cached!=null && cached.version<read.version) {
+                    if(cache.replace(path, cached, read))
+                        cached = null;
+                    else
+                        cached = cache.putIfAbsent(path, read);
+                }
+                if(cached==null)
+                    record(path, data);
+                decode(cached==null?read:cached, future);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Get the {@code MemberInfo} of a member if it has been read.
+     *
+     * @param path The path of the member node, must not be {@code null}.
+     *
+     * @return The cached {@code MemberInfo}, or {@code null} if it has not been read, the member
+     * joined without one, or it cannot be decoded. If it has not been read and a
+     * {@code MembershipStore} is set, the {@code MemberInfo} last recorded there is returned.
+     */
+    public MemberInfo getCached(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        Entry entry = cache.get(path);
+        if(entry==null) {
+            MembershipStore store = this.store;
+            return store==null?null:store.getMemberInfo(path);
+        }
+        try {
+            return entry.decode();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determine whether the data of a member has been read.
+     *
+     * @param path The path of the member node, must not be {@code null}.
+     *
+     * @return {@code true} if the member's data has been read and cached.
+     */
+    public boolean contains(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        return cache.containsKey(path);
+    }
+
+    /**
+     * Drop the cached {@code MemberInfo} of a member.
+     *
+     * @param path The path of the member node, must not be {@code null}.
+     */
+    public void invalidate(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        cache.remove(path);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public void process(final WatchedEvent event) {
+        if(event.getPath()==null)
+            return;
+        if(event.getType()==Event.EventType.NodeDataChanged) {
+            if(cache.containsKey(event.getPath()))
+                read(event.getPath());
+        } else if(event.getType()==Event.EventType.NodeDeleted) {
+            if(logger.isDebugEnabled())
+                logger.debug("{} deleted, dropping cached MemberInfo", event.getPath());
+            dropped(event.getPath());
+        }
+    }
+
+    private void dropped(final String path) {
+        cache.remove(path);
+        record(path, null);
+    }
+
+    private void record(final String path, final byte[] data) {
+        MembershipStore store = this.store;
+        if(store!=null)
+            store.recordMemberData(path, data==null || data.length==0?null:data);
+    }
+
+    private OperationFuture<MemberInfo> decoded(final Entry entry) {
+        return decode(entry, new OperationFuture<MemberInfo>());
+    }
+
+    private OperationFuture<MemberInfo> decode(final Entry entry, final OperationFuture<MemberInfo> future) {
+        try {
+            future.set(entry.decode());
+        } catch (IOException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    /**
+     * Member data at a node version, decoded on first use.
+     */
+    static class Entry {
+        final int version;
+        private final byte[] data;
+        private volatile MemberInfo decoded;
+
+        Entry(final int version, final byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        MemberInfo decode() throws IOException {
+            MemberInfo memberInfo = decoded;
+            if(memberInfo==null && data!=null && data.length>0) {
+                memberInfo = MemberInfo.decode(data);
+                decoded = memberInfo;
+            }
+            return memberInfo;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Selects a member of a group using the power of two choices: two members are picked at random
+ * from the cached membership, and the one with the lower published load is selected. Load is
+ * compared by in-flight requests, then by CPU utilization.
+ *
+ * <p>Load is read through a {@link MemberInfoReader}, which keeps it current through data watches.
+ * A member whose {@code MemberInfo} has not been read yet is treated as idle, and its read is
+ * started so later selections use its actual load.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class MemberSelector {
+    private final GroupMembership membership;
+    private final MemberInfoReader reader;
+    private final Random random = new Random();
+
+    /**
+     * Create a {@code MemberSelector}.
+     *
+     * @param membership The {@code GroupMembership} of the group to select from, must not be {@code null}.
+     * @param reader The {@code MemberInfoReader} used to read member load, must not be {@code null}.
+     */
+    public MemberSelector(final GroupMembership membership, final MemberInfoReader reader) {
+        if(membership==null)
+            throw new IllegalArgumentException("membership must not be null");
+        if(reader==null)
+            throw new IllegalArgumentException("reader must not be null");
+        this.membership = membership;
+        this.reader = reader;
+    }
+
+    /**
+     * Select a member.
+     *
+     * @return The name of the selected member, or {@code null} if the group has no members.
+     */
+    public String select() {
+        List<String> members = membership.getMembers();
+        int size = members.size();
+        if(size==0)
+            return null;
+        if(size==1)
+            return members.get(0);
+        int first = random.nextInt(size);
+        int second = random.nextInt(size-1);
+        if(second>=first)
+            second++;
+        String a = members.get(first);
+        String b = members.get(second);
+        return compare(load(a), load(b))<=0?a:b;
+    }
+
+    private MemberInfo load(final String member) {
+        String path = membership.getPath().equals("/")?"/"+member:membership.getPath()+"/"+member;
+        if(!reader.contains(path)) {
+            reader.get(path);
+            return null;
+        }
+        return reader.getCached(path);
+    }
+
+    static int compare(final MemberInfo a, final MemberInfo b) {
+        int inFlightA = a==null?0:a.getInFlight();
+        int inFlightB = b==null?0:b.getInFlight();
+        if(inFlightA!=inFlightB)
+            return inFlightA<inFlightB?-1:1;
+        return Double.compare(a==null?0:a.getCpu(), b==null?0:b.getCpu());
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.Collection;
+
+/**
+ * Notified when the members of a group change.
+ *
+ * @author Dennis Reedy
+ */
+public interface MembershipListener {
+    /**
+     * Notification that the members of a group have changed.
+     *
+     * @param snapshot The current membership of the group.
+     * @param added Members that have joined since the previous notification.
+     * @param removed Members that have left since the previous notification.
+     */
+    void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed);
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of the members of a group at a point in time.
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipSnapshot {
+    private final String path;
+    private final List<String> members;
+    private final int version;
+    private final long zxid;
+    private final boolean stale;
+
+    MembershipSnapshot(final String path, final List<String> members, final int version, final long zxid, final boolean stale) {
+        this.path = path;
+        this.members = members;
+        this.version = version;
+        this.zxid = zxid;
+        this.stale = stale;
+    }
+
+    static MembershipSnapshot empty(final String path) {
+        return new MembershipSnapshot(path, Collections.<String>emptyList(), -1, -1, true);
+    }
+
+    MembershipSnapshot asStale(final boolean stale) {
+        return stale==this.stale?this:new MembershipSnapshot(path, members, version, zxid, stale);
+    }
+
+    /**
+     * Get the path of the group node.
+     *
+     * @return The path of the group node.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the members of the group.
+     *
+     * @return An unmodifiable {@code List} of member names. Never {@code null}.
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the child version ({@code cversion}) of the group node this snapshot was read at.
+     *
+     * @return The child version of the group node, or -1 if the group has not been read or does not exist.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the zxid of the last change to the group's children ({@code pzxid}) this snapshot was read at.
+     *
+     * @return The zxid of the last membership change, or -1 if the group has not been read or does not exist.
+     */
+    public long getZxid() {
+        return zxid;
+    }
+
+    /**
+     * Determine whether this snapshot may be out of date, either because it has not been read yet or
+     * because the client is not currently connected to the ensemble.
+     *
+     * @return {@code true} if the view may be stale.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, members: %d, version: %d, zxid: 0x%x%s",
+                             path, members.size(), version, zxid, stale?", stale":"");
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the last known membership of groups, and the data of their members, to a local file so
+ * that a restarted client can serve a stale view, flagged as such, before it has reached the
+ * ensemble. Once connected the groups are read again and reconciled with the stored view.
+ *
+ * <p>The file is a log: a header followed by records, each a length, a CRC32 and a body. A group is
+ * recorded in full when it is first read, after that only the members added and removed are
+ * appended. On {@link #open()} the file is memory-mapped and replayed, a record that is cut short
+ * or fails its checksum ends the replay and is truncated. The log is compacted, rewriting the
+ * current state to a new file, once it has grown well past the size of that state.</p>
+ *
+ * <p>Records are written, and the log compacted, by a writer thread so that recording never blocks
+ * the caller, typically the ZooKeeper event thread. They are not forced to disk as they are written,
+ * a crash may lose the most recent changes. That is acceptable for a view that is reconciled on
+ * start. The data of a member is only appended when the member joins or leaves, changes to it in
+ * between, such as its load, are kept in memory and written when the log is compacted.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipStore {
+    /**
+     * The size (bytes) the log may grow to before it is considered for compaction.
+     */
+    public static final long DEFAULT_COMPACT_SIZE = 1024*1024;
+    private static final int MAGIC = 0x525a4d53;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final byte SNAPSHOT = 1;
+    private static final byte CHANGE = 2;
+    private static final byte MEMBER_DATA = 3;
+    private final File file;
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+    private final Map<String, byte[]> memberData = new HashMap<String, byte[]>();
+    private volatile long compactSize = DEFAULT_COMPACT_SIZE;
+    /* Once open, the file is only written by the writer */
+    private long compactedSize = HEADER_SIZE;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ExecutorService writer;
+    private static Logger logger = LoggerFactory.getLogger(MembershipStore.class);
+
+    /**
+     * The state of a group as recorded.
+     */
+    static class Group {
+        final Set<String> members = new LinkedHashSet<String>();
+        int version = -1;
+        long zxid = -1;
+    }
+
+    /**
+     * Create a {@code MembershipStore}.
+     *
+     * @param file The file to persist to, must not be {@code null}. Created by {@link #open()} if it does not exist.
+     */
+    public MembershipStore(final File file) {
+        if(file==null)
+            throw new IllegalArgumentException("file must not be null");
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set the size the log may grow to before it is considered for compaction. The log is compacted
+     * once it exceeds this size and is more than four times the size of the state it holds.
+     *
+     * @param compactSize The size in bytes, must be greater than zero.
+     */
+    public void setCompactSize(final long compactSize) {
+        if(compactSize<1)
+            throw new IllegalArgumentException("compactSize must be greater than zero");
+        this.compactSize = compactSize;
+    }
+
+    /**
+     * Replay the file, then open it for appending.
+     *
+     * @throws IOException if the file cannot be read or created.
+     */
+    public synchronized void open() throws IOException {
+        if(writer!=null)
+            return;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent!=null && !parent.exists() && !parent.mkdirs())
+            throw new IOException("Unable to create "+parent);
+        recover();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long valid = replay();
+        if(valid<HEADER_SIZE) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).put(FORMAT_VERSION).flip();
+            channel.write(header, 0);
+            valid = HEADER_SIZE;
+        } else if(valid<channel.size()) {
+            logger.warn("Truncating {} at {}, {} bytes could not be read", file, valid, channel.size()-valid);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        compactedSize = valid;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MembershipStore-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.info("Opened {}, {} groups and {} members known", file, groups.size(), memberData.size());
+    }
+
+    /*
+     * A compacted file left behind replaces the log only if the log is gone, otherwise the
+     * compaction did not complete and the log is intact
+     */
+    private void recover() throws IOException {
+        File compacted = getCompactFile();
+        if(!compacted.exists())
+            return;
+        if(file.exists()) {
+            if(!compacted.delete())
+                logger.warn("Unable to delete incomplete {}", compacted);
+        } else if(compacted.renameTo(file)) {
+            logger.info("Recovered {} from {}", file, compacted);
+        } else {
+            throw new IOException("Unable to recover "+file+" from "+compacted);
+        }
+    }
+
+    private File getCompactFile() {
+        return new File(file.getPath()+".compact");
+    }
+
+    /**
+     * Write the records still queued, then close the file.
+     */
+    public void close() {
+        ExecutorService closing;
+        synchronized(this) {
+            closing = writer;
+            writer = null;
+        }
+        if(closing==null)
+            return;
+        closing.shutdown();
+        try {
+            if(!closing.awaitTermination(30, TimeUnit.SECONDS))
+                logger.warn("Timed out writing the records queued for {}", file);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this) {
+            try {
+                channel.force(false);
+                raf.close();
+            } catch(IOException e) {
+                logger.warn("Closing {}", file, e);
+            }
+            channel = null;
+            raf = null;
+        }
+    }
+
+    /**
+     * Get the recorded membership of a group.
+     *
+     * @param path The path of the group node, must not be {@code null}.
+     *
+     * @return A stale {@code MembershipSnapshot}, or {@code null} if the group has not been recorded.
+     */
+    public synchronized MembershipSnapshot getSnapshot(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        Group group = groups.get(path);
+        if(group==null)
+            return null;
+        return new MembershipSnapshot(path,
+                                      Collections.unmodifiableList(new ArrayList<String>(group.members)),
+                                      group.version,
+                                      group.zxid,
+                                      true);
+    }
+
+    /**
+     * Get the recorded {@code MemberInfo} of a member.
+     *
+     * @param path The path of the member node, must not be {@code null}.
+     *
+     * @return The {@code MemberInfo}, or {@code null} if none has been recorded or it cannot be decoded.
+     */
+    public MemberInfo getMemberInfo(final String path) {
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        byte[] data;
+        synchronized(this) {
+            data = memberData.get(path);
+        }
+        if(data==null)
+            return null;
+        try {
+            return MemberInfo.decode(data);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Record the membership of a group as it changes. The group is recorded in full once it has
+     * been read, then each change is appended.
+     *
+     * @param membership The {@code GroupMembership}, must not be {@code null}.
+     */
+    public void attach(final GroupMembership membership) {
+        if(membership==null)
+            throw new IllegalArgumentException("membership must not be null");
+        membership.getInitialized().addListener(new OperationListener<MembershipSnapshot>() {
+            public void operationComplete(OperationFuture<MembershipSnapshot> future) {
+                if(future.getFailure()==null)
+                    recordSnapshot(membership.getSnapshot());
+                membership.addListener(new MembershipListener() {
+                    public void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed) {
+                        recordChange(snapshot, added, removed);
+                    }
+                });
+            }
+        });
+    }
+
+    synchronized void recordSnapshot(final MembershipSnapshot snapshot) {
+        Group group = new Group();
+        group.members.addAll(snapshot.getMembers());
+        group.version = snapshot.getVersion();
+        group.zxid = snapshot.getZxid();
+        groups.put(snapshot.getPath(), group);
+        append(SNAPSHOT, snapshot.getPath(), group.zxid, group.version, group.members, Collections.<String>emptyList());
+    }
+
+    synchronized void recordChange(final MembershipSnapshot snapshot,
+                                   final Collection<String> added,
+                                   final Collection<String> removed) {
+        Group group = groups.get(snapshot.getPath());
+        if(group==null) {
+            recordSnapshot(snapshot);
+            return;
+        }
+        group.members.removeAll(removed);
+        group.members.addAll(added);
+        group.version = snapshot.getVersion();
+        group.zxid = snapshot.getZxid();
+        append(CHANGE, snapshot.getPath(), group.zxid, group.version, added, removed);
+    }
+
+    /**
+     * Record the data of a member, {@code null} if the member has gone. Only a member joining or
+     * leaving is appended, other changes are written when the log is compacted.
+     */
+    synchronized void recordMemberData(final String path, final byte[] data) {
+        byte[] recorded = memberData.get(path);
+        if(data==null && recorded==null || data!=null && Arrays.equals(data, recorded))
+            return;
+        if(data==null)
+            memberData.remove(path);
+        else
+            memberData.put(path, data);
+        if(writer==null || data!=null && recorded!=null)
+            return;
+        try {
+            submit(path, memberData(path, data));
+        } catch(IOException e) {
+            logger.warn("Unable to record data of {} in {}", path, file, e);
+        }
+    }
+
+    private static byte[] memberData(final String path, final byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MEMBER_DATA);
+        out.writeUTF(path);
+        out.writeInt(data==null?-1:data.length);
+        if(data!=null)
+            out.write(data);
+        return bytes.toByteArray();
+    }
+
+    private void append(final byte type,
+                        final String path,
+                        final long zxid,
+                        final int version,
+                        final Collection<String> added,
+                        final Collection<String> removed) {
+        if(writer==null)
+            return;
+        try {
+            submit(path, group(type, path, zxid, version, added, removed));
+        } catch(IOException e) {
+            logger.warn("Unable to record {} in {}", path, file, e);
+        }
+    }
+
+    private static byte[] group(final byte type,
+                                final String path,
+                                final long zxid,
+                                final int version,
+                                final Collection<String> added,
+                                final Collection<String> removed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(path);
+        out.writeLong(zxid);
+        out.writeInt(version);
+        writeNames(out, added);
+        writeNames(out, removed);
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Queue a record for the writer, called holding the lock so records are written in the order
+     * they are made
+     */
+    private void submit(final String path, final byte[] body) {
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    write(body);
+                } catch(IOException e) {
+                    logger.warn("Unable to record {} in {}", path, file, e);
+                }
+            }
+        });
+    }
+
+    private void write(final byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(8+body.length);
+        record.putInt(body.length).putInt((int)crc.getValue()).put(body).flip();
+        while(record.hasRemaining())
+            channel.write(record);
+        long size = channel.position();
+        if(size>compactSize && size>4*compactedSize)
+            compact();
+    }
+
+    /*
+     * Write the current state to a new file and replace the log with it. Records queued behind this
+     * one are already part of the state, appending them again after it leaves the state unchanged
+     */
+    private void compact() throws IOException {
+        List<byte[]> state = new ArrayList<byte[]>();
+        synchronized(this) {
+            for(Map.Entry<String, Group> entry : groups.entrySet())
+                state.add(group(SNAPSHOT,
+                                entry.getKey(),
+                                entry.getValue().zxid,
+                                entry.getValue().version,
+                                entry.getValue().members,
+                                Collections.<String>emptyList()));
+            for(Map.Entry<String, byte[]> entry : memberData.entrySet())
+                state.add(memberData(entry.getKey(), entry.getValue()));
+        }
+        File compacted = getCompactFile();
+        FileOutputStream stream = new FileOutputStream(compacted);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            for(byte[] body : state)
+                writeRecord(out, body);
+            /* The compacted file must be complete before it can replace the log */
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        raf.close();
+        /* Renaming over the log replaces it atomically where the platform allows it. Elsewhere the log
+         * is deleted first, should the process die before the rename open() recovers the compacted file */
+        boolean replaced = compacted.renameTo(file) || file.delete() && compacted.renameTo(file);
+        File current = file;
+        if(!replaced) {
+            if(file.exists()) {
+                logger.warn("Unable to replace {} with {}, continuing with the log as is", file, compacted);
+                compacted.delete();
+            } else {
+                logger.warn("Unable to rename {} to {}, appending to it until the next start", compacted, file);
+                current = compacted;
+            }
+        }
+        raf = new RandomAccessFile(current, "rw");
+        channel = raf.getChannel();
+        /* Also backs off from compacting again when the log could not be replaced */
+        compactedSize = channel.size();
+        channel.position(compactedSize);
+        if(replaced && logger.isDebugEnabled())
+            logger.debug("Compacted {} to {} bytes", file, compactedSize);
+    }
+
+    private static void writeRecord(final DataOutputStream out, final byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        out.writeInt(body.length);
+        out.writeInt((int)crc.getValue());
+        out.write(body);
+    }
+
+    private static void writeNames(final DataOutputStream out, final Collection<String> names) throws IOException {
+        out.writeInt(names.size());
+        for(String name : names)
+            out.writeUTF(name);
+    }
+
+    private static List<String> readNames(final DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<String>(count);
+        for(int i=0; i<count; i++)
+            names.add(in.readUTF());
+        return names;
+    }
+
+    /*
+     * Replay the mapped file, returning the offset just past the last valid record
+     */
+    private long replay() throws IOException {
+        long size = channel.size();
+        if(size<HEADER_SIZE)
+            return 0;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if(buffer.getInt()!=MAGIC || buffer.get()!=FORMAT_VERSION) {
+            logger.warn("{} is not a membership store, starting afresh", file);
+            return 0;
+        }
+        while(buffer.remaining()>=8) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length<1 || length>buffer.remaining()) {
+                buffer.position(position);
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if((int)crc.getValue()!=checksum) {
+                buffer.position(position);
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(body)));
+        }
+        return buffer.position();
+    }
+
+    private void apply(final DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String path = in.readUTF();
+        if(type==MEMBER_DATA) {
+            int length = in.readInt();
+            if(length<0) {
+                memberData.remove(path);
+            } else {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                memberData.put(path, data);
+            }
+            return;
+        }
+        long zxid = in.readLong();
+        int version = in.readInt();
+        List<String> added = readNames(in);
+        List<String> removed = readNames(in);
+        Group group = groups.get(path);
+        if(type==SNAPSHOT || group==null) {
+            group = new Group();
+            groups.put(path, group);
+        }
+        group.members.removeAll(removed);
+        group.members.addAll(added);
+        group.zxid = zxid;
+        group.version = version;
+    }
+}
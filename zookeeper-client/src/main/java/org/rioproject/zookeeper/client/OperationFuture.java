@@ -0,0 +1,204 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@code Future} that is completed by a ZooKeeper asynchronous callback. Completion can be
+ * observed without blocking by adding an {@link OperationListener}, and the
+ * {@code KeeperException.Code} of the operation is available once it completes.
+ *
+ * @author Dennis Reedy
+ */
+public class OperationFuture<T> implements Future<T> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private volatile T result;
+    private volatile Throwable failure;
+    private final List<OperationListener<T>> listeners = new ArrayList<OperationListener<T>>();
+    private static Logger logger = LoggerFactory.getLogger(OperationFuture.class);
+
+    /**
+     * Create an {@code OperationFuture} that has already completed with a result.
+     *
+     * @param result The result, may be {@code null}.
+     *
+     * @return A completed {@code OperationFuture}.
+     */
+    public static <T> OperationFuture<T> completed(final T result) {
+        OperationFuture<T> future = new OperationFuture<T>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * Complete the {@code OperationFuture} based on the return code of a ZooKeeper callback.
+     *
+     * @param rc The return code.
+     * @param path The path of the operation.
+     * @param result The result to use if the return code is {@code OK}.
+     *
+     * @return {@code true} if this call completed the {@code OperationFuture}.
+     */
+    public boolean complete(final int rc, final String path, final T result) {
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        if(KeeperException.Code.OK.equals(code))
+            return set(result);
+        return setException(KeeperException.create(code, path));
+    }
+
+    /**
+     * Complete the {@code OperationFuture} with a result.
+     *
+     * @param result The result, may be {@code null}.
+     *
+     * @return {@code true} if this call completed the {@code OperationFuture}, {@code false} if
+     * it had already been completed.
+     */
+    public boolean set(final T result) {
+        if(!completed.compareAndSet(false, true))
+            return false;
+        this.result = result;
+        done.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Complete the {@code OperationFuture} exceptionally.
+     *
+     * @param failure The cause of the failure, must not be {@code null}.
+     *
+     * @return {@code true} if this call completed the {@code OperationFuture}, {@code false} if
+     * it had already been completed.
+     */
+    public boolean setException(final Throwable failure) {
+        if(failure==null)
+            throw new IllegalArgumentException("failure must not be null");
+        if(!completed.compareAndSet(false, true))
+            return false;
+        this.failure = failure;
+        done.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Add a listener to be notified when the operation completes. If the operation has already
+     * completed the listener is notified immediately on the calling thread.
+     *
+     * @param listener The {@code OperationListener}, must not be {@code null}.
+     *
+     * @return This {@code OperationFuture}, allowing calls to be chained.
+     */
+    public OperationFuture<T> addListener(final OperationListener<T> listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener must not be null");
+        synchronized(listeners) {
+            if(!isDone()) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Get the result code of the operation.
+     *
+     * @return {@code KeeperException.Code.OK} if the operation succeeded, the code of the
+     * {@code KeeperException} if it failed with one, {@code KeeperException.Code.SYSTEMERROR} if it
+     * failed for another reason, or {@code null} if the operation has not completed.
+     */
+    public KeeperException.Code getCode() {
+        if(!isDone())
+            return null;
+        Throwable t = failure;
+        if(t==null)
+            return KeeperException.Code.OK;
+        return t instanceof KeeperException?((KeeperException)t).code():KeeperException.Code.SYSTEMERROR;
+    }
+
+    /**
+     * Get the cause of a failed operation.
+     *
+     * @return The cause of the failure, or {@code null} if the operation succeeded or has not completed.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * ZooKeeper operations cannot be cancelled once submitted.
+     *
+     * @return {@code false}
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount()==0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit))
+            throw new TimeoutException("Timed out waiting for operation to complete");
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if(failure!=null)
+            throw new ExecutionException(failure);
+        return result;
+    }
+
+    private void notifyListeners() {
+        List<OperationListener<T>> toNotify;
+        synchronized(listeners) {
+            toNotify = new ArrayList<OperationListener<T>>(listeners);
+            listeners.clear();
+        }
+        for(OperationListener<T> listener : toNotify)
+            notifyListener(listener);
+    }
+
+    private void notifyListener(final OperationListener<T> listener) {
+        try {
+            listener.operationComplete(this);
+        } catch(RuntimeException e) {
+            logger.warn("Notifying {} of completion", listener, e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * Bounds the number of outstanding asynchronous ZooKeeper requests. Requests are submitted as
+ * {@code Runnable}s that issue an asynchronous call, the call's callback must invoke
+ * {@link #release()} once it has been processed. Requests beyond the window are queued and issued
+ * as earlier requests complete, so the window can be driven from the ZooKeeper event thread
+ * without ever blocking it.
+ *
+ * @author Dennis Reedy
+ */
+public class RequestWindow {
+    private final int size;
+    private final Queue<Runnable> pending = new LinkedList<Runnable>();
+    private int inFlight;
+    private boolean closed;
+
+    /**
+     * Create a {@code RequestWindow}.
+     *
+     * @param size The maximum number of outstanding requests, must be greater than zero.
+     *
+     * @throws IllegalArgumentException if the {@code size} is less than 1.
+     */
+    public RequestWindow(final int size) {
+        if(size<1)
+            throw new IllegalArgumentException("size must be greater than zero");
+        this.size = size;
+    }
+
+    /**
+     * Issue a request now if the window allows, otherwise queue it.
+     *
+     * @param request The request to issue, must not be {@code null}.
+     */
+    public void submit(final Runnable request) {
+        if(request==null)
+            throw new IllegalArgumentException("request must not be null");
+        synchronized(this) {
+            if(closed)
+                return;
+            if(inFlight>=size) {
+                pending.add(request);
+                return;
+            }
+            inFlight++;
+        }
+        request.run();
+    }
+
+    /**
+     * Signal that an outstanding request has completed, issuing the next queued request if there is one.
+     */
+    public void release() {
+        Runnable next;
+        synchronized(this) {
+            next = closed?null:pending.poll();
+            if(next==null)
+                inFlight--;
+        }
+        if(next!=null)
+            next.run();
+    }
+
+    /**
+     * Discard queued requests and stop accepting new ones.
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, used to space out attempts to connect to the ensemble.
+ *
+ * <p>The delay before retry {@code n} (starting at zero) is a random value between half and all of
+ * {@code min(maxDelay, baseDelay * 2^n)}, so clients that lost the ensemble at the same time do not
+ * reconnect in lock step.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class RetryPolicy {
+    /**
+     * Retry 5 times, starting at 1 second and backing off to at most 30 seconds.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(1000, 30*1000, 5);
+    /**
+     * Never retry.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 1, 0);
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int maxRetries;
+    private final Random random = new Random();
+
+    /**
+     * Create a {@code RetryPolicy}.
+     *
+     * @param baseDelay The delay before the first retry in milliseconds, must be greater than zero.
+     * @param maxDelay The maximum delay between retries in milliseconds, must not be less than {@code baseDelay}.
+     * @param maxRetries The maximum number of retries, must not be negative.
+     *
+     * @throws IllegalArgumentException if any argument is out of range.
+     */
+    public RetryPolicy(final long baseDelay, final long maxDelay, final int maxRetries) {
+        if(baseDelay<1)
+            throw new IllegalArgumentException("baseDelay must be greater than zero");
+        if(maxDelay<baseDelay)
+            throw new IllegalArgumentException("maxDelay must not be less than baseDelay");
+        if(maxRetries<0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Determine whether another attempt should be made.
+     *
+     * @param retry The number of retries made so far.
+     *
+     * @return {@code true} if another attempt should be made.
+     */
+    public boolean allowRetry(final int retry) {
+        return retry<maxRetries;
+    }
+
+    /**
+     * Get the delay before a retry.
+     *
+     * @param retry The number of retries made so far.
+     *
+     * @return The time to wait in milliseconds.
+     */
+    public long getDelay(final int retry) {
+        long delay = Math.min(maxDelay, baseDelay<<Math.min(retry, 30));
+        if(delay<=0)
+            delay = maxDelay;
+        long half = delay/2;
+        synchronized(random) {
+            return half+(long)(random.nextDouble()*(delay-half));
+        }
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes a subtree using only asynchronous ZooKeeper calls, so it is safe to run from the
+ * ZooKeeper event thread. Nodes are removed depth first, a node is deleted as soon as its last
+ * child has been deleted, and the number of outstanding requests is bounded.
+ *
+ * @author Dennis Reedy
+ */
+class TreeDeleter {
+    private final ZooKeeper zooKeeper;
+    private final RequestWindow window;
+    private final ZooKeeperMetrics metrics;
+    private final OperationFuture<Integer> future = new OperationFuture<Integer>();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private static Logger logger = LoggerFactory.getLogger(TreeDeleter.class);
+
+    TreeDeleter(final ZooKeeper zooKeeper, final int maxInFlight, final ZooKeeperMetrics metrics) {
+        this.zooKeeper = zooKeeper;
+        this.metrics = metrics;
+        this.window = new RequestWindow(maxInFlight);
+    }
+
+    /**
+     * Delete the node at {@code path} and everything below it.
+     *
+     * @param path The root of the subtree to delete.
+     *
+     * @return An {@code OperationFuture} that completes with the number of nodes deleted once the
+     * subtree is gone. If the root does not exist the result is zero.
+     */
+    OperationFuture<Integer> delete(final String path) {
+        visit(new Node(path, null));
+        return future;
+    }
+
+    private void visit(final Node node) {
+        window.submit(new Runnable() {
+            public void run() {
+                final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+                zooKeeper.getChildren(node.path, false, new AsyncCallback.Children2Callback() {
+                    public void processResult(int rc, String path, Object context, List<String> children, Stat stat) {
+                        metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                        window.release();
+                        KeeperException.Code code = KeeperException.Code.get(rc);
+                        if(KeeperException.Code.OK.equals(code)) {
+                            if(children.isEmpty()) {
+                                remove(node);
+                            } else {
+                                node.remaining.set(children.size());
+                                for(String child : children)
+                                    visit(new Node(childPath(node.path, child), node));
+                            }
+                        } else if(KeeperException.Code.NONODE.equals(code)) {
+                            completed(node);
+                        } else {
+                            failed(code, path);
+                        }
+                    }
+                }, null);
+            }
+        });
+    }
+
+    private void remove(final Node node) {
+        window.submit(new Runnable() {
+            public void run() {
+                final long start = metrics.start(ZooKeeperMetrics.Operation.DELETE);
+                zooKeeper.delete(node.path, -1, new AsyncCallback.VoidCallback() {
+                    public void processResult(int rc, String path, Object context) {
+                        metrics.stop(ZooKeeperMetrics.Operation.DELETE, start);
+                        window.release();
+                        KeeperException.Code code = KeeperException.Code.get(rc);
+                        if(KeeperException.Code.OK.equals(code)) {
+                            deleted.incrementAndGet();
+                            completed(node);
+                        } else if(KeeperException.Code.NONODE.equals(code)) {
+                            completed(node);
+                        } else if(KeeperException.Code.NOTEMPTY.equals(code)) {
+                            /* Children were added after we looked, walk the node again */
+                            visit(node);
+                        } else {
+                            failed(code, path);
+                        }
+                    }
+                }, null);
+            }
+        });
+    }
+
+    private void completed(final Node node) {
+        if(node.parent==null) {
+            if(logger.isDebugEnabled())
+                logger.debug("Deleted {} nodes under {}", deleted.get(), node.path);
+            future.set(deleted.get());
+        } else if(node.parent.remaining.decrementAndGet()==0) {
+            remove(node.parent);
+        }
+    }
+
+    private void failed(final KeeperException.Code code, final String path) {
+        logger.warn("Unable to delete {}, {}", path, code);
+        window.close();
+        future.setException(KeeperException.create(code, path));
+    }
+
+    private static String childPath(final String parent, final String child) {
+        return parent.endsWith("/")?parent+child:String.format("%s/%s", parent, child);
+    }
+
+    private static class Node {
+        final String path;
+        final Node parent;
+        final AtomicInteger remaining = new AtomicInteger();
+
+        Node(final String path, final Node parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+}
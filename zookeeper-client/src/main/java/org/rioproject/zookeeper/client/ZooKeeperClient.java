@@ -22,47 +22,269 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Connects to a ZooKeeper ensemble.
+ *
+ * <p>By default each {@code ZooKeeperClient} has its own session. A {@code ZooKeeperClient} created
+ * in shared mode uses a reference counted session that is shared by all shared clients in the
+ * JVM connecting with the same connect string. Each client receives session events through the
+ * {@code Watcher}s registered with {@link #register(Watcher)}, and closing a client only closes the
+ * session when the last client using it is closed. Consumers of a shared session must not call
+ * {@code ZooKeeper.close()} or {@code ZooKeeper.register(Watcher)} directly.</p>
+ *
+ * <p>Connecting does not block. Each connection attempt must succeed within the
+ * {@link #setConnectTimeout(long) connect timeout}, failed attempts are retried according to the
+ * {@link #setRetryPolicy(RetryPolicy) retry policy}, and if the session expires a new session is
+ * established automatically. {@link ConnectionStateListener}s are told when the connection is
+ * established, suspended, lost and re-established.</p>
+ *
+ * <p>A client that {@link #setCanBeReadOnly(boolean) can be read-only} keeps serving reads from a
+ * server that has lost contact with the quorum, {@link #isReadOnly()} tells whether that is the
+ * case. Read-heavy consumers can set {@link #setPreferredHosts(String) preferred hosts}, such as
+ * the observers local to them, that are tried before the rest of the ensemble.</p>
+ *
  * @author Dennis Reedy
  */
 public class ZooKeeperClient {
-    private ZooKeeper zooKeeper;
-    private final ExecutorService futuresExecutor = Executors.newCachedThreadPool();
+    /**
+     * The default time allowed for each connection attempt, in milliseconds.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 15*1000;
+    private final boolean shared;
+    private volatile ZooKeeperSession session;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private boolean canBeReadOnly;
+    private String preferredHosts;
+    private final List<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+    private final List<ConnectionStateListener> stateListeners = new CopyOnWriteArrayList<ConnectionStateListener>();
+    private static final Map<String, ZooKeeperSession> sharedSessions = new HashMap<String, ZooKeeperSession>();
     private static Logger logger = LoggerFactory.getLogger(ZooKeeperClient.class);
 
-    public Future<ZooKeeper> connect(final String hosts, final int timeout) throws IOException, InterruptedException {
-        ZooKeeperFutureTask task = new ZooKeeperFutureTask();
-        zooKeeper = new ZooKeeper(hosts, timeout, task);
-        return futuresExecutor.submit(task);
+    /**
+     * Create a {@code ZooKeeperClient} with its own session.
+     */
+    public ZooKeeperClient() {
+        this(false);
     }
 
-    public void close() {
-        if (zooKeeper != null) {
-            try {
-                zooKeeper.close();
-            } catch (InterruptedException e) {
-                logger.warn("While close ZooKeeper", e);
+    /**
+     * Create a {@code ZooKeeperClient}.
+     *
+     * @param shared If {@code true} the client uses a session shared with other shared clients in
+     * the JVM that connect to the same hosts.
+     */
+    public ZooKeeperClient(final boolean shared) {
+        this.shared = shared;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Set the time allowed for each connection attempt. Takes effect on the next {@link #connect(String, int)}.
+     *
+     * @param connectTimeout The time allowed in milliseconds, must be greater than zero.
+     */
+    public void setConnectTimeout(final long connectTimeout) {
+        if(connectTimeout<1)
+            throw new IllegalArgumentException("connectTimeout must be greater than zero");
+        this.connectTimeout = connectTimeout;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the policy used to retry failed connection attempts. Takes effect on the next
+     * {@link #connect(String, int)}.
+     *
+     * @param retryPolicy The {@code RetryPolicy}, must not be {@code null}.
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        if(retryPolicy==null)
+            throw new IllegalArgumentException("retryPolicy must not be null");
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Allow the session to connect to a server that has lost contact with the quorum. Such a server
+     * serves reads, which may be out of date, and fails writes, including the creation of ephemeral
+     * nodes. Takes effect on the next {@link #connect(String, int)}.
+     *
+     * @param canBeReadOnly {@code true} to allow read-only connections.
+     */
+    public void setCanBeReadOnly(final boolean canBeReadOnly) {
+        this.canBeReadOnly = canBeReadOnly;
+    }
+
+    public boolean canBeReadOnly() {
+        return canBeReadOnly;
+    }
+
+    /**
+     * Set the servers to try before the rest of the ensemble on each connection attempt, typically
+     * the observers local to the client. If none of them can be reached within the connect timeout
+     * the full connect string is tried. Takes effect on the next {@link #connect(String, int)}.
+     *
+     * @param preferredHosts Comma separated host:port pairs, {@code null} to treat all servers alike.
+     * The chroot suffix of the connect string is applied to them.
+     */
+    public void setPreferredHosts(final String preferredHosts) {
+        this.preferredHosts = preferredHosts==null || preferredHosts.trim().length()==0?null:preferredHosts.trim();
+    }
+
+    public String getPreferredHosts() {
+        return preferredHosts;
+    }
+
+    /**
+     * Determine whether the client is connected to a server that has lost contact with the quorum.
+     *
+     * @return {@code true} if reads are being served by a read-only server, and may be out of date.
+     */
+    public boolean isReadOnly() {
+        ZooKeeperSession zooKeeperSession = session;
+        return zooKeeperSession!=null && zooKeeperSession.isReadOnly();
+    }
+
+    public void addConnectionStateListener(final ConnectionStateListener listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener must not be null");
+        stateListeners.add(listener);
+    }
+
+    public void removeConnectionStateListener(final ConnectionStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Connect to a ZooKeeper ensemble. If the client is shared and a shared session for the
+     * {@code hosts} exists, that session is used and the {@code timeout}, connect timeout, retry
+     * policy, read-only and preferred hosts settings of this client are ignored.
+     *
+     * @param hosts The connect string.
+     * @param timeout The session timeout in milliseconds.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code ZooKeeper} once it is
+     * connected, or fails with a {@code KeeperException.ConnectionLossException} if no connection
+     * could be established within the connect timeout and retry policy.
+     *
+     * @throws IOException if the {@code ZooKeeper} cannot be created.
+     * @throws InterruptedException if interrupted closing a previous session.
+     */
+    public OperationFuture<ZooKeeper> connect(final String hosts, final int timeout) throws IOException, InterruptedException {
+        close();
+        ZooKeeperSession zooKeeperSession;
+        if(shared) {
+            synchronized(sharedSessions) {
+                zooKeeperSession = sharedSessions.get(hosts);
+                if(zooKeeperSession==null) {
+                    zooKeeperSession = new ZooKeeperSession(hosts, timeout, connectTimeout, retryPolicy, canBeReadOnly, preferredHosts);
+                    sharedSessions.put(hosts, zooKeeperSession);
+                }
+                zooKeeperSession.acquire(this);
             }
-            zooKeeper = null;
+        } else {
+            zooKeeperSession = new ZooKeeperSession(hosts, timeout, connectTimeout, retryPolicy, canBeReadOnly, preferredHosts);
+            zooKeeperSession.acquire(this);
         }
+        session = zooKeeperSession;
+        return zooKeeperSession.open();
+    }
+
+    /**
+     * Establish a new session using the hosts and timeout provided to the last
+     * {@link #connect(String, int)} if the current session is no longer alive. Used to recover from
+     * session expiration. If the current session is alive, or a new session is already being
+     * established, that session is used, so the session is only re-established once no matter how
+     * many consumers request it.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code ZooKeeper} once it is connected.
+     *
+     * @throws IllegalStateException if {@link #connect(String, int)} has not been called.
+     * @throws IOException if the new {@code ZooKeeper} cannot be created.
+     * @throws InterruptedException if interrupted closing the current session.
+     */
+    public OperationFuture<ZooKeeper> reconnect() throws IOException, InterruptedException {
+        ZooKeeperSession zooKeeperSession = session;
+        if(zooKeeperSession==null)
+            throw new IllegalStateException("connect has not been called");
+        return zooKeeperSession.reconnect();
+    }
+
+    /**
+     * Get the current {@code ZooKeeper}.
+     *
+     * @return The current {@code ZooKeeper}, or {@code null} if not connected.
+     */
+    public ZooKeeper getZooKeeper() {
+        ZooKeeperSession zooKeeperSession = session;
+        return zooKeeperSession==null?null:zooKeeperSession.getZooKeeper();
     }
 
-    class ZooKeeperFutureTask implements Callable<ZooKeeper>, Watcher {
-        private final CountDownLatch counter = new CountDownLatch(1);
+    /**
+     * Register a {@code Watcher} to be notified of session events. Registered {@code Watcher}s
+     * remain registered across {@link #reconnect()}.
+     *
+     * @param watcher The {@code Watcher}, must not be {@code null}.
+     */
+    public void register(final Watcher watcher) {
+        if(watcher==null)
+            throw new IllegalArgumentException("watcher must not be null");
+        if(!watchers.contains(watcher))
+            watchers.add(watcher);
+    }
+
+    public void unregister(final Watcher watcher) {
+        watchers.remove(watcher);
+    }
+
+    /**
+     * Close the client. The session is closed unless it is shared and still in use by other clients.
+     */
+    public void close() {
+        ZooKeeperSession zooKeeperSession = session;
+        if(zooKeeperSession==null)
+            return;
+        session = null;
+        if(shared) {
+            synchronized(sharedSessions) {
+                if(zooKeeperSession.release(this))
+                    sharedSessions.remove(zooKeeperSession.getHosts());
+            }
+        } else {
+            zooKeeperSession.release(this);
+        }
+    }
 
-        public ZooKeeper call() throws Exception {
-            if (zooKeeper.getState().isConnected())
-                return zooKeeper;
-            if (counter.getCount() > 0)
-                counter.await();
-            return zooKeeper;
+    void process(final WatchedEvent event) {
+        for(Watcher watcher : watchers) {
+            try {
+                watcher.process(event);
+            } catch(RuntimeException e) {
+                logger.warn("Notifying {} of {}", watcher, event, e);
+            }
         }
+    }
 
-        public void process(final WatchedEvent event) {
-            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
-                counter.countDown();
+    void stateChanged(final ConnectionState state) {
+        for(ConnectionStateListener listener : stateListeners) {
+            try {
+                listener.stateChanged(this, state);
+            } catch(RuntimeException e) {
+                logger.warn("Notifying {} of {}", listener, state, e);
             }
         }
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead instrumentation of ZooKeeper operations: latency histograms and in-flight counts
+ * per operation, the number of watch events received, and the time between a watch event and the
+ * resulting {@code serviceFailure} notification.
+ *
+ * <p>Components record into the JVM wide instance returned by {@link #getInstance()} unless given
+ * their own.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class ZooKeeperMetrics {
+    /**
+     * The instrumented operations.
+     */
+    public enum Operation {
+        CREATE, DELETE, GET_CHILDREN, EXISTS, GET_DATA, SET_DATA, MULTI
+    }
+    private static final ZooKeeperMetrics instance = new ZooKeeperMetrics();
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final Map<Operation, AtomicInteger> inFlight = new EnumMap<Operation, AtomicInteger>(Operation.class);
+    private final AtomicLong watchEvents = new AtomicLong();
+    private final LatencyHistogram detectionLatency = new LatencyHistogram();
+
+    public ZooKeeperMetrics() {
+        for(Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            inFlight.put(operation, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Get the JVM wide {@code ZooKeeperMetrics}.
+     *
+     * @return The JVM wide {@code ZooKeeperMetrics}.
+     */
+    public static ZooKeeperMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the start of an operation.
+     *
+     * @param operation The operation.
+     *
+     * @return The start time, to be passed to {@link #stop(Operation, long)}.
+     */
+    public long start(final Operation operation) {
+        inFlight.get(operation).incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the completion of an operation.
+     *
+     * @param operation The operation.
+     * @param start The value returned by {@link #start(Operation)}.
+     */
+    public void stop(final Operation operation, final long start) {
+        inFlight.get(operation).decrementAndGet();
+        latencies.get(operation).record(System.nanoTime()-start);
+    }
+
+    /**
+     * Record the receipt of a watch event.
+     */
+    public void watchEvent() {
+        watchEvents.incrementAndGet();
+    }
+
+    /**
+     * Record the time between a watch event being received and the resulting failure notification.
+     *
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    public void detected(final long nanos) {
+        detectionLatency.record(nanos);
+    }
+
+    public LatencyHistogram getLatency(final Operation operation) {
+        return latencies.get(operation);
+    }
+
+    public int getInFlight(final Operation operation) {
+        return inFlight.get(operation).get();
+    }
+
+    public long getWatchEventCount() {
+        return watchEvents.get();
+    }
+
+    public LatencyHistogram getDetectionLatency() {
+        return detectionLatency;
+    }
+}
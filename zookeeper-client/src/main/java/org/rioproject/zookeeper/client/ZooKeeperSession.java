@@ -0,0 +1,363 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A {@code ZooKeeper} session used by one or more {@link ZooKeeperClient}s. Session events and
+ * {@link ConnectionState} changes are fanned out to each client, the session is closed when the
+ * last client releases it.
+ *
+ * <p>Connecting never blocks a thread. Each attempt is given a deadline, if the session has not
+ * connected by then the attempt is abandoned and, if the {@link RetryPolicy} allows, another
+ * attempt is scheduled after a backoff delay with the connect string reshuffled. When the session
+ * expires a new session is established the same way.</p>
+ *
+ * <p>If preferred hosts are set, each attempt first tries only those hosts, falling back to the
+ * full connect string straight away if they cannot be reached within the connect timeout.</p>
+ *
+ * @author Dennis Reedy
+ */
+class ZooKeeperSession {
+    private final String hosts;
+    private final int timeout;
+    private final long connectTimeout;
+    private final RetryPolicy retryPolicy;
+    private final boolean canBeReadOnly;
+    private final String preferredHosts;
+    private final List<ZooKeeperClient> clients = new CopyOnWriteArrayList<ZooKeeperClient>();
+    private volatile Connection current;
+    private OperationFuture<ZooKeeper> pending;
+    private boolean connectedBefore;
+    private boolean closed;
+    private int references;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ZooKeeperSession-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /* Closing a connection that has not connected can block, it is never done holding the lock */
+    private static final ExecutorService closer = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ZooKeeperSession-closer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static Logger logger = LoggerFactory.getLogger(ZooKeeperSession.class);
+
+    ZooKeeperSession(final String hosts,
+                     final int timeout,
+                     final long connectTimeout,
+                     final RetryPolicy retryPolicy,
+                     final boolean canBeReadOnly,
+                     final String preferredHosts) {
+        this.hosts = hosts;
+        this.timeout = timeout;
+        this.connectTimeout = connectTimeout;
+        this.retryPolicy = retryPolicy;
+        this.canBeReadOnly = canBeReadOnly;
+        this.preferredHosts = preferredHosts==null?null:withChroot(preferredHosts, hosts);
+    }
+
+    String getHosts() {
+        return hosts;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    ZooKeeper getZooKeeper() {
+        Connection connection = current;
+        return connection==null?null:connection.zooKeeper;
+    }
+
+    /**
+     * Determine whether the session is connected to a server that has lost contact with the quorum.
+     */
+    boolean isReadOnly() {
+        ZooKeeper zooKeeper = getZooKeeper();
+        return zooKeeper!=null && zooKeeper.getState()==ZooKeeper.States.CONNECTEDREADONLY;
+    }
+
+    synchronized int getReferences() {
+        return references;
+    }
+
+    synchronized void acquire(final ZooKeeperClient client) {
+        references++;
+        clients.add(client);
+    }
+
+    /**
+     * Release the session on behalf of a client.
+     *
+     * @return {@code true} if this was the last reference and the session has been closed.
+     */
+    boolean release(final ZooKeeperClient client) {
+        Connection connection;
+        synchronized(this) {
+            clients.remove(client);
+            if(--references>0)
+                return false;
+            closed = true;
+            if(pending!=null && !pending.isDone())
+                pending.setException(new IllegalStateException("Session closed while connecting"));
+            pending = null;
+            connection = current;
+            current = null;
+        }
+        close(connection);
+        return true;
+    }
+
+    /**
+     * Start connecting if the session is not connected or connecting.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code ZooKeeper} once connected.
+     */
+    synchronized OperationFuture<ZooKeeper> open() {
+        if(closed)
+            throw new IllegalStateException("Session has been closed");
+        if(pending==null) {
+            pending = new OperationFuture<ZooKeeper>();
+            attempt(0, pending, preferredHosts!=null);
+        }
+        return pending;
+    }
+
+    /**
+     * Establish a new session if the current one is no longer alive. If a live session exists, or a
+     * new one is already being established (for example by another client of a shared session),
+     * that session is used.
+     *
+     * @return An {@code OperationFuture} that completes with the {@code ZooKeeper} once connected.
+     */
+    synchronized OperationFuture<ZooKeeper> reconnect() {
+        Connection connection = current;
+        if(connection!=null && connection.zooKeeper!=null && !connection.zooKeeper.getState().isAlive()) {
+            closeLater(connection);
+            current = null;
+            pending = null;
+        }
+        return open();
+    }
+
+    private synchronized void attempt(final int retry, final OperationFuture<ZooKeeper> future, final boolean preferred) {
+        if(closed || future.isDone())
+            return;
+        final Connection connection = new Connection(future);
+        current = connection;
+        String connectString = shuffle(preferred?preferredHosts:hosts);
+        try {
+            connection.zooKeeper = new ZooKeeper(connectString, timeout, connection, canBeReadOnly);
+        } catch (IOException e) {
+            current = null;
+            if(preferred)
+                attempt(retry, future, false);
+            else
+                retryOrFail(retry, future, e);
+            return;
+        }
+        if(connection.zooKeeper.getState().isConnected())
+            future.set(connection.zooKeeper);
+        if(logger.isDebugEnabled())
+            logger.debug("Connecting to {}, attempt {}", connectString, retry+1);
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                connectTimedOut(connection, retry, future, preferred);
+            }
+        }, connectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void connectTimedOut(final Connection connection,
+                                 final int retry,
+                                 final OperationFuture<ZooKeeper> future,
+                                 final boolean preferred) {
+        synchronized(this) {
+            if(future.isDone() || current!=connection)
+                return;
+            current = null;
+        }
+        closeLater(connection);
+        if(preferred) {
+            logger.info("Unable to connect to preferred hosts {} within {} ms, trying {}", preferredHosts, connectTimeout, hosts);
+            attempt(retry, future, false);
+            return;
+        }
+        logger.warn("Unable to connect to {} within {} ms", hosts, connectTimeout);
+        retryOrFail(retry, future, KeeperException.create(KeeperException.Code.CONNECTIONLOSS));
+    }
+
+    private void retryOrFail(final int retry, final OperationFuture<ZooKeeper> future, final Throwable cause) {
+        if(retryPolicy.allowRetry(retry)) {
+            long delay = retryPolicy.getDelay(retry);
+            logger.info("Retrying connection to {} in {} ms", hosts, delay);
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    attempt(retry+1, future, preferredHosts!=null);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        logger.error("Unable to connect to {} after {} attempts", hosts, retry+1);
+        synchronized(this) {
+            if(pending==future)
+                pending = null;
+        }
+        future.setException(cause);
+        notifyState(ConnectionState.LOST);
+    }
+
+    private synchronized void expired(final Connection connection) {
+        if(current!=connection)
+            return;
+        closeLater(connection);
+        current = null;
+        pending = null;
+        if(closed)
+            return;
+        scheduler.execute(new Runnable() {
+            public void run() {
+                synchronized(ZooKeeperSession.this) {
+                    if(!closed && pending==null) {
+                        logger.info("Re-establishing session with {}", hosts);
+                        open();
+                    }
+                }
+            }
+        });
+    }
+
+    private void closeLater(final Connection connection) {
+        closer.execute(new Runnable() {
+            public void run() {
+                close(connection);
+            }
+        });
+    }
+
+    private void close(final Connection connection) {
+        if(connection==null || connection.zooKeeper==null)
+            return;
+        try {
+            connection.zooKeeper.close();
+        } catch (InterruptedException e) {
+            logger.warn("While close ZooKeeper", e);
+        }
+    }
+
+    private void notifyState(final ConnectionState state) {
+        if(logger.isDebugEnabled())
+            logger.debug("{} {}", hosts, state);
+        for(ZooKeeperClient client : clients)
+            client.stateChanged(state);
+    }
+
+    /*
+     * Shuffle the servers in a connect string, keeping any chroot suffix in place
+     */
+    static String shuffle(final String connectString) {
+        int ndx = connectString.indexOf('/');
+        String servers = ndx<0?connectString:connectString.substring(0, ndx);
+        String chroot = ndx<0?"":connectString.substring(ndx);
+        List<String> list = new ArrayList<String>(Arrays.asList(servers.split(",")));
+        if(list.size()<2)
+            return connectString;
+        Collections.shuffle(list);
+        StringBuilder builder = new StringBuilder();
+        for(String server : list) {
+            if(builder.length()>0)
+                builder.append(",");
+            builder.append(server.trim());
+        }
+        return builder.append(chroot).toString();
+    }
+
+    /*
+     * Give a list of servers the chroot suffix, if any, of a connect string
+     */
+    static String withChroot(final String servers, final String connectString) {
+        int ndx = connectString.indexOf('/');
+        return ndx<0 || servers.indexOf('/')>=0?servers:servers+connectString.substring(ndx);
+    }
+
+    /**
+     * The default {@code Watcher} of a single {@code ZooKeeper} instance.
+     */
+    class Connection implements Watcher {
+        private final OperationFuture<ZooKeeper> future;
+        private volatile ZooKeeper zooKeeper;
+
+        Connection(final OperationFuture<ZooKeeper> future) {
+            this.future = future;
+        }
+
+        public void process(final WatchedEvent event) {
+            if(current!=this)
+                return;
+            if(event.getType()==Event.EventType.None) {
+                switch(event.getState()) {
+                    case SyncConnected:
+                        boolean reconnected;
+                        synchronized(ZooKeeperSession.this) {
+                            reconnected = connectedBefore;
+                            connectedBefore = true;
+                        }
+                        if(zooKeeper!=null)
+                            future.set(zooKeeper);
+                        notifyState(reconnected?ConnectionState.RECONNECTED:ConnectionState.CONNECTED);
+                        break;
+                    case ConnectedReadOnly:
+                        /* Reads are served, the client keeps looking for a server that is part of the quorum */
+                        synchronized(ZooKeeperSession.this) {
+                            connectedBefore = true;
+                        }
+                        if(zooKeeper!=null)
+                            future.set(zooKeeper);
+                        notifyState(ConnectionState.READ_ONLY);
+                        break;
+                    case Disconnected:
+                        notifyState(ConnectionState.SUSPENDED);
+                        break;
+                    case Expired:
+                        notifyState(ConnectionState.LOST);
+                        break;
+                }
+            }
+            for(ZooKeeperClient client : clients)
+                client.process(event);
+            if(event.getState()==Event.KeeperState.Expired)
+                expired(this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.fdh;
+
+import net.jini.core.lookup.ServiceID;
+import org.apache.zookeeper.KeeperException;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.MemberInfo;
+import org.rioproject.zookeeper.client.OperationFuture;
+import org.rioproject.zookeeper.client.OperationListener;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Registers services so that they can be monitored by a {@link ZooKeeperFaultDetectionHandler}. A
+ * service joins the handler's group, with its {@code ServiceID} as the member name, once it has
+ * been started and leaves when it is destroyed.
+ *
+ * <p>Membership lasts as long as the session of the {@code GroupManagement}'s {@code ZooKeeper}. If
+ * the session expires the service is reported as failed, it is not registered again.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class FaultDetectionRegistration {
+    private final GroupManagement groupManagement;
+    private final String group;
+
+    /**
+     * Create a {@code FaultDetectionRegistration} for the {@link ZooKeeperFaultDetectionHandler#DEFAULT_GROUP default group}.
+     *
+     * @param groupManagement The {@code GroupManagement} to join with, must not be {@code null}.
+     */
+    public FaultDetectionRegistration(final GroupManagement groupManagement) {
+        this(groupManagement, ZooKeeperFaultDetectionHandler.DEFAULT_GROUP);
+    }
+
+    /**
+     * Create a {@code FaultDetectionRegistration}.
+     *
+     * @param groupManagement The {@code GroupManagement} to join with, must not be {@code null}.
+     * @param group The group to join, the {@value ZooKeeperFaultDetectionHandler#GROUP} the handler
+     * is configured with, must not be {@code null}.
+     */
+    public FaultDetectionRegistration(final GroupManagement groupManagement, final String group) {
+        if(groupManagement==null)
+            throw new IllegalArgumentException("groupManagement must not be null");
+        if(group==null)
+            throw new IllegalArgumentException("group must not be null");
+        this.groupManagement = groupManagement;
+        this.group = group;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Register a service, creating the group if it does not exist.
+     *
+     * @param serviceID The {@code ServiceID} of the service, must not be {@code null}.
+     * @param memberInfo How to reach the service, may be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes with the path of the service's member node
+     * once the join has been committed.
+     */
+    public OperationFuture<String> register(final ServiceID serviceID, final MemberInfo memberInfo) {
+        final String memberName = ZooKeeperFaultDetectionHandler.getMemberName(serviceID);
+        final OperationFuture<String> future = new OperationFuture<String>();
+        groupManagement.create(group).addListener(new OperationListener<String>() {
+            public void operationComplete(OperationFuture<String> created) {
+                KeeperException.Code code = created.getCode();
+                if(!KeeperException.Code.OK.equals(code) && !KeeperException.Code.NODEEXISTS.equals(code)) {
+                    future.setException(created.getFailure());
+                    return;
+                }
+                groupManagement.join(group, memberName, memberInfo).addListener(new OperationListener<String>() {
+                    public void operationComplete(OperationFuture<String> joined) {
+                        try {
+                            future.set(joined.get());
+                        } catch(Exception e) {
+                            future.setException(e instanceof ExecutionException?e.getCause():e);
+                        }
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Unregister a service. Monitoring handlers report the service as failed.
+     *
+     * @param serviceID The {@code ServiceID} of the service, must not be {@code null}.
+     *
+     * @return An {@code OperationFuture} that completes once the service's member node has been deleted.
+     */
+    public OperationFuture<String> unregister(final ServiceID serviceID) {
+        return groupManagement.delete(group, ZooKeeperFaultDetectionHandler.getMemberName(serviceID));
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.fdh;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.client.GroupLayout;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.GroupMembership;
+import org.rioproject.zookeeper.client.MembershipListener;
+import org.rioproject.zookeeper.client.MembershipSnapshot;
+import org.rioproject.zookeeper.client.OperationFuture;
+import org.rioproject.zookeeper.client.OperationListener;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+import org.rioproject.zookeeper.watcher.ZooKeeperServiceWatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * The {@link ZooKeeperServiceWatcher} shared by all {@link ZooKeeperFaultDetectionHandler}s in the
+ * JVM that connect to the same ensemble. It is created by the first handler to monitor a service
+ * and closed when the last one is terminated, so however many services are monitored there is one
+ * session and, since groups are watched, one watch per group.
+ *
+ * @author Dennis Reedy
+ */
+final class SharedServiceWatcher implements FaultDetectionListener<String> {
+    /* How long (ms) a member is awaited in a group's membership before the membership is looked up again */
+    private static final long RECHECK_INTERVAL = 1000;
+    private static final Map<String, SharedServiceWatcher> watchers = new HashMap<String, SharedServiceWatcher>();
+    private final String connectString;
+    private final ZooKeeperClient client = new ZooKeeperClient(true);
+    private final Map<String, List<FaultDetectionListener<String>>> listeners = new HashMap<String, List<FaultDetectionListener<String>>>();
+    private final OperationFuture<ZooKeeperServiceWatcher> connected = new OperationFuture<ZooKeeperServiceWatcher>();
+    private volatile ZooKeeperServiceWatcher watcher;
+    private GroupManagement groupManagement;
+    private ZooKeeper groupManagementZooKeeper;
+    private int references;
+    private static Logger logger = LoggerFactory.getLogger(SharedServiceWatcher.class);
+
+    private SharedServiceWatcher(final String connectString) {
+        this.connectString = connectString;
+    }
+
+    /**
+     * Get the {@code SharedServiceWatcher} for an ensemble, connecting to it if this is the first use.
+     *
+     * @param connectString The connect string of the ensemble.
+     * @param sessionTimeout The session timeout (ms), ignored if already connected.
+     *
+     * @return The {@code SharedServiceWatcher}, to be {@link #release() released} when no longer used.
+     *
+     * @throws IOException if the ensemble cannot be reached.
+     * @throws InterruptedException if interrupted while connecting.
+     */
+    static SharedServiceWatcher acquire(final String connectString, final int sessionTimeout) throws IOException,
+                                                                                                    InterruptedException {
+        SharedServiceWatcher shared;
+        boolean first = false;
+        synchronized(watchers) {
+            shared = watchers.get(connectString);
+            if(shared==null) {
+                shared = new SharedServiceWatcher(connectString);
+                watchers.put(connectString, shared);
+                first = true;
+            }
+            shared.references++;
+        }
+        /* Connect outside the lock, handlers of other ensembles must not wait for this one */
+        if(first)
+            shared.connect(sessionTimeout);
+        try {
+            shared.connected.get();
+        } catch(ExecutionException e) {
+            throw new IOException("Unable to connect to "+connectString, e.getCause());
+        } catch(InterruptedException e) {
+            shared.release();
+            throw e;
+        }
+        return shared;
+    }
+
+    private void connect(final int sessionTimeout) {
+        try {
+            client.connect(connectString, sessionTimeout).get();
+        } catch(Exception e) {
+            client.close();
+            /* Discard this instance, the next handler to monitor a service tries again */
+            synchronized(watchers) {
+                if(watchers.get(connectString)==this)
+                    watchers.remove(connectString);
+            }
+            if(e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            connected.setException(e instanceof ExecutionException?e.getCause():e);
+            return;
+        }
+        watcher = new ZooKeeperServiceWatcher(client, ZooKeeperServiceWatcher.Mode.GROUP);
+        connected.set(watcher);
+        logger.info("Watching services registered with {}", connectString);
+    }
+
+    void release() {
+        synchronized(watchers) {
+            if(--references>0)
+                return;
+            if(watchers.get(connectString)==this)
+                watchers.remove(connectString);
+        }
+        if(watcher==null)
+            return;
+        watcher.close();
+        client.close();
+        logger.info("Stopped watching services registered with {}", connectString);
+    }
+
+    /**
+     * Wait for a member to have joined a group. The member is awaited in the group's shared
+     * membership, the one its failure is detected with, so once this returns the member is known
+     * there when it is {@link #watch(String, FaultDetectionListener) watched}.
+     *
+     * @return The path of the member.
+     *
+     * @throws TimeoutException if the member has not joined within the {@code timeout}.
+     */
+    String awaitMember(final String group, final String member, final long timeout) throws IOException,
+                                                                                          InterruptedException,
+                                                                                          ExecutionException,
+                                                                                          TimeoutException,
+                                                                                          KeeperException {
+        long deadline = System.currentTimeMillis()+timeout;
+        String path = null;
+        while(true) {
+            if(path==null) {
+                /* While a session that expired is being re-established there is no ZooKeeper, wait for it */
+                ZooKeeper zooKeeper = client.reconnect().get(remaining(deadline), TimeUnit.MILLISECONDS);
+                try {
+                    GroupLayout layout = getGroupManagement(zooKeeper).getLayout(group).get(remaining(deadline),
+                                                                                             TimeUnit.MILLISECONDS);
+                    path = layout.memberPath(String.format("/%s", group), member);
+                } catch(ExecutionException e) {
+                    if(!(e.getCause() instanceof KeeperException.NoNodeException))
+                        throw e;
+                    /* Wait for the group to be created, the only watch set other than the group's */
+                    final CountDownLatch created = new CountDownLatch(1);
+                    Stat stat = zooKeeper.exists(String.format("/%s", group), new Watcher() {
+                        public void process(WatchedEvent event) {
+                            created.countDown();
+                        }
+                    });
+                    if(stat==null && !created.await(remaining(deadline), TimeUnit.MILLISECONDS))
+                        throw new TimeoutException(String.format("%s has not joined group %s within %d ms", member, group, timeout));
+                    continue;
+                }
+            }
+            /* The membership is replaced when the session is re-established, look it up again now and then */
+            GroupMembership membership = watcher.watchGroup(path.substring(0, path.lastIndexOf('/')));
+            if(awaitMembership(membership, member, Math.min(remaining(deadline), RECHECK_INTERVAL)))
+                return path;
+        }
+    }
+
+    private static boolean awaitMembership(final GroupMembership membership, final String member, final long wait)
+        throws InterruptedException {
+        final CountDownLatch joined = new CountDownLatch(1);
+        MembershipListener listener = new MembershipListener() {
+            public void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed) {
+                if(snapshot.getMembers().contains(member))
+                    joined.countDown();
+            }
+        };
+        membership.addListener(listener);
+        try {
+            if(membership.isInitialized() && membership.getMembers().contains(member))
+                return true;
+            return joined.await(wait, TimeUnit.MILLISECONDS);
+        } finally {
+            membership.removeListener(listener);
+        }
+    }
+
+    private static long remaining(final long deadline) throws TimeoutException {
+        long remaining = deadline-System.currentTimeMillis();
+        if(remaining<=0)
+            throw new TimeoutException("Timed out waiting for the member to join");
+        return remaining;
+    }
+
+    /*
+     * The watcher re-establishes the session if it expires, follow it to the new ZooKeeper
+     */
+    private synchronized GroupManagement getGroupManagement(final ZooKeeper zooKeeper) {
+        if(groupManagement==null || groupManagementZooKeeper!=zooKeeper) {
+            groupManagement = new GroupManagement(zooKeeper);
+            groupManagementZooKeeper = zooKeeper;
+        }
+        return groupManagement;
+    }
+
+    /**
+     * Notify a listener when the member at a path leaves its group. The member is watched once no
+     * matter how many listeners are interested in it. A member that is not in the group when it is
+     * watched is reported as failed.
+     */
+    void watch(final String path, final FaultDetectionListener<String> listener) {
+        boolean first;
+        synchronized(listeners) {
+            List<FaultDetectionListener<String>> interested = listeners.get(path);
+            first = interested==null;
+            if(first) {
+                interested = new CopyOnWriteArrayList<FaultDetectionListener<String>>();
+                listeners.put(path, interested);
+            }
+            interested.add(listener);
+        }
+        if(!first)
+            return;
+        watcher.addService(path, this);
+        /* A member that is gone before it is watched is dropped by the watcher, report it as failed */
+        final String member = path.substring(path.lastIndexOf('/')+1);
+        final GroupMembership membership = watcher.watchGroup(path.substring(0, path.lastIndexOf('/')));
+        membership.getInitialized().addListener(new OperationListener<MembershipSnapshot>() {
+            public void operationComplete(OperationFuture<MembershipSnapshot> future) {
+                if(!membership.getMembers().contains(member))
+                    watcher.getDispatcher().dispatch(SharedServiceWatcher.this, path);
+            }
+        });
+    }
+
+    void unwatch(final String path, final FaultDetectionListener<String> listener) {
+        synchronized(listeners) {
+            List<FaultDetectionListener<String>> interested = listeners.get(path);
+            if(interested==null || !interested.remove(listener) || !interested.isEmpty())
+                return;
+            listeners.remove(path);
+        }
+        watcher.removeService(path);
+    }
+
+    public void serviceFailure(final Object service, final String path) {
+        List<FaultDetectionListener<String>> interested;
+        synchronized(listeners) {
+            interested = listeners.remove(path);
+        }
+        if(interested==null)
+            return;
+        for(FaultDetectionListener<String> listener : interested) {
+            try {
+                listener.serviceFailure(service, path);
+            } catch(RuntimeException e) {
+                logger.warn("Notifying {} of failure of {}", listener, path, e);
+            }
+        }
+    }
+}
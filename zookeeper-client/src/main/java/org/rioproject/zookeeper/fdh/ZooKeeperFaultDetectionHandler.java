@@ -0,0 +1,172 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.fdh;
+
+import net.jini.core.lookup.ServiceID;
+import org.rioproject.impl.fdh.FaultDetectionHandler;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@code FaultDetectionHandler} that uses ZooKeeper to determine whether a service has failed.
+ * Services register by joining a group, see {@link FaultDetectionRegistration}, with their
+ * {@code ServiceID} as the member name. The member's node is ephemeral, it goes away when the
+ * service's session ends, and that is what is reported as a failure.
+ *
+ * <p>Unlike lease and ping based handlers, no traffic flows to the monitored services. All handlers
+ * in the JVM that connect to the same ensemble share one session and one
+ * {@link org.rioproject.zookeeper.watcher.ZooKeeperServiceWatcher}, which sets a single watch per
+ * group rather than one per service.</p>
+ *
+ * <p>The handler is configured with the following properties:</p>
+ * <ul>
+ * <li>{@value #CONNECT_STRING}: The connect string of the ensemble, defaults to {@value #DEFAULT_CONNECT_STRING}</li>
+ * <li>{@value #SESSION_TIMEOUT}: The session timeout (ms), defaults to {@value #DEFAULT_SESSION_TIMEOUT}</li>
+ * <li>{@value #GROUP}: The group services join, defaults to {@value #DEFAULT_GROUP}</li>
+ * <li>{@value #REGISTRATION_TIMEOUT}: How long (ms) to wait for a service to join the group once
+ * it is to be monitored, defaults to {@value #DEFAULT_REGISTRATION_TIMEOUT}</li>
+ * </ul>
+ *
+ * @author Dennis Reedy
+ */
+public class ZooKeeperFaultDetectionHandler implements FaultDetectionHandler<ServiceID>, FaultDetectionListener<String> {
+    public static final String CONNECT_STRING = "connectString";
+    public static final String SESSION_TIMEOUT = "sessionTimeout";
+    public static final String GROUP = "group";
+    public static final String REGISTRATION_TIMEOUT = "registrationTimeout";
+    public static final String DEFAULT_CONNECT_STRING = "127.0.0.1:3010";
+    public static final int DEFAULT_SESSION_TIMEOUT = 3000;
+    public static final String DEFAULT_GROUP = "rio-services";
+    public static final long DEFAULT_REGISTRATION_TIMEOUT = 30*1000;
+    private String connectString = DEFAULT_CONNECT_STRING;
+    private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+    private String group = DEFAULT_GROUP;
+    private long registrationTimeout = DEFAULT_REGISTRATION_TIMEOUT;
+    private final List<FaultDetectionListener<ServiceID>> listeners = new CopyOnWriteArrayList<FaultDetectionListener<ServiceID>>();
+    private Object service;
+    private ServiceID serviceID;
+    private String path;
+    private SharedServiceWatcher watcher;
+    private boolean terminated;
+    private static Logger logger = LoggerFactory.getLogger(ZooKeeperFaultDetectionHandler.class);
+
+    public void configure(final Properties properties) {
+        if(properties==null)
+            return;
+        connectString = properties.getProperty(CONNECT_STRING, DEFAULT_CONNECT_STRING);
+        sessionTimeout = Integer.parseInt(properties.getProperty(SESSION_TIMEOUT,
+                                                                 Integer.toString(DEFAULT_SESSION_TIMEOUT)));
+        group = properties.getProperty(GROUP, DEFAULT_GROUP);
+        registrationTimeout = Long.parseLong(properties.getProperty(REGISTRATION_TIMEOUT,
+                                                                    Long.toString(DEFAULT_REGISTRATION_TIMEOUT)));
+    }
+
+    public void register(final FaultDetectionListener<ServiceID> listener) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener can not be null");
+        listeners.add(listener);
+    }
+
+    /**
+     * Monitor a service. Blocks until the service has joined the group, or the registration timeout
+     * has passed.
+     *
+     * @param service The service proxy.
+     * @param serviceID The {@code ServiceID} of the service, must not be {@code null}.
+     *
+     * @throws java.util.concurrent.TimeoutException if the service has not joined the group within
+     * the registration timeout.
+     * @throws IllegalStateException if the handler is already monitoring a service, or has been terminated.
+     * @throws Exception if the ensemble cannot be reached.
+     */
+    public void monitor(final Object service, final ServiceID serviceID) throws Exception {
+        if(serviceID==null)
+            throw new IllegalArgumentException("serviceID can not be null");
+        synchronized(this) {
+            if(terminated)
+                throw new IllegalStateException("terminated");
+            if(this.serviceID!=null)
+                throw new IllegalStateException("already monitoring "+this.serviceID);
+            this.service = service;
+            this.serviceID = serviceID;
+        }
+        SharedServiceWatcher shared = SharedServiceWatcher.acquire(connectString, sessionTimeout);
+        String memberPath;
+        try {
+            memberPath = shared.awaitMember(group, getMemberName(serviceID), registrationTimeout);
+        } catch(Exception e) {
+            shared.release();
+            throw e;
+        }
+        synchronized(this) {
+            if(terminated) {
+                shared.release();
+                return;
+            }
+            watcher = shared;
+            path = memberPath;
+            shared.watch(memberPath, this);
+        }
+        if(logger.isDebugEnabled())
+            logger.debug("Monitoring {} at {}", serviceID, memberPath);
+    }
+
+    public void serviceFailure(final Object ignore, final String zNode) {
+        SharedServiceWatcher shared;
+        synchronized(this) {
+            shared = watcher;
+            watcher = null;
+        }
+        if(shared==null)
+            return;
+        logger.info("{} has left group {}, reporting it as failed", serviceID, group);
+        for(FaultDetectionListener<ServiceID> listener : listeners)
+            listener.serviceFailure(service, serviceID);
+        /* Last, this runs on the shared watcher's dispatcher which is shut down with the last release */
+        shared.release();
+    }
+
+    public void terminate() {
+        SharedServiceWatcher shared;
+        synchronized(this) {
+            terminated = true;
+            shared = watcher;
+            watcher = null;
+        }
+        if(shared==null)
+            return;
+        shared.unwatch(path, this);
+        shared.release();
+    }
+
+    /**
+     * Get the name a service joins the group with.
+     *
+     * @param serviceID The {@code ServiceID} of the service, must not be {@code null}.
+     *
+     * @return The member name.
+     */
+    public static String getMemberName(final ServiceID serviceID) {
+        if(serviceID==null)
+            throw new IllegalArgumentException("serviceID can not be null");
+        return serviceID.toString();
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.client.ZooKeeperMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers {@link FaultDetectionListener#serviceFailure(Object, Object)} notifications off the
+ * ZooKeeper event thread.
+ *
+ * <p>Each listener has its own lane: notifications for a listener are delivered in the order they
+ * were dispatched, one at a time, while different listeners are notified in parallel. A failure
+ * for a path that is already queued for a listener is coalesced into the queued notification, so
+ * a lane never holds more notifications than its listener has services. Notifications are never
+ * delivered on the dispatching thread, which is normally the ZooKeeper event thread, nor dropped,
+ * so the queue is not bounded. Once more notifications than the alert threshold are queued a
+ * warning is logged and further notifications are counted as {@link #getOverflowCount() overflowed}.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class FaultDetectionDispatcher {
+    public static final int DEFAULT_ALERT_THRESHOLD = 10000;
+    public static final int DEFAULT_THREADS = 4;
+    /* The number of notifications a lane delivers before yielding its thread to other lanes */
+    private static final int LANE_BATCH = 64;
+    private final int alertThreshold;
+    private final ExecutorService executor;
+    private final ConcurrentMap<FaultDetectionListener<String>, Lane> lanes = new ConcurrentHashMap<FaultDetectionListener<String>, Lane>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private static Logger logger = LoggerFactory.getLogger(FaultDetectionDispatcher.class);
+
+    public FaultDetectionDispatcher() {
+        this(DEFAULT_THREADS, DEFAULT_ALERT_THRESHOLD);
+    }
+
+    /**
+     * Create a {@code FaultDetectionDispatcher}.
+     *
+     * @param threads The number of threads used to notify listeners, must be greater than zero.
+     * @param alertThreshold The number of queued notifications past which listeners are reported as
+     * falling behind, must be greater than zero. Notifications past it are still queued.
+     *
+     * @throws IllegalArgumentException if the {@code threads} or {@code alertThreshold} is less than 1.
+     */
+    public FaultDetectionDispatcher(final int threads, final int alertThreshold) {
+        if(threads<1)
+            throw new IllegalArgumentException("threads must be greater than zero");
+        if(alertThreshold<1)
+            throw new IllegalArgumentException("alertThreshold must be greater than zero");
+        this.alertThreshold = alertThreshold;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FaultDetectionDispatcher-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the {@code ZooKeeperMetrics} detection latency is recorded in. Defaults to {@link ZooKeeperMetrics#getInstance()}.
+     *
+     * @param metrics The {@code ZooKeeperMetrics}, must not be {@code null}.
+     */
+    public void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue a failure notification.
+     *
+     * @param listener The listener to notify, must not be {@code null}.
+     * @param path The path of the service that failed, must not be {@code null}.
+     */
+    public void dispatch(final FaultDetectionListener<String> listener, final String path) {
+        dispatch(listener, path, 0);
+    }
+
+    /**
+     * Queue a failure notification, recording the time from the failure being detected to the
+     * listener being notified.
+     *
+     * @param listener The listener to notify, must not be {@code null}.
+     * @param path The path of the service that failed, must not be {@code null}.
+     * @param detectedAt The {@code System.nanoTime()} the watch event that revealed the failure was
+     * received, or 0 if not known.
+     */
+    public void dispatch(final FaultDetectionListener<String> listener, final String path, final long detectedAt) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener must not be null");
+        if(path==null)
+            throw new IllegalArgumentException("path must not be null");
+        Lane lane = lanes.get(listener);
+        if(lane==null) {
+            Lane created = new Lane(listener);
+            lane = lanes.putIfAbsent(listener, created);
+            if(lane==null)
+                lane = created;
+        }
+        lane.enqueue(path, detectedAt);
+    }
+
+    /**
+     * Stop delivering notifications. Queued notifications are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        lanes.clear();
+    }
+
+    /**
+     * Get the number of notifications waiting to be delivered.
+     *
+     * @return The number of queued notifications.
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public int getAlertThreshold() {
+        return alertThreshold;
+    }
+
+    /**
+     * Get the number of notifications delivered.
+     *
+     * @return The number of notifications delivered.
+     */
+    public long getDispatchCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * Get the number of notifications that were merged into an already queued notification for the same path.
+     *
+     * @return The number of coalesced notifications.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the number of notifications queued while more than the alert threshold were already queued.
+     *
+     * @return The number of notifications queued past the alert threshold.
+     */
+    public long getOverflowCount() {
+        return overflowed.get();
+    }
+
+    /**
+     * Get the average time between a notification being dispatched and the listener being invoked.
+     *
+     * @return The average dispatch latency in milliseconds.
+     */
+    public double getAverageDispatchLatency() {
+        long count = dispatched.get();
+        return count==0?0:(double)TimeUnit.NANOSECONDS.toMicros(totalLatency.get())/count/1000;
+    }
+
+    /**
+     * Get the longest time between a notification being dispatched and the listener being invoked.
+     *
+     * @return The maximum dispatch latency in milliseconds.
+     */
+    public double getMaxDispatchLatency() {
+        return (double)TimeUnit.NANOSECONDS.toMicros(maxLatency.get())/1000;
+    }
+
+    private void record(final long dispatchedAt) {
+        long latency = System.nanoTime()-dispatchedAt;
+        dispatched.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while(latency>(max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+            /* retry */
+        }
+    }
+
+    private void deliver(final FaultDetectionListener<String> listener, final String path, final long detectedAt) {
+        if(detectedAt!=0)
+            metrics.detected(System.nanoTime()-detectedAt);
+        try {
+            listener.serviceFailure(null, path);
+        } catch(Throwable t) {
+            logger.warn("Notifying {} of failure of {}", listener, path, t);
+        }
+    }
+
+    private static class Failure {
+        final String path;
+        final long detectedAt;
+        final long dispatchedAt = System.nanoTime();
+
+        Failure(final String path, final long detectedAt) {
+            this.path = path;
+            this.detectedAt = detectedAt;
+        }
+    }
+
+    /**
+     * Delivers notifications to a single listener, in order.
+     */
+    private class Lane implements Runnable {
+        final FaultDetectionListener<String> listener;
+        final Queue<Failure> queue = new ConcurrentLinkedQueue<Failure>();
+        final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Lane(final FaultDetectionListener<String> listener) {
+            this.listener = listener;
+        }
+
+        void enqueue(final String path, final long detectedAt) {
+            if(!queued.add(path)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            /* Queue regardless, delivering here would stall the ZooKeeper event thread */
+            int queuedCount = depth.incrementAndGet();
+            if(queuedCount>alertThreshold) {
+                overflowed.incrementAndGet();
+                if(queuedCount==alertThreshold+1)
+                    logger.warn("More than {} notifications are queued, listeners are falling behind", alertThreshold);
+            }
+            queue.add(new Failure(path, detectedAt));
+            schedule();
+        }
+
+        void schedule() {
+            if(scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch(RejectedExecutionException e) {
+                    scheduled.set(false);
+                    logger.warn("Dispatcher has been shutdown, dropping notification to {}", listener);
+                }
+            }
+        }
+
+        public void run() {
+            int delivered = 0;
+            Failure failure;
+            while(delivered<LANE_BATCH && (failure = queue.poll())!=null) {
+                queued.remove(failure.path);
+                depth.decrementAndGet();
+                record(failure.dispatchedAt);
+                deliver(listener, failure.path, failure.detectedAt);
+                delivered++;
+            }
+            scheduled.set(false);
+            if(!queue.isEmpty())
+                schedule();
+        }
+    }
+}
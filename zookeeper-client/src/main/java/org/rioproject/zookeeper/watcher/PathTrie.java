@@ -0,0 +1,251 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A trie of zNode paths, one level per path element. A path may hold a value registered for that
+ * exact path, and any number of values subscribed to the path and everything below it.
+ *
+ * <p>Lookups do not lock and take time proportional to the depth of the path, not the number of
+ * registrations. Updates are serialized, which allows elements left empty by a removal to be pruned.</p>
+ *
+ * @author Dennis Reedy
+ */
+class PathTrie<T> {
+    private final Node<T> root = new Node<T>();
+    private volatile int size;
+
+    static class Node<T> {
+        final ConcurrentMap<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>();
+        final Set<T> subtree = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+        volatile T value;
+
+        boolean isEmpty() {
+            return value==null && subtree.isEmpty() && children.isEmpty();
+        }
+    }
+
+    /**
+     * Register a value for an exact path.
+     *
+     * @return The value previously registered for the path, or {@code null}.
+     */
+    synchronized T put(final String path, final T value) {
+        if(value==null)
+            throw new IllegalArgumentException("value must not be null");
+        Node<T> node = root;
+        for(String element : split(path)) {
+            Node<T> child = node.children.get(element);
+            if(child==null) {
+                child = new Node<T>();
+                node.children.put(element, child);
+            }
+            node = child;
+        }
+        T previous = node.value;
+        node.value = value;
+        if(previous==null)
+            size++;
+        return previous;
+    }
+
+    T get(final String path) {
+        Node<T> node = find(path);
+        return node==null?null:node.value;
+    }
+
+    boolean containsKey(final String path) {
+        return get(path)!=null;
+    }
+
+    /**
+     * Get the names of the direct children of a path that have a value registered.
+     *
+     * @return The names of the children, empty if there are none.
+     */
+    Set<String> getChildren(final String path) {
+        Set<String> names = new HashSet<String>();
+        Node<T> node = find(path);
+        if(node==null)
+            return names;
+        for(Map.Entry<String, Node<T>> entry : node.children.entrySet()) {
+            if(entry.getValue().value!=null)
+                names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Remove the value registered for an exact path.
+     *
+     * @return The value that was registered, or {@code null}.
+     */
+    synchronized T remove(final String path) {
+        List<Node<T>> trail = trail(path);
+        if(trail==null)
+            return null;
+        Node<T> node = trail.get(trail.size()-1);
+        T previous = node.value;
+        if(previous!=null) {
+            node.value = null;
+            size--;
+            prune(path, trail);
+        }
+        return previous;
+    }
+
+    /**
+     * Subscribe a value to a path and everything below it.
+     */
+    synchronized void addSubtree(final String path, final T value) {
+        if(value==null)
+            throw new IllegalArgumentException("value must not be null");
+        Node<T> node = root;
+        for(String element : split(path)) {
+            Node<T> child = node.children.get(element);
+            if(child==null) {
+                child = new Node<T>();
+                node.children.put(element, child);
+            }
+            node = child;
+        }
+        node.subtree.add(value);
+    }
+
+    synchronized boolean removeSubtree(final String path, final T value) {
+        List<Node<T>> trail = trail(path);
+        if(trail==null)
+            return false;
+        boolean removed = trail.get(trail.size()-1).subtree.remove(value);
+        if(removed)
+            prune(path, trail);
+        return removed;
+    }
+
+    /**
+     * Get the values subscribed to a path or any of its ancestors.
+     *
+     * @return The matching values, empty if there are none.
+     */
+    Set<T> matchSubtrees(final String path) {
+        Set<T> matched = new HashSet<T>(root.subtree);
+        Node<T> node = root;
+        for(String element : split(path)) {
+            node = node.children.get(element);
+            if(node==null)
+                break;
+            matched.addAll(node.subtree);
+        }
+        return matched;
+    }
+
+    /**
+     * Determine whether a path has subtree subscriptions of its own.
+     */
+    boolean isSubtreeRoot(final String path) {
+        Node<T> node = find(path);
+        return node!=null && !node.subtree.isEmpty();
+    }
+
+    /**
+     * Get the paths that have subtree subscriptions.
+     */
+    Set<String> getSubtreeRoots() {
+        Set<String> roots = new HashSet<String>();
+        collect(root, "", null, roots);
+        return roots;
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        root.children.clear();
+        root.subtree.clear();
+        root.value = null;
+        size = 0;
+    }
+
+    /**
+     * Get the exact registrations.
+     *
+     * @return A copy of the exact registrations, keyed by path.
+     */
+    Map<String, T> toMap() {
+        Map<String, T> map = new HashMap<String, T>();
+        collect(root, "", map, null);
+        return map;
+    }
+
+    private void collect(final Node<T> node, final String path, final Map<String, T> values, final Set<String> roots) {
+        String p = path.length()==0?"/":path;
+        T value = node.value;
+        if(values!=null && value!=null)
+            values.put(p, value);
+        if(roots!=null && !node.subtree.isEmpty())
+            roots.add(p);
+        for(Map.Entry<String, Node<T>> entry : node.children.entrySet())
+            collect(entry.getValue(), path+"/"+entry.getKey(), values, roots);
+    }
+
+    private Node<T> find(final String path) {
+        Node<T> node = root;
+        for(String element : split(path)) {
+            node = node.children.get(element);
+            if(node==null)
+                return null;
+        }
+        return node;
+    }
+
+    /*
+     * The nodes from the root to the path, or null if the path is not in the trie
+     */
+    private List<Node<T>> trail(final String path) {
+        List<Node<T>> trail = new ArrayList<Node<T>>();
+        Node<T> node = root;
+        trail.add(node);
+        for(String element : split(path)) {
+            node = node.children.get(element);
+            if(node==null)
+                return null;
+            trail.add(node);
+        }
+        return trail;
+    }
+
+    private void prune(final String path, final List<Node<T>> trail) {
+        String[] elements = split(path);
+        for(int i=elements.length; i>0; i--) {
+            if(!trail.get(i).isEmpty())
+                return;
+            trail.get(i-1).children.remove(elements[i-1]);
+        }
+    }
+
+    static String[] split(final String path) {
+        if(path==null || !path.startsWith("/"))
+            throw new IllegalArgumentException("path must be an absolute path");
+        if(path.length()==1)
+            return new String[0];
+        return (path.endsWith("/")?path.substring(1, path.length()-1):path.substring(1)).split("/");
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A phi-accrual failure detector for a single member. The detector learns the distribution of the
+ * intervals between a member's heartbeats, and expresses how unlikely it is that the member is
+ * still alive given the time since its last heartbeat as phi: a phi of 1 means a 10% chance the
+ * suspicion is wrong, 2 means 1%, 3 means 0.1% and so on.
+ *
+ * <p>Intervals are assumed to be normally distributed, the cumulative distribution is approximated
+ * with a logistic function. The detector reports a phi of 0 until it has seen two heartbeats.</p>
+ *
+ * @author Dennis Reedy
+ */
+public class PhiAccrualDetector {
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    /**
+     * The default lower bound (ms) of the standard deviation, keeps a perfectly regular member from
+     * being suspected the moment a heartbeat is late.
+     */
+    public static final long DEFAULT_MIN_STD_DEVIATION = 100;
+    private final long[] intervals;
+    private final long minStdDeviation;
+    private final long acceptablePause;
+    private int count;
+    private int next;
+    private long sum;
+    private long sumOfSquares;
+    private long lastHeartbeat = -1;
+
+    public PhiAccrualDetector() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_STD_DEVIATION, 0);
+    }
+
+    /**
+     * Create a {@code PhiAccrualDetector}.
+     *
+     * @param windowSize The number of intervals the distribution is computed from, must be greater than zero.
+     * @param minStdDeviation The lower bound (ms) of the standard deviation, must be greater than zero.
+     * @param acceptablePause An additional time (ms) a heartbeat may be late without raising phi,
+     * for example to allow for garbage collection pauses. Must not be negative.
+     */
+    public PhiAccrualDetector(final int windowSize, final long minStdDeviation, final long acceptablePause) {
+        if(windowSize<1)
+            throw new IllegalArgumentException("windowSize must be greater than zero");
+        if(minStdDeviation<1)
+            throw new IllegalArgumentException("minStdDeviation must be greater than zero");
+        if(acceptablePause<0)
+            throw new IllegalArgumentException("acceptablePause must not be negative");
+        this.intervals = new long[windowSize];
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+    }
+
+    /**
+     * Record a heartbeat.
+     *
+     * @param time The {@code System.nanoTime()} the heartbeat was received.
+     */
+    public synchronized void heartbeat(final long time) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(time);
+        if(lastHeartbeat>=0) {
+            long interval = Math.max(0, millis-lastHeartbeat);
+            if(count==intervals.length) {
+                long evicted = intervals[next];
+                sum -= evicted;
+                sumOfSquares -= evicted*evicted;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next+1)%intervals.length;
+            sum += interval;
+            sumOfSquares += interval*interval;
+        }
+        lastHeartbeat = millis;
+    }
+
+    /**
+     * Get the suspicion level.
+     *
+     * @param time The current {@code System.nanoTime()}.
+     *
+     * @return The phi value, 0 if no interval between heartbeats has been seen yet.
+     */
+    public synchronized double phi(final long time) {
+        if(count==0)
+            return 0;
+        double mean = (double)sum/count+acceptablePause;
+        double variance = (double)sumOfSquares/count-((double)sum/count)*((double)sum/count);
+        double stdDeviation = Math.max(Math.sqrt(Math.max(0, variance)), minStdDeviation);
+        double elapsed = TimeUnit.NANOSECONDS.toMillis(time)-lastHeartbeat;
+        double y = (elapsed-mean)/stdDeviation;
+        double e = Math.exp(-y*(1.5976+0.070566*y*y));
+        if(elapsed>mean)
+            return -Math.log10(e/(1+e));
+        return -Math.log10(1-1/(1+e));
+    }
+
+    /**
+     * Get the number of heartbeat intervals the distribution is computed from.
+     */
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Get the mean interval (ms) between heartbeats.
+     *
+     * @return The mean interval, or 0 if no interval has been seen yet.
+     */
+    public synchronized double getMeanInterval() {
+        return count==0?0:(double)sum/count;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+/**
+ * Notified when the suspicion level (phi) of a service monitored by a {@link ZooKeeperServiceWatcher}
+ * crosses the threshold the listener was registered with. Suspicion is advisory: the service's
+ * zNode still exists, a {@code FaultDetectionListener} is notified if it goes away.
+ *
+ * @author Dennis Reedy
+ */
+public interface SuspicionListener {
+    /**
+     * The service's phi has reached the threshold.
+     *
+     * @param zNode The zNode of the service.
+     * @param phi The phi value.
+     */
+    void suspected(String zNode, double phi);
+
+    /**
+     * A heartbeat has been received from a suspected service.
+     *
+     * @param zNode The zNode of the service.
+     */
+    void cleared(String zNode);
+}
@@ -18,38 +18,358 @@ package org.rioproject.zookeeper.watcher;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Watches the zNodes of services and notifies a {@link FaultDetectionListener} when a service's
+ * zNode goes away.
+ *
+ * <p>Optionally, services that send heartbeats (see {@code LoadPublisher#setHeartbeatInterval(long)})
+ * are also monitored with a {@link PhiAccrualDetector}. This yields a suspicion level well before
+ * the session of a failed service times out, reported to {@link SuspicionListener}s registered with
+ * their own thresholds.</p>
+ *
+ * <p>Besides individual services, a listener can be subscribed to a whole subtree, for example
+ * every member of every group of a deployment, with {@link #addSubtree(String, FaultDetectionListener)}.
+ * Registrations are kept in a path trie, an event is resolved to its listeners in time proportional
+ * to the depth of its path.</p>
+ *
  * @author Dennis Reedy
  */
 public class ZooKeeperServiceWatcher implements Watcher {
-    private final ZooKeeper zooKeeper;
-    private final Map<String, FaultDetectionListener<String>> services = new ConcurrentHashMap<String, FaultDetectionListener<String>>();
+    /**
+     * How services are watched.
+     */
+    public enum Mode {
+        /**
+         * A watch is set on each service's zNode.
+         */
+        MEMBER,
+        /**
+         * A single child watch is set on the parent (group) of the services' zNodes, and changes
+         * to the parent's children are diffed to find the services that have gone away. The number
+         * of server side watches scales with the number of groups, not the number of services.
+         * For a sharded group (see {@link GroupLayout}) the parent of a service's zNode is its
+         * bucket, so a change only re-reads the one bucket it touched.
+         */
+        GROUP
+    }
+    /**
+     * The default maximum number of outstanding requests when re-arming watches after a session expires.
+     */
+    public static final int DEFAULT_MAX_RECOVERY_IN_FLIGHT = 500;
+    /**
+     * The default time (ms) between evaluations of the suspicion levels of services.
+     */
+    public static final long DEFAULT_SUSPICION_CHECK_INTERVAL = 250;
+    private volatile ZooKeeper zooKeeper;
+    private final ZooKeeperClient client;
+    private final Mode mode;
+    private int maxRecoveryInFlight = DEFAULT_MAX_RECOVERY_IN_FLIGHT;
+    private long recoveryTimeout = TimeUnit.MINUTES.toMillis(1);
+    private volatile long lastRecoveryTime = -1;
+    private ExecutorService recoveryExecutor;
+    private FaultDetectionDispatcher dispatcher;
+    private volatile ZooKeeperMetrics metrics = ZooKeeperMetrics.getInstance();
+    private boolean sharedDispatcher;
+    private final PathTrie<FaultDetectionListener<String>> services = new PathTrie<FaultDetectionListener<String>>();
+    /* The nodes of subscribed subtrees being watched, and whether each is ephemeral */
+    private final ConcurrentMap<String, Boolean> tracked = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentMap<String, GroupMembership> groups = new ConcurrentHashMap<String, GroupMembership>();
+    private volatile boolean monitorHeartbeats;
+    private final ConcurrentMap<String, PhiAccrualDetector> detectors = new ConcurrentHashMap<String, PhiAccrualDetector>();
+    private final List<Suspicion> suspicions = new CopyOnWriteArrayList<Suspicion>();
+    private long suspicionCheckInterval = DEFAULT_SUSPICION_CHECK_INTERVAL;
+    private volatile long coalesceWindow;
+    private volatile long maxCoalesceDelay;
+    private ScheduledExecutorService suspicionChecker;
     private static Logger logger = LoggerFactory.getLogger(ZooKeeperServiceWatcher.class);
 
     /**
-     * Create a {code ZooKeeperServiceWatcher}.
+     * Create a {code ZooKeeperServiceWatcher} that watches each service's zNode.
      *
      * @param zooKeeper The {@code ZooKeeper}, must not be {@code null}.
      *
      * @throws IllegalArgumentException if the {@code zooKeeper} is {@code null}.
      */
     public ZooKeeperServiceWatcher(final ZooKeeper zooKeeper) {
+        this(zooKeeper, Mode.MEMBER);
+    }
+
+    /**
+     * Create a {code ZooKeeperServiceWatcher}.
+     *
+     * @param zooKeeper The {@code ZooKeeper}, must not be {@code null}.
+     * @param mode The {@link Mode} to use, must not be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code zooKeeper} or {@code mode} is {@code null}.
+     */
+    public ZooKeeperServiceWatcher(final ZooKeeper zooKeeper, final Mode mode) {
         if(zooKeeper==null)
             throw new IllegalArgumentException("zooKeeper can not be null");
+        if(mode==null)
+            throw new IllegalArgumentException("mode can not be null");
         this.zooKeeper = zooKeeper;
+        this.client = null;
+        this.mode = mode;
+    }
+
+    /**
+     * Create a {code ZooKeeperServiceWatcher} that recovers from session expiration. When the
+     * session expires a new session is established using the {@code ZooKeeperClient}, all watches
+     * are re-armed, and services that went away while the session was lost are reported as failed.
+     *
+     * <p>The {@code ZooKeeperServiceWatcher} registers itself with the client to receive session events.</p>
+     *
+     * @param client The {@code ZooKeeperClient}, must not be {@code null} and must be connected.
+     * @param mode The {@link Mode} to use, must not be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code client} or {@code mode} is {@code null}, or
+     * if the {@code client} is not connected.
+     */
+    public ZooKeeperServiceWatcher(final ZooKeeperClient client, final Mode mode) {
+        if(client==null)
+            throw new IllegalArgumentException("client can not be null");
+        if(client.getZooKeeper()==null)
+            throw new IllegalArgumentException("client is not connected");
+        if(mode==null)
+            throw new IllegalArgumentException("mode can not be null");
+        this.client = client;
+        this.zooKeeper = client.getZooKeeper();
+        this.mode = mode;
+        client.register(this);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the maximum number of outstanding requests used to re-arm watches after a session expires.
+     *
+     * @param maxRecoveryInFlight The maximum number of outstanding requests, must be greater than zero.
+     */
+    public void setMaxRecoveryInFlight(final int maxRecoveryInFlight) {
+        if(maxRecoveryInFlight<1)
+            throw new IllegalArgumentException("maxRecoveryInFlight must be greater than zero");
+        this.maxRecoveryInFlight = maxRecoveryInFlight;
+    }
+
+    /**
+     * Set how long to wait for a new session to be established and watches re-armed after a session
+     * expires. If recovery does not complete in time, services that could not be verified are
+     * reported as failed.
+     *
+     * @param recoveryTimeout The time to wait, in milliseconds, must be greater than zero.
+     */
+    public void setRecoveryTimeout(final long recoveryTimeout) {
+        if(recoveryTimeout<1)
+            throw new IllegalArgumentException("recoveryTimeout must be greater than zero");
+        this.recoveryTimeout = recoveryTimeout;
+    }
+
+    /**
+     * Coalesce the changes of groups watched in {@link Mode#GROUP} mode, so a burst of services
+     * leaving a group is found with one read and reported together. Applies to groups first
+     * watched from now on.
+     *
+     * @param window The window (ms), 0 disables coalescing.
+     * @param maxDelay The longest time (ms) a failure is held back, must not be less than the {@code window}.
+     *
+     * @see GroupMembership#setCoalescing(long, long)
+     */
+    public void setCoalescing(final long window, final long maxDelay) {
+        if(window<0)
+            throw new IllegalArgumentException("window must not be negative");
+        if(maxDelay<window)
+            throw new IllegalArgumentException("maxDelay must not be less than the window");
+        this.coalesceWindow = window;
+        this.maxCoalesceDelay = maxDelay;
+    }
+
+    /**
+     * Monitor the heartbeats of services added from now on. A data watch is set on each service's
+     * zNode, and every change to its data is taken as a heartbeat. Services that do not send
+     * heartbeats are never suspected.
+     *
+     * @param monitorHeartbeats {@code true} to monitor heartbeats.
+     */
+    public void setHeartbeatMonitoring(final boolean monitorHeartbeats) {
+        this.monitorHeartbeats = monitorHeartbeats;
+    }
+
+    /**
+     * Set the time between evaluations of the suspicion levels of services. Takes effect when the
+     * first {@link SuspicionListener} is added.
+     *
+     * @param suspicionCheckInterval The time (ms) between evaluations, must be greater than zero.
+     */
+    public synchronized void setSuspicionCheckInterval(final long suspicionCheckInterval) {
+        if(suspicionCheckInterval<1)
+            throw new IllegalArgumentException("suspicionCheckInterval must be greater than zero");
+        this.suspicionCheckInterval = suspicionCheckInterval;
+    }
+
+    /**
+     * Add a {@link SuspicionListener}.
+     *
+     * @param listener The {@code SuspicionListener}, must not be {@code null}.
+     * @param threshold The phi at which a service is suspected, must be greater than zero. A phi of
+     * 8 corresponds to a one in a hundred million chance that the suspicion is wrong.
+     */
+    public synchronized void addSuspicionListener(final SuspicionListener listener, final double threshold) {
+        if(listener==null)
+            throw new IllegalArgumentException("listener can not be null");
+        if(threshold<=0)
+            throw new IllegalArgumentException("threshold must be greater than zero");
+        suspicions.add(new Suspicion(listener, threshold));
+        if(suspicionChecker==null) {
+            suspicionChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ZooKeeperServiceWatcher-suspicion");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            suspicionChecker.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkSuspicion();
+                }
+            }, suspicionCheckInterval, suspicionCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void removeSuspicionListener(final SuspicionListener listener) {
+        for(Suspicion suspicion : suspicions) {
+            if(suspicion.listener==listener)
+                suspicions.remove(suspicion);
+        }
+    }
+
+    /**
+     * Get the suspicion level of a service.
+     *
+     * @param zNode The zNode of the service, must not be {@code null}.
+     *
+     * @return The phi of the service, 0 if its heartbeats are not monitored or too few have been received.
+     */
+    public double getPhi(final String zNode) {
+        if(zNode==null)
+            throw new IllegalArgumentException("zNode can not be null");
+        PhiAccrualDetector detector = detectors.get(zNode);
+        return detector==null?0:detector.phi(System.nanoTime());
+    }
+
+    /**
+     * Get the suspicion levels of all services whose heartbeats are monitored.
+     *
+     * @return A {@code Map} of zNodes to their phi.
+     */
+    public Map<String, Double> getSuspicionLevels() {
+        Map<String, Double> levels = new HashMap<String, Double>();
+        long now = System.nanoTime();
+        for(Map.Entry<String, PhiAccrualDetector> entry : detectors.entrySet())
+            levels.put(entry.getKey(), entry.getValue().phi(now));
+        return levels;
+    }
+
+    /**
+     * Set the {@code ZooKeeperMetrics} operations are recorded in. Defaults to {@link ZooKeeperMetrics#getInstance()}.
+     *
+     * @param metrics The {@code ZooKeeperMetrics}, must not be {@code null}.
+     */
+    public synchronized void setMetrics(final ZooKeeperMetrics metrics) {
+        if(metrics==null)
+            throw new IllegalArgumentException("metrics can not be null");
+        this.metrics = metrics;
+        if(dispatcher!=null && !sharedDispatcher)
+            dispatcher.setMetrics(metrics);
+    }
+
+    /**
+     * Set the {@link FaultDetectionDispatcher} used to notify listeners, allowing a dispatcher to be
+     * shared between {@code ZooKeeperServiceWatcher}s. If not set, a dispatcher is created when the
+     * first notification is made.
+     *
+     * @param dispatcher The {@code FaultDetectionDispatcher}, must not be {@code null}.
+     */
+    public synchronized void setDispatcher(final FaultDetectionDispatcher dispatcher) {
+        if(dispatcher==null)
+            throw new IllegalArgumentException("dispatcher can not be null");
+        if(this.dispatcher!=null && !sharedDispatcher)
+            this.dispatcher.shutdown();
+        this.dispatcher = dispatcher;
+        this.sharedDispatcher = true;
+    }
+
+    /**
+     * Get the {@link FaultDetectionDispatcher} used to notify listeners.
+     *
+     * @return The {@code FaultDetectionDispatcher}.
+     */
+    public synchronized FaultDetectionDispatcher getDispatcher() {
+        if(dispatcher==null) {
+            dispatcher = new FaultDetectionDispatcher();
+            dispatcher.setMetrics(metrics);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Stop watching. Threads created by the {@code ZooKeeperServiceWatcher} are shut down, a
+     * {@code FaultDetectionDispatcher} provided with {@link #setDispatcher(FaultDetectionDispatcher)}
+     * is left running.
+     */
+    public synchronized void close() {
+        if(client!=null)
+            client.unregister(this);
+        services.clear();
+        tracked.clear();
+        for(GroupMembership membership : groups.values())
+            membership.close();
+        groups.clear();
+        detectors.clear();
+        suspicions.clear();
+        if(suspicionChecker!=null)
+            suspicionChecker.shutdownNow();
+        if(recoveryExecutor!=null)
+            recoveryExecutor.shutdownNow();
+        if(dispatcher!=null && !sharedDispatcher)
+            dispatcher.shutdown();
+    }
+
+    /**
+     * Get how long the last recovery from session expiration took.
+     *
+     * @return The duration of the last recovery in milliseconds, or -1 if no recovery has taken place.
+     */
+    public long getLastRecoveryTime() {
+        return lastRecoveryTime;
+    }
+
+    /**
+     * Determine whether the watcher is connected to a server that has lost contact with the quorum.
+     * Watches keep firing while read-only, but what they report may lag the rest of the ensemble.
+     *
+     * @return {@code true} if the session is connected read-only.
+     *
+     * @see ZooKeeperClient#setCanBeReadOnly(boolean)
+     */
+    public boolean isReadOnly() {
+        return zooKeeper.getState()==ZooKeeper.States.CONNECTEDREADONLY;
     }
 
     /**
      * Add a service to watch.
      *
-     * @param zNode The ZooKeeper node (zNode), must not be {@code null}.
+     * @param zNode The ZooKeeper node (zNode), must not be {@code null}. For a group member this is the
+     * path the member joined at, as returned by {@link GroupManagement#join(String, String)}, which
+     * includes the bucket if the group is sharded.
      * @param listener The {@link FaultDetectionListener} to be notified if the service fails.
      *
      * @throws IllegalArgumentException if the {@code zNode} or {@code listener} is {@code null}.
@@ -59,8 +379,16 @@ public class ZooKeeperServiceWatcher implements Watcher {
             throw new IllegalArgumentException("zNode can not be null");
         if(listener==null)
             throw new IllegalArgumentException("listener can not be null");
-        zooKeeper.getChildren(zNode, true, new AsyncCallback.Children2Callback() {
+        if(monitorHeartbeats && detectors.putIfAbsent(zNode, new PhiAccrualDetector())==null)
+            watchHeartbeat(zNode);
+        if(mode==Mode.GROUP) {
+            addGroupService(zNode, listener);
+            return;
+        }
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+        zooKeeper.getChildren(zNode, this, new AsyncCallback.Children2Callback() {
             public void processResult(int rc, String path, Object o, List<String> strings, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
                 if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
                     services.put(zNode, listener);
                 } else {
@@ -70,26 +398,484 @@ public class ZooKeeperServiceWatcher implements Watcher {
         }, null);
     }
 
+    /**
+     * Stop watching a service. A watch already set on its zNode fires once more and is then ignored.
+     *
+     * @param zNode The ZooKeeper node (zNode) the service was added with, must not be {@code null}.
+     *
+     * @return The {@code FaultDetectionListener} the service was added with, or {@code null} if the
+     * service was not being watched.
+     *
+     * @throws IllegalArgumentException if the {@code zNode} is {@code null}.
+     */
+    public FaultDetectionListener<String> removeService(final String zNode) {
+        if(zNode==null)
+            throw new IllegalArgumentException("zNode can not be null");
+        detectors.remove(zNode);
+        for(Suspicion suspicion : suspicions)
+            suspicion.suspected.remove(zNode);
+        return services.remove(zNode);
+    }
+
+    /**
+     * Subscribe a listener to a subtree. Every node below the root is discovered and watched, as
+     * are nodes created later, and the listener is notified when an ephemeral node in the subtree,
+     * such as a group member, goes away. If the root does not exist yet, it is watched for.
+     *
+     * @param root The root of the subtree, must not be {@code null}.
+     * @param listener The {@link FaultDetectionListener} to be notified, must not be {@code null}.
+     *
+     * @throws IllegalArgumentException if the {@code root} or {@code listener} is {@code null}.
+     */
+    public void addSubtree(final String root, final FaultDetectionListener<String> listener) {
+        if(root==null)
+            throw new IllegalArgumentException("root can not be null");
+        if(listener==null)
+            throw new IllegalArgumentException("listener can not be null");
+        services.addSubtree(root, listener);
+        discover(root);
+    }
+
+    /**
+     * Remove a subtree subscription. Watches already set fire once more and are then dropped.
+     *
+     * @param root The root of the subtree, must not be {@code null}.
+     * @param listener The {@link FaultDetectionListener} that was subscribed, must not be {@code null}.
+     */
+    public void removeSubtree(final String root, final FaultDetectionListener<String> listener) {
+        if(root==null)
+            throw new IllegalArgumentException("root can not be null");
+        if(listener==null)
+            throw new IllegalArgumentException("listener can not be null");
+        services.removeSubtree(root, listener);
+        for(String path : tracked.keySet()) {
+            if(services.matchSubtrees(path).isEmpty())
+                tracked.remove(path);
+        }
+    }
+
+    /*
+     * Watch a node of a subscribed subtree and discover its children
+     */
+    private void discover(final String zNode) {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+        zooKeeper.getChildren(zNode, this, new AsyncCallback.Children2Callback() {
+            public void processResult(int rc, String path, Object o, List<String> children, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if(KeeperException.Code.OK.equals(code)) {
+                    if(services.matchSubtrees(zNode).isEmpty())
+                        return;
+                    tracked.put(zNode, stat.getEphemeralOwner()!=0);
+                    for(String child : children) {
+                        String childPath = zNode.equals("/")?"/"+child:String.format("%s/%s", zNode, child);
+                        if(!tracked.containsKey(childPath))
+                            discover(childPath);
+                    }
+                } else if(KeeperException.Code.NONODE.equals(code)) {
+                    if(services.isSubtreeRoot(zNode))
+                        watchForCreate(zNode);
+                } else {
+                    logger.warn("Unable to discover {}, {}", zNode, code);
+                }
+            }
+        }, null);
+    }
+
+    private void watchForCreate(final String zNode) {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+        zooKeeper.exists(zNode, this, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object o, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                /* Created before the watch was set */
+                if(KeeperException.Code.OK.equals(KeeperException.Code.get(rc)))
+                    discover(zNode);
+            }
+        }, null);
+    }
+
+    private void subtreeEvent(final WatchedEvent event, final long received) {
+        String path = event.getPath();
+        switch(event.getType()) {
+            case NodeChildrenChanged:
+                if(tracked.containsKey(path))
+                    discover(path);
+                break;
+            case NodeCreated:
+                if(!services.matchSubtrees(path).isEmpty())
+                    discover(path);
+                break;
+            case NodeDeleted:
+                Boolean ephemeral = tracked.remove(path);
+                if(ephemeral!=null && ephemeral)
+                    notifySubtree(path, received);
+                if(services.isSubtreeRoot(path))
+                    watchForCreate(path);
+                break;
+        }
+    }
+
+    private void notifySubtree(final String zNode, final long received) {
+        for(FaultDetectionListener<String> listener : services.matchSubtrees(zNode))
+            getDispatcher().dispatch(listener, zNode, received);
+    }
+
+    /**
+     * Get the membership of a group watched in {@link Mode#GROUP} mode, watching the group if it is
+     * not watched yet. This is the membership services of the group are checked against, waiting on
+     * it to list a member ensures the member is known once it is added as a service.
+     *
+     * @param parent The path of the group (or bucket) node, must not be {@code null}.
+     *
+     * @return The {@code GroupMembership} of the group.
+     *
+     * @throws IllegalStateException if the mode is not {@link Mode#GROUP}.
+     */
+    public GroupMembership watchGroup(final String parent) {
+        if(parent==null)
+            throw new IllegalArgumentException("parent can not be null");
+        if(mode!=Mode.GROUP)
+            throw new IllegalStateException("Groups are only watched in GROUP mode");
+        GroupMembership membership = groups.get(parent);
+        if(membership==null) {
+            GroupMembership created = new GroupMembership(zooKeeper, parent);
+            created.setMetrics(metrics);
+            created.setCoalescing(coalesceWindow, maxCoalesceDelay);
+            membership = groups.putIfAbsent(parent, created);
+            if(membership==null) {
+                membership = created;
+                startGroup(created);
+            }
+        }
+        return membership;
+    }
+
+    private void addGroupService(final String zNode, final FaultDetectionListener<String> listener) {
+        int ndx = zNode.lastIndexOf('/');
+        if(ndx<0 || ndx==zNode.length()-1)
+            throw new IllegalArgumentException("zNode must be an absolute path to a child node");
+        String parent = ndx==0?"/":zNode.substring(0, ndx);
+        services.put(zNode, listener);
+        GroupMembership membership = watchGroup(parent);
+        if(membership.isInitialized() && !membership.getMembers().contains(zNode.substring(ndx+1))) {
+            services.remove(zNode);
+            logger.error("Unable to add watch for {}, {}", zNode, KeeperException.Code.NONODE);
+        }
+    }
+
+    /*
+     * Start watching a group. Services added before the group has been read are checked against
+     * the first read; those that are absent are handled as if added afterwards.
+     */
+    private OperationFuture<MembershipSnapshot> startGroup(final GroupMembership membership) {
+        final Collection<String> known = membership.getMembers();
+        membership.addListener(new GroupListener(membership));
+        OperationFuture<MembershipSnapshot> started = membership.start();
+        started.addListener(new OperationListener<MembershipSnapshot>() {
+            public void operationComplete(OperationFuture<MembershipSnapshot> future) {
+                MembershipSnapshot snapshot = membership.getSnapshot();
+                String parent = snapshot.getPath();
+                for(String member : services.getChildren(parent)) {
+                    /* Members of a seed that have gone are reported by the GroupListener */
+                    if(known.contains(member) || snapshot.getMembers().contains(member))
+                        continue;
+                    String path = parent.equals("/")?"/"+member:String.format("%s/%s", parent, member);
+                    if(services.remove(path)!=null)
+                        logger.error("Unable to add watch for {}, {}", path, KeeperException.Code.NONODE);
+                }
+            }
+        });
+        return started;
+    }
+
+    /*
+     * Set the data watch through which heartbeats are received
+     */
+    private void watchHeartbeat(final String zNode) {
+        final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+        zooKeeper.exists(zNode, this, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object o, Stat stat) {
+                metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc)))
+                    detectors.remove(zNode);
+            }
+        }, null);
+    }
+
+    private void heartbeat(final String zNode, final long received) {
+        PhiAccrualDetector detector = detectors.get(zNode);
+        if(detector==null)
+            return;
+        detector.heartbeat(received);
+        watchHeartbeat(zNode);
+        for(Suspicion suspicion : suspicions) {
+            if(suspicion.suspected.remove(zNode)) {
+                try {
+                    suspicion.listener.cleared(zNode);
+                } catch(RuntimeException e) {
+                    logger.warn("Notifying {} of cleared suspicion", suspicion.listener, e);
+                }
+            }
+        }
+    }
+
+    private void checkSuspicion() {
+        long now = System.nanoTime();
+        for(Map.Entry<String, PhiAccrualDetector> entry : detectors.entrySet()) {
+            String zNode = entry.getKey();
+            if(!services.containsKey(zNode)) {
+                detectors.remove(zNode);
+                for(Suspicion suspicion : suspicions)
+                    suspicion.suspected.remove(zNode);
+                continue;
+            }
+            double phi = entry.getValue().phi(now);
+            for(Suspicion suspicion : suspicions) {
+                if(phi>=suspicion.threshold && suspicion.suspected.add(zNode)) {
+                    if(logger.isDebugEnabled())
+                        logger.debug("{} suspected, phi: {}", zNode, phi);
+                    try {
+                        suspicion.listener.suspected(zNode, phi);
+                    } catch(RuntimeException e) {
+                        logger.warn("Notifying {} of suspicion", suspicion.listener, e);
+                    }
+                }
+            }
+        }
+    }
+
     public void process(WatchedEvent event) {
         String path = event.getPath();
         if(logger.isDebugEnabled())
             logger.debug("{}", event);
+        if (event.getType() == Event.EventType.None) {
+            if(event.getState().equals(Event.KeeperState.Expired))
+                sessionExpired();
+            return;
+        }
         if(path==null)
             return;
-        if (event.getType() == Event.EventType.None && event.getState().equals(Event.KeeperState.Expired)) {
-            services.remove(path).serviceFailure(null, path);
-        } else {
-            if(logger.isDebugEnabled())
-                logger.debug("Path: {}", path);
-            if (services.get(path)!=null) {
-                /* Something has changed on the node, let's find out if it still exists */
-                zooKeeper.exists(path, false, new AsyncCallback.StatCallback() {
-                    public void processResult(int rc, String path, Object ctx, Stat stat) {
-                        if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc))) {
-                            services.remove(path).serviceFailure(null, path);
-                        }
+        final long received = System.nanoTime();
+        metrics.watchEvent();
+        if(logger.isDebugEnabled())
+            logger.debug("Path: {}", path);
+        if(event.getType()==Event.EventType.NodeDataChanged) {
+            heartbeat(path, received);
+            return;
+        }
+        if(tracked.containsKey(path) || event.getType()==Event.EventType.NodeCreated)
+            subtreeEvent(event, received);
+        if (services.get(path)!=null) {
+            /* Something has changed on the node, let's find out if it still exists */
+            final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+            zooKeeper.exists(path, false, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                    if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc))) {
+                        FaultDetectionListener<String> listener = services.remove(path);
+                        if(listener!=null)
+                            getDispatcher().dispatch(listener, path, received);
                     }
-                }, null);
+                }
+            }, null);
+        }
+    }
+
+    private synchronized void sessionExpired() {
+        if(client==null) {
+            logger.warn("Session expired and cannot be re-established, reporting {} services as failed", services.size());
+            Map<String, FaultDetectionListener<String>> lost = services.toMap();
+            long now = System.nanoTime();
+            for(Map.Entry<String, Boolean> entry : tracked.entrySet()) {
+                if(entry.getValue())
+                    notifySubtree(entry.getKey(), now);
+            }
+            services.clear();
+            tracked.clear();
+            for(GroupMembership membership : groups.values())
+                membership.close();
+            groups.clear();
+            notifyFailed(lost);
+            return;
+        }
+        if(recoveryExecutor==null) {
+            recoveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ZooKeeperServiceWatcher-recovery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        recoveryExecutor.submit(new Runnable() {
+            public void run() {
+                recover();
+            }
+        });
+    }
+
+    /*
+     * Runs on the recovery thread: establishes a new session, re-arms every watch through a bounded
+     * window of asynchronous requests, and reports services that went away while the session was lost.
+     */
+    private void recover() {
+        long start = System.currentTimeMillis();
+        long deadline = start+recoveryTimeout;
+        logger.warn("Session expired, recovering watches for {} services", services.size());
+        try {
+            zooKeeper = client.reconnect().get(recoveryTimeout, TimeUnit.MILLISECONDS);
+            if(mode==Mode.GROUP)
+                rearmGroups(deadline);
+            else
+                rearmMembers(deadline);
+            for(String zNode : detectors.keySet()) {
+                if(services.containsKey(zNode))
+                    watchHeartbeat(zNode);
+                else
+                    detectors.remove(zNode);
+            }
+            rediscoverSubtrees();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Recovery was interrupted");
+        } catch(Exception e) {
+            logger.error("Unable to re-establish session, reporting {} services as failed", services.size(), e);
+            Map<String, FaultDetectionListener<String>> lost = services.toMap();
+            for(String zNode : lost.keySet())
+                services.remove(zNode);
+            notifyFailed(lost);
+        }
+        lastRecoveryTime = System.currentTimeMillis()-start;
+        logger.info("Recovered watches for {} services in {} ms", services.size(), lastRecoveryTime);
+    }
+
+    private void rearmMembers(final long deadline) throws InterruptedException {
+        final Map<String, FaultDetectionListener<String>> lost = new ConcurrentHashMap<String, FaultDetectionListener<String>>();
+        final Map<String, FaultDetectionListener<String>> toVerify = services.toMap();
+        final CountDownLatch verified = new CountDownLatch(toVerify.size());
+        final RequestWindow window = new RequestWindow(maxRecoveryInFlight);
+        final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        pending.addAll(toVerify.keySet());
+        for(final String zNode : toVerify.keySet()) {
+            window.submit(new Runnable() {
+                public void run() {
+                    final long start = metrics.start(ZooKeeperMetrics.Operation.GET_CHILDREN);
+                    zooKeeper.getChildren(zNode, ZooKeeperServiceWatcher.this, new AsyncCallback.Children2Callback() {
+                        public void processResult(int rc, String path, Object o, List<String> children, Stat stat) {
+                            metrics.stop(ZooKeeperMetrics.Operation.GET_CHILDREN, start);
+                            window.release();
+                            if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc))) {
+                                FaultDetectionListener<String> listener = services.remove(zNode);
+                                if(listener!=null)
+                                    lost.put(zNode, listener);
+                            } else if(!KeeperException.Code.OK.equals(KeeperException.Code.get(rc))) {
+                                logger.warn("Unable to re-arm watch for {}, {}", zNode, KeeperException.Code.get(rc));
+                            }
+                            pending.remove(zNode);
+                            verified.countDown();
+                        }
+                    }, null);
+                }
+            });
+        }
+        if(!verified.await(Math.max(0, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            window.close();
+            logger.warn("Timed out re-arming watches, {} services could not be verified", pending.size());
+            for(String zNode : pending) {
+                FaultDetectionListener<String> listener = services.remove(zNode);
+                if(listener!=null)
+                    lost.put(zNode, listener);
+            }
+        }
+        notifyFailed(lost);
+    }
+
+    private void rearmGroups(final long deadline) throws InterruptedException, ExecutionException {
+        Map<String, OperationFuture<MembershipSnapshot>> started = new HashMap<String, OperationFuture<MembershipSnapshot>>();
+        for(Map.Entry<String, GroupMembership> entry : groups.entrySet()) {
+            GroupMembership previous = entry.getValue();
+            previous.close();
+            /* Seeding with the previous view reports members that left while the session was lost */
+            GroupMembership membership = new GroupMembership(zooKeeper, entry.getKey(), previous.getSnapshot());
+            membership.setMetrics(metrics);
+            membership.setCoalescing(coalesceWindow, maxCoalesceDelay);
+            entry.setValue(membership);
+            started.put(entry.getKey(), startGroup(membership));
+        }
+        for(Map.Entry<String, OperationFuture<MembershipSnapshot>> entry : started.entrySet()) {
+            try {
+                entry.getValue().get(Math.max(0, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch(TimeoutException e) {
+                logger.warn("Timed out re-reading group {}", entry.getKey());
+            }
+        }
+    }
+
+    /*
+     * Ephemeral nodes of subscribed subtrees that went away while the session was lost are
+     * reported, then the subtrees are discovered again to re-arm their watches
+     */
+    private void rediscoverSubtrees() {
+        Map<String, Boolean> previous = new HashMap<String, Boolean>(tracked);
+        tracked.clear();
+        for(Map.Entry<String, Boolean> entry : previous.entrySet()) {
+            if(!entry.getValue())
+                continue;
+            final String zNode = entry.getKey();
+            final long start = metrics.start(ZooKeeperMetrics.Operation.EXISTS);
+            zooKeeper.exists(zNode, false, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object o, Stat stat) {
+                    metrics.stop(ZooKeeperMetrics.Operation.EXISTS, start);
+                    if(KeeperException.Code.NONODE.equals(KeeperException.Code.get(rc)))
+                        notifySubtree(zNode, System.nanoTime());
+                }
+            }, null);
+        }
+        for(String root : services.getSubtreeRoots())
+            discover(root);
+    }
+
+    private void notifyFailed(final Map<String, FaultDetectionListener<String>> failed) {
+        if(failed.isEmpty())
+            return;
+        logger.warn("Reporting {} services as failed", failed.size());
+        for(Map.Entry<String, FaultDetectionListener<String>> entry : failed.entrySet())
+            getDispatcher().dispatch(entry.getValue(), entry.getKey());
+    }
+
+    /**
+     * A {@code SuspicionListener}, its threshold and the services it has been told are suspected.
+     */
+    static class Suspicion {
+        final SuspicionListener listener;
+        final double threshold;
+        final Set<String> suspected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Suspicion(final SuspicionListener listener, final double threshold) {
+            this.listener = listener;
+            this.threshold = threshold;
+        }
+    }
+
+    /**
+     * Notified when the children of a watched group change, reports services that have left the group.
+     */
+    class GroupListener implements MembershipListener {
+        private final GroupMembership membership;
+
+        GroupListener(final GroupMembership membership) {
+            this.membership = membership;
+        }
+
+        public void membershipChanged(final MembershipSnapshot snapshot,
+                                      final Collection<String> added,
+                                      final Collection<String> removed) {
+            String parent = snapshot.getPath();
+            for(String member : removed) {
+                String path = parent.equals("/")?"/"+member:String.format("%s/%s", parent, member);
+                FaultDetectionListener<String> listener = services.remove(path);
+                if(listener!=null)
+                    getDispatcher().dispatch(listener, path, membership.getLastEventTime());
             }
         }
     }
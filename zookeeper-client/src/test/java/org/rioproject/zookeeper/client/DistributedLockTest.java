@@ -0,0 +1,244 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@code DistributedLock}, {@code DistributedReadWriteLock} and {@code DistributedSemaphore}
+ *
+ * @author Dennis Reedy
+ */
+public class DistributedLockTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private final List<ZooKeeperClient> clients = new ArrayList<ZooKeeperClient>();
+    private String hosts;
+
+    @Before
+    public void setUp() throws Exception {
+        zooKeeperStarter.start();
+        hosts = "127.0.0.1:"+zooKeeperStarter.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        for(ZooKeeperClient client : clients)
+            client.close();
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicInteger maxHolders = new AtomicInteger();
+        final AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i<5; i++) {
+            final DistributedLock lock = new DistributedLock(connect(), "/locks/mutex");
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for(int j=0; j<5; j++) {
+                            lock.acquire();
+                            int current = holders.incrementAndGet();
+                            if(current>maxHolders.get())
+                                maxHolders.set(current);
+                            Thread.sleep(5);
+                            holders.decrementAndGet();
+                            acquired.incrementAndGet();
+                            lock.release();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads)
+            thread.join(30*1000);
+        Assert.assertEquals(25, acquired.get());
+        Assert.assertEquals(1, maxHolders.get());
+    }
+
+    @Test
+    public void testReentrancyAndTimeout() throws Exception {
+        DistributedLock lock = new DistributedLock(connect(), "/locks/reentrant");
+        lock.acquire();
+        Assert.assertTrue(lock.tryAcquire(1, TimeUnit.SECONDS));
+        Assert.assertTrue(lock.isHeldByCurrentThread());
+
+        DistributedLock other = new DistributedLock(connect(), "/locks/reentrant");
+        Assert.assertFalse(other.tryAcquire(200, TimeUnit.MILLISECONDS));
+        OperationFuture<Lease> waiting = other.acquireAsync();
+
+        lock.release();
+        Assert.assertTrue(lock.isHeldByCurrentThread());
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("Lock must still be held");
+        } catch (TimeoutException e) {
+            /* expected */
+        }
+        lock.release();
+        Assert.assertFalse(lock.isHeldByCurrentThread());
+        Lease lease = waiting.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(lease.isValid());
+        lease.release().get(5, TimeUnit.SECONDS);
+
+        try {
+            lock.release();
+            Assert.fail("Expected IllegalMonitorStateException");
+        } catch (IllegalMonitorStateException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testReadWriteLock() throws Exception {
+        DistributedReadWriteLock first = new DistributedReadWriteLock(connect(), "/locks/rw");
+        DistributedReadWriteLock second = new DistributedReadWriteLock(connect(), "/locks/rw");
+        Lease read1 = first.readLock().acquireAsync().get(5, TimeUnit.SECONDS);
+        Lease read2 = second.readLock().acquireAsync().get(5, TimeUnit.SECONDS);
+
+        OperationFuture<Lease> write = first.writeLock().acquireAsync();
+        Thread.sleep(200);
+        Assert.assertFalse(write.isDone());
+        /* A reader arriving after a waiting writer queues behind it */
+        OperationFuture<Lease> read3 = second.readLock().acquireAsync();
+
+        read1.release();
+        Thread.sleep(200);
+        Assert.assertFalse(write.isDone());
+        read2.release();
+        Lease writeLease = write.get(5, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        Assert.assertFalse(read3.isDone());
+        writeLease.release();
+        Assert.assertTrue(read3.get(5, TimeUnit.SECONDS).isValid());
+    }
+
+    @Test
+    public void testReadWriteLockNoDowngrade() throws Exception {
+        DistributedReadWriteLock lock = new DistributedReadWriteLock(connect(), "/locks/rw");
+        lock.writeLock().acquire();
+        try {
+            lock.readLock().tryAcquire(1, TimeUnit.SECONDS);
+            Assert.fail("Downgrading the write lock should fail");
+        } catch(IllegalStateException e) {
+            /* expected */
+        }
+        lock.writeLock().release();
+        lock.readLock().acquire();
+        try {
+            lock.writeLock().tryAcquire(1, TimeUnit.SECONDS);
+            Assert.fail("Upgrading the read lock should fail");
+        } catch(IllegalStateException e) {
+            /* expected */
+        }
+        lock.close();
+        Assert.assertFalse(lock.readLock().isHeldByCurrentThread());
+
+        /* Closing released the read lock */
+        DistributedReadWriteLock other = new DistributedReadWriteLock(connect(), "/locks/rw");
+        Assert.assertTrue(other.writeLock().tryAcquire(5, TimeUnit.SECONDS));
+        other.close();
+    }
+
+    @Test
+    public void testSemaphore() throws Exception {
+        DistributedSemaphore semaphore = new DistributedSemaphore(connect(), "/locks/semaphore", 2);
+        Lease first = semaphore.acquire();
+        Lease second = semaphore.tryAcquire(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(second);
+        Assert.assertNull(semaphore.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        OperationFuture<Lease> third = semaphore.acquireAsync();
+        OperationFuture<Lease> fourth = semaphore.acquireAsync();
+        OperationFuture<Lease> fifth = semaphore.acquireAsync();
+        first.release();
+        Lease thirdLease = third.get(5, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        Assert.assertFalse(fourth.isDone());
+
+        second.release();
+        fourth.get(5, TimeUnit.SECONDS);
+        thirdLease.release();
+        fifth.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSessionExpiry() throws Exception {
+        ZooKeeperClient client = connect();
+        DistributedLock lock = new DistributedLock(client, "/locks/expiry");
+        lock.acquire();
+        OperationFuture<Lease> waiting = lock.acquireAsync();
+
+        DistributedLock other = new DistributedLock(connect(), "/locks/expiry");
+        OperationFuture<Lease> next = other.acquireAsync();
+
+        expire(client.getZooKeeper());
+        for(int i=0; i<50 && lock.isHeldByCurrentThread(); i++)
+            Thread.sleep(100);
+        Assert.assertFalse(lock.isHeldByCurrentThread());
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected the acquisition to fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof KeeperException.SessionExpiredException);
+        }
+        Assert.assertTrue(next.get(10, TimeUnit.SECONDS).isValid());
+    }
+
+    private ZooKeeperClient connect() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        client.connect(hosts, 3000).get(5, TimeUnit.SECONDS);
+        clients.add(client);
+        return client;
+    }
+
+    /*
+     * Expire a session by connecting with its id and password, then closing the duplicate
+     */
+    private void expire(ZooKeeper zooKeeper) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(hosts, 3000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if(event.getState()==Event.KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        }, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        duplicate.close();
+    }
+}
@@ -16,6 +16,9 @@
 package org.rioproject.zookeeper.client;
 
 import junit.framework.Assert;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.junit.After;
@@ -23,6 +26,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.rioproject.zookeeper.ZooKeeperStarter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Dennis Reedy
  */
@@ -75,4 +87,196 @@ public class GroupManagementTest {
         Stat stat = zooKeeper.exists("/Foo/Bar", false);
         Assert.assertNull(stat);
     }
+
+    @Test
+    public void testCreateAll() throws Exception {
+        groupManagement.create("Foo");
+        Map<String, KeeperException.Code> results = groupManagement.createAll(Arrays.asList("Foo", "Bar", "Baz"));
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(KeeperException.Code.NODEEXISTS, results.get("Foo"));
+        Assert.assertEquals(KeeperException.Code.OK, results.get("Bar"));
+        Assert.assertEquals(KeeperException.Code.OK, results.get("Baz"));
+        Assert.assertTrue(groupManagement.groupExists("Bar"));
+        Assert.assertTrue(groupManagement.groupExists("Baz"));
+    }
+
+    @Test
+    public void testJoinAll() throws Exception {
+        testJoin();
+        groupManagement.setMaxBatchSize(100);
+        List<String> members = new ArrayList<String>();
+        members.add("Bar");
+        for(int i=0; i<1000; i++)
+            members.add(String.format("member:%d", i));
+        Map<String, KeeperException.Code> results = groupManagement.joinAll("Foo", members);
+        Assert.assertEquals(1001, results.size());
+        Assert.assertEquals(KeeperException.Code.NODEEXISTS, results.get("Bar"));
+        for(int i=0; i<1000; i++)
+            Assert.assertEquals(KeeperException.Code.OK, results.get(String.format("member:%d", i)));
+        Assert.assertEquals(1001, groupManagement.list("Foo").size());
+    }
+
+    @Test
+    public void testJoinAllManyPresent() throws Exception {
+        groupManagement.create("Foo").get(5, TimeUnit.SECONDS);
+        groupManagement.setMaxBatchSize(50);
+        List<String> members = new ArrayList<String>();
+        for(int i=0; i<50; i++)
+            members.add(String.format("member:%d", i));
+        /* Every fifth member has already joined, spread across the batch */
+        for(int i=0; i<50; i+=5)
+            groupManagement.join("Foo", members.get(i)).get(5, TimeUnit.SECONDS);
+        Map<String, KeeperException.Code> results = groupManagement.joinAll("Foo", members);
+        Assert.assertEquals(50, results.size());
+        for(int i=0; i<50; i++)
+            Assert.assertEquals(i%5==0?KeeperException.Code.NODEEXISTS:KeeperException.Code.OK, results.get(members.get(i)));
+        Assert.assertEquals(50, groupManagement.list("Foo").size());
+    }
+
+    @Test
+    public void testJoinAllNoGroup() throws Exception {
+        Map<String, KeeperException.Code> results = groupManagement.joinAll("Foo", Arrays.asList("Bar", "Baz"));
+        Assert.assertEquals(KeeperException.Code.NONODE, results.get("Bar"));
+        Assert.assertEquals(KeeperException.Code.NONODE, results.get("Baz"));
+    }
+
+    @Test
+    public void testDeleteNestedGroup() throws Exception {
+        testCreate();
+        groupManagement.setMaxDeletesInFlight(10);
+        for(int i=0; i<5; i++) {
+            String sub = String.format("/Foo/sub-%d", i);
+            zooKeeper.create(sub, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            for(int j=0; j<20; j++)
+                zooKeeper.create(String.format("%s/member:%d", sub, j), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        }
+        for(int i=0; i<100; i++)
+            groupManagement.join("Foo", String.format("member:%d", i));
+        int deleted = groupManagement.delete("Foo").get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(206, deleted);
+        Assert.assertFalse(groupManagement.groupExists("Foo"));
+    }
+
+    @Test
+    public void testDeleteMissingGroup() throws Exception {
+        Assert.assertEquals(0, groupManagement.delete("Foo").get(10, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        Assert.assertEquals("/Foo", groupManagement.create("Foo").get(5, TimeUnit.SECONDS));
+        OperationFuture<String> exists = groupManagement.create("Foo");
+        try {
+            exists.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected NodeExistsException");
+        } catch(ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof KeeperException.NodeExistsException);
+        }
+        Assert.assertEquals(KeeperException.Code.NODEEXISTS, exists.getCode());
+        Assert.assertTrue(groupManagement.groupExistsAsync("Foo").get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(groupManagement.groupExistsAsync("Bar").get(5, TimeUnit.SECONDS));
+
+        final CountDownLatch joined = new CountDownLatch(1);
+        groupManagement.join("Foo", "Bar").addListener(new OperationListener<String>() {
+            public void operationComplete(OperationFuture<String> future) {
+                if(KeeperException.Code.OK.equals(future.getCode()))
+                    joined.countDown();
+            }
+        });
+        Assert.assertTrue(joined.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("Bar"), groupManagement.listAsync("Foo").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("/Foo/Bar", groupManagement.delete("Foo", "Bar").get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(groupManagement.listAsync("Foo").get(5, TimeUnit.SECONDS).isEmpty());
+        Assert.assertEquals(KeeperException.Code.NONODE, waitForCode(groupManagement.delete("Foo", "Bar")));
+    }
+
+    @Test
+    public void testJoinWithMemberInfo() throws Exception {
+        testCreate();
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("zone", "east");
+        MemberInfo memberInfo = new MemberInfo("10.0.0.1", 8080, 2, attributes);
+        groupManagement.join("Foo", "Bar", memberInfo).get(5, TimeUnit.SECONDS);
+        groupManagement.join("Foo", "Baz").get(5, TimeUnit.SECONDS);
+
+        MemberInfo read = groupManagement.getMemberInfo("Foo", "Bar").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(memberInfo, read);
+        /* Served from the cache, decoded once */
+        Assert.assertSame(read, groupManagement.getMemberInfo("Foo", "Bar").get(5, TimeUnit.SECONDS));
+        Assert.assertNull(groupManagement.getMemberInfo("Foo", "Baz").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(KeeperException.Code.NONODE, waitForCode(groupManagement.getMemberInfo("Foo", "Qux")));
+
+        /* A data change is read through the watch */
+        MemberInfo updated = memberInfo.withLoad(5, 0.5);
+        zooKeeper.setData("/Foo/Bar", updated.encode(), -1);
+        MemberInfoReader reader = groupManagement.getMemberInfoReader();
+        for(int i=0; i<50 && !updated.equals(reader.getCached("/Foo/Bar")); i++)
+            Thread.sleep(100);
+        Assert.assertEquals(updated, groupManagement.getMemberInfo("Foo", "Bar").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(5, reader.getCached("/Foo/Bar").getInFlight());
+
+        groupManagement.delete("Foo", "Bar").get(5, TimeUnit.SECONDS);
+        for(int i=0; i<50 && reader.contains("/Foo/Bar"); i++)
+            Thread.sleep(100);
+        Assert.assertFalse(reader.contains("/Foo/Bar"));
+    }
+
+    @Test
+    public void testShardedGroup() throws Exception {
+        GroupLayout layout = GroupLayout.sharded(8);
+        Assert.assertEquals("/Foo", groupManagement.create("Foo", layout).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(8, zooKeeper.getChildren("/Foo", false).size());
+        GroupMembership membership = groupManagement.watch("Foo");
+
+        List<String> members = new ArrayList<String>();
+        for(int i=0; i<50; i++)
+            members.add(String.format("member:%d", i));
+        for(String member : members.subList(0, 25)) {
+            String path = groupManagement.join("Foo", member).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(String.format("/Foo/%s/%s", layout.bucketOf(member), member), path);
+        }
+        Map<String, KeeperException.Code> results = groupManagement.joinAll("Foo", members.subList(25, 50));
+        for(KeeperException.Code code : results.values())
+            Assert.assertEquals(KeeperException.Code.OK, code);
+
+        /* A second client discovers the layout from the group node */
+        GroupManagement other = new GroupManagement(zooKeeper);
+        Assert.assertEquals(layout, other.getLayout("Foo").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(50, other.list("Foo").size());
+        Assert.assertTrue(other.listAsync("Foo").get(5, TimeUnit.SECONDS).containsAll(members));
+
+        for(int i=0; i<50 && membership.getMembers().size()!=50; i++)
+            Thread.sleep(100);
+        Assert.assertTrue(membership.getMembers().containsAll(members));
+
+        other.delete("Foo", "member:7").get(5, TimeUnit.SECONDS);
+        for(int i=0; i<50 && membership.getMembers().contains("member:7"); i++)
+            Thread.sleep(100);
+        Assert.assertEquals(49, membership.getMembers().size());
+        Assert.assertEquals(58, groupManagement.delete("Foo").get(10, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    public void testJoinWhileCreatePendingWithOtherLayout() throws Exception {
+        GroupLayout layout = GroupLayout.sharded(4);
+        groupManagement.create("Foo", layout).get(5, TimeUnit.SECONDS);
+
+        /* A client that proposes a flat layout must end up in the existing shard */
+        GroupManagement other = new GroupManagement(zooKeeper);
+        OperationFuture<String> created = other.create("Foo");
+        OperationFuture<String> joined = other.join("Foo", "Bar");
+        Assert.assertEquals(String.format("/Foo/%s/Bar", layout.bucketOf("Bar")), joined.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(KeeperException.Code.NODEEXISTS, created.getCode());
+        Assert.assertNull(zooKeeper.exists("/Foo/Bar", false));
+        Assert.assertEquals(layout, other.getLayout("Foo").get(5, TimeUnit.SECONDS));
+    }
+
+    private KeeperException.Code waitForCode(OperationFuture<?> future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch(Exception e) {
+            /* checked below */
+        }
+        return future.getCode();
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Dennis Reedy
+ */
+public class GroupMembershipTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private GroupManagement groupManagement;
+    private ZooKeeper zooKeeper;
+
+    @Before
+    public void setUp() throws Exception {
+        zooKeeperStarter.start();
+        ZooKeeperClient client = new ZooKeeperClient();
+        zooKeeper = client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get();
+        groupManagement = new GroupManagement(zooKeeper);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testCacheTracksMembership() throws Exception {
+        groupManagement.create("Foo");
+        groupManagement.join("Foo", "Bar");
+        GroupMembership membership = groupManagement.watch("Foo");
+        MembershipSnapshot snapshot = membership.start().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, snapshot.getMembers().size());
+        Assert.assertFalse(snapshot.isStale());
+
+        final CountDownLatch changed = new CountDownLatch(1);
+        membership.addListener(new MembershipListener() {
+            public void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed) {
+                if(added.contains("Baz"))
+                    changed.countDown();
+            }
+        });
+        groupManagement.join("Foo", "Baz");
+        Assert.assertTrue(changed.await(5, TimeUnit.SECONDS));
+        List<String> members = groupManagement.list("Foo");
+        Assert.assertEquals(2, members.size());
+        Assert.assertSame(members, groupManagement.list("Foo"));
+        Assert.assertTrue(membership.getVersion()>snapshot.getVersion());
+    }
+
+    @Test
+    public void testCoalescedChanges() throws Exception {
+        groupManagement.create("Foo").get(5, TimeUnit.SECONDS);
+        for(int i=0; i<20; i++)
+            groupManagement.join("Foo", "member:"+i).get(5, TimeUnit.SECONDS);
+        groupManagement.setCoalescing(500, 2000);
+        GroupMembership membership = groupManagement.watch("Foo");
+        membership.getInitialized().get(5, TimeUnit.SECONDS);
+
+        final AtomicInteger notifications = new AtomicInteger();
+        final AtomicInteger removedCount = new AtomicInteger();
+        membership.addListener(new MembershipListener() {
+            public void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed) {
+                notifications.incrementAndGet();
+                removedCount.addAndGet(removed.size());
+            }
+        });
+        /* A burst of departures, each its own watch event without coalescing */
+        for(int i=0; i<20; i++) {
+            groupManagement.delete("Foo", "member:"+i);
+            Thread.sleep(10);
+        }
+        int waited = 0;
+        while(removedCount.get()<20 && waited<20) {
+            Thread.sleep(250);
+            waited++;
+        }
+        Assert.assertEquals(20, removedCount.get());
+        Assert.assertEquals(1, notifications.get());
+        Assert.assertTrue(membership.getMembers().isEmpty());
+    }
+
+    @Test
+    public void testCacheTracksGroupCreation() throws Exception {
+        GroupMembership membership = groupManagement.watch("Foo");
+        Assert.assertEquals(-1, membership.start().get(5, TimeUnit.SECONDS).getVersion());
+        groupManagement.create("Foo");
+        groupManagement.join("Foo", "Bar");
+        int waited = 0;
+        while(membership.getMembers().isEmpty() && waited<10) {
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(1, membership.getMembers().size());
+    }
+
+    @Test
+    public void testSeedDoesNotGateFirstRead() throws Exception {
+        groupManagement.create("Foo").get(5, TimeUnit.SECONDS);
+        groupManagement.join("Foo", "Bar").get(5, TimeUnit.SECONDS);
+        /* A seed persisted against an ensemble whose zxids were ahead of this one */
+        MembershipSnapshot seed = new MembershipSnapshot("/Foo", Arrays.asList("Baz"), 10, Long.MAX_VALUE-1, false);
+        GroupMembership membership = new GroupMembership(zooKeeper, "/Foo", seed);
+        Assert.assertTrue(membership.getSnapshot().isStale());
+        MembershipSnapshot snapshot = membership.start().get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(snapshot.isStale());
+        Assert.assertEquals(Arrays.asList("Bar"), membership.getMembers());
+
+        final CountDownLatch changed = new CountDownLatch(1);
+        membership.addListener(new MembershipListener() {
+            public void membershipChanged(MembershipSnapshot snapshot, Collection<String> added, Collection<String> removed) {
+                if(added.contains("Qux"))
+                    changed.countDown();
+            }
+        });
+        groupManagement.join("Foo", "Qux");
+        Assert.assertTrue(changed.await(5, TimeUnit.SECONDS));
+        membership.close();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Dennis Reedy
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i=0; i<99; i++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertTrue(snapshot.getPercentile(50)>=1 && snapshot.getPercentile(50)<2.1);
+        Assert.assertTrue(snapshot.getPercentile(99)<2.1);
+        Assert.assertEquals(100.0, snapshot.getPercentile(100));
+        Assert.assertEquals(100.0, snapshot.getMax());
+    }
+
+    @Test
+    public void testSince() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        LatencyHistogram.Snapshot delta = histogram.snapshot().since(first);
+        Assert.assertEquals(1, delta.getCount());
+        Assert.assertTrue(delta.getPercentile(99)<2.1);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@code LeaderElection}
+ *
+ * @author Dennis Reedy
+ */
+public class LeaderElectionTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private final List<ZooKeeperClient> clients = new ArrayList<ZooKeeperClient>();
+    private String hosts;
+
+    @Before
+    public void setUp() throws Exception {
+        zooKeeperStarter.start();
+        hosts = "127.0.0.1:"+zooKeeperStarter.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        for(ZooKeeperClient client : clients)
+            client.close();
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        List<LeaderElection> elections = new ArrayList<LeaderElection>();
+        List<Listener> listeners = new ArrayList<Listener>();
+        for(int i=0; i<5; i++) {
+            LeaderElection election = new LeaderElection(connect(), "election", "candidate-"+i);
+            Listener listener = new Listener();
+            election.addListener(listener);
+            election.start().get(5, TimeUnit.SECONDS);
+            elections.add(election);
+            listeners.add(listener);
+        }
+        Assert.assertTrue(listeners.get(0).acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("candidate-0", elections.get(0).getLeader().get(5, TimeUnit.SECONDS));
+        for(int i=1; i<5; i++)
+            Assert.assertFalse(elections.get(i).isLeader());
+
+        /* A candidate leaving from the middle does not change the leader */
+        elections.get(2).close();
+        elections.get(0).close();
+        Assert.assertEquals(1, listeners.get(0).lost.get());
+        Assert.assertTrue(listeners.get(1).acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("candidate-1", elections.get(1).getLeader().get(5, TimeUnit.SECONDS));
+
+        elections.get(1).close();
+        Assert.assertTrue(listeners.get(3).acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(elections.get(4).isLeader());
+        Assert.assertEquals(1, listeners.get(4).acquired.getCount());
+    }
+
+    @Test
+    public void testSessionExpiry() throws Exception {
+        ZooKeeperClient client = connect();
+        LeaderElection leader = new LeaderElection(client, "election", "leader");
+        Listener leaderListener = new Listener();
+        leader.addListener(leaderListener);
+        leader.start().get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(leaderListener.acquired.await(5, TimeUnit.SECONDS));
+
+        LeaderElection follower = new LeaderElection(connect(), "election", "follower");
+        Listener followerListener = new Listener();
+        follower.addListener(followerListener);
+        follower.start().get(5, TimeUnit.SECONDS);
+
+        expire(client.getZooKeeper());
+        Assert.assertTrue(followerListener.acquired.await(10, TimeUnit.SECONDS));
+        for(int i=0; i<50 && leaderListener.lost.get()==0; i++)
+            Thread.sleep(100);
+        Assert.assertEquals(1, leaderListener.lost.get());
+        /* The expired candidate rejoins behind the new leader */
+        for(int i=0; i<50 && leader.getNode()==null; i++)
+            Thread.sleep(100);
+        Assert.assertNotNull(leader.getNode());
+        Assert.assertFalse(leader.isLeader());
+        Assert.assertEquals("follower", leader.getLeader().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejoinWhenNodeIsGone() throws Exception {
+        LeaderElection leader = new LeaderElection(connect(), "election", "leader");
+        leader.start().get(5, TimeUnit.SECONDS);
+        ZooKeeperClient client = connect();
+        LeaderElection follower = new LeaderElection(client, "election", "follower");
+        Listener listener = new Listener();
+        follower.addListener(listener);
+        String node = follower.start().get(5, TimeUnit.SECONDS);
+
+        /* The follower's node is removed behind its back, it notices once its predecessor leaves */
+        client.getZooKeeper().delete(node, -1);
+        leader.close();
+        Assert.assertTrue(listener.acquired.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(follower.getNode());
+        Assert.assertFalse(node.equals(follower.getNode()));
+        Assert.assertEquals("follower", follower.getLeader().get(5, TimeUnit.SECONDS));
+        follower.close();
+    }
+
+    private ZooKeeperClient connect() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        client.connect(hosts, 3000).get(5, TimeUnit.SECONDS);
+        clients.add(client);
+        return client;
+    }
+
+    /*
+     * Expire a session by connecting with its id and password, then closing the duplicate
+     */
+    private void expire(ZooKeeper zooKeeper) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(hosts, 3000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if(event.getState()==Event.KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        }, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        duplicate.close();
+    }
+
+    class Listener implements LeadershipListener {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicInteger lost = new AtomicInteger();
+
+        public void leadershipAcquired(LeaderElection election) {
+            acquired.countDown();
+        }
+
+        public void leadershipLost(LeaderElection election) {
+            lost.incrementAndGet();
+        }
+    }
+}
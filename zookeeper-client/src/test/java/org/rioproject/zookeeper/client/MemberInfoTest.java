@@ -0,0 +1,98 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests for {@code MemberInfo} encoding
+ *
+ * @author Dennis Reedy
+ */
+public class MemberInfoTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("zone", "east");
+        attributes.put("weight", "10");
+        MemberInfo memberInfo = new MemberInfo("host.example.com", 65535, Long.MAX_VALUE, attributes);
+        MemberInfo decoded = MemberInfo.decode(memberInfo.encode());
+        Assert.assertEquals(memberInfo, decoded);
+        Assert.assertEquals(65535, decoded.getPort());
+        Assert.assertEquals("east", decoded.getAttribute("zone"));
+        MemberInfo loaded = memberInfo.withLoad(12, 0.75);
+        Assert.assertEquals(loaded, MemberInfo.decode(loaded.encode()));
+        Assert.assertFalse(loaded.equals(memberInfo));
+
+        MemberInfo bare = new MemberInfo("10.0.0.1", 0, 1, null);
+        Assert.assertEquals(bare, MemberInfo.decode(bare.encode()));
+        Assert.assertTrue(bare.encode().length<32);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        Assert.assertNull(MemberInfo.decode(null));
+        Assert.assertNull(MemberInfo.decode(new byte[0]));
+    }
+
+    @Test
+    public void testLaterVersionIsReadable() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MemberInfo.FORMAT_VERSION+1);
+        out.writeUTF("10.0.0.1");
+        out.writeShort(8080);
+        out.writeLong(3);
+        out.writeShort(0);
+        out.writeInt(7);
+        out.writeFloat(0.25f);
+        out.writeUTF("a field added by a later version");
+        out.flush();
+        MemberInfo decoded = MemberInfo.decode(bytes.toByteArray());
+        Assert.assertEquals(new MemberInfo("10.0.0.1", 8080, 3, null).withLoad(7, 0.25), decoded);
+    }
+
+    @Test
+    public void testVersion1IsReadable() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeUTF("10.0.0.1");
+        out.writeShort(8080);
+        out.writeLong(3);
+        out.writeShort(0);
+        out.flush();
+        MemberInfo decoded = MemberInfo.decode(bytes.toByteArray());
+        Assert.assertEquals(new MemberInfo("10.0.0.1", 8080, 3, null), decoded);
+        Assert.assertEquals(0, decoded.getInFlight());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] data = new MemberInfo("10.0.0.1", 8080, 3, null).encode();
+        byte[] truncated = new byte[data.length-4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        MemberInfo.decode(truncated);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@code LoadPublisher} and {@code MemberSelector}
+ *
+ * @author Dennis Reedy
+ */
+public class MemberSelectorTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private final ZooKeeperClient client = new ZooKeeperClient();
+    private ZooKeeper zooKeeper;
+    private GroupManagement groupManagement;
+
+    @Before
+    public void setUp() throws Exception {
+        zooKeeperStarter.start();
+        zooKeeper = client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get();
+        groupManagement = new GroupManagement(zooKeeper);
+        groupManagement.create("Foo").get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testSelectLeastLoaded() throws Exception {
+        MemberInfo busy = new MemberInfo("10.0.0.1", 8080, 1, null);
+        MemberInfo idle = new MemberInfo("10.0.0.2", 8080, 2, null);
+        String busyPath = groupManagement.join("Foo", "busy", busy).get(5, TimeUnit.SECONDS);
+        groupManagement.join("Foo", "idle", idle).get(5, TimeUnit.SECONDS);
+
+        LoadPublisher publisher = new LoadPublisher(zooKeeper, busyPath, busy);
+        publisher.setMinInterval(0);
+        for(int i=0; i<10; i++)
+            publisher.requestStarted();
+        Assert.assertEquals(10, publisher.getInFlight());
+
+        GroupMembership membership = groupManagement.watch("Foo");
+        membership.getInitialized().get(5, TimeUnit.SECONDS);
+        MemberSelector selector = new MemberSelector(membership, groupManagement.getMemberInfoReader());
+        MemberInfoReader reader = groupManagement.getMemberInfoReader();
+        /* The first selections read the members' load */
+        for(int i=0; i<50 && (reader.getCached(busyPath)==null || reader.getCached(busyPath).getInFlight()!=10); i++) {
+            selector.select();
+            Thread.sleep(100);
+        }
+        for(int i=0; i<20; i++)
+            Assert.assertEquals("idle", selector.select());
+        publisher.close();
+    }
+
+    @Test
+    public void testThrottledPublishing() throws Exception {
+        MemberInfo memberInfo = new MemberInfo("10.0.0.1", 8080, 1, null);
+        String path = groupManagement.join("Foo", "member", memberInfo).get(5, TimeUnit.SECONDS);
+        LoadPublisher publisher = new LoadPublisher(zooKeeper, path, memberInfo);
+        publisher.setMinInterval(500);
+        for(int i=0; i<100; i++)
+            publisher.requestStarted();
+        Thread.sleep(2000);
+        /* The first change is written, the rest are combined into one throttled write */
+        Assert.assertTrue(zooKeeper.exists(path, false).getVersion()<=3);
+        Assert.assertEquals(100, MemberInfo.decode(zooKeeper.getData(path, false, null)).getInFlight());
+        publisher.close();
+    }
+
+    @Test
+    public void testEmptyGroup() throws Exception {
+        GroupMembership membership = groupManagement.watch("Foo");
+        membership.getInitialized().get(5, TimeUnit.SECONDS);
+        Assert.assertNull(new MemberSelector(membership, groupManagement.getMemberInfoReader()).select());
+    }
+}
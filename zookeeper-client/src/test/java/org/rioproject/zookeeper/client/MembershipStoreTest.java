@@ -0,0 +1,215 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.client;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+/**
+ * Tests for the {@code MembershipStore}
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipStoreTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("membership", ".store");
+        if(!file.delete())
+            throw new IOException("Unable to delete "+file);
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+        new File(file.getPath()+".compact").delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        Assert.assertNull(store.getSnapshot("/group"));
+        store.recordSnapshot(snapshot("/group", 3, 100, "a", "b"));
+        store.recordChange(snapshot("/group", 5, 102, "a", "c"),
+                           Collections.singletonList("c"),
+                           Collections.singletonList("b"));
+        MemberInfo memberInfo = new MemberInfo("10.0.0.1", 2181, 1, null);
+        store.recordMemberData("/group/a", memberInfo.encode());
+        store.recordMemberData("/group/b", new MemberInfo("10.0.0.2", 2181, 2, null).encode());
+        store.recordMemberData("/group/b", null);
+        store.close();
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        MembershipSnapshot snapshot = reopened.getSnapshot("/group");
+        Assert.assertNotNull(snapshot);
+        Assert.assertTrue(snapshot.isStale());
+        Assert.assertEquals(Arrays.asList("a", "c"), snapshot.getMembers());
+        Assert.assertEquals(5, snapshot.getVersion());
+        Assert.assertEquals(102, snapshot.getZxid());
+        Assert.assertEquals(memberInfo, reopened.getMemberInfo("/group/a"));
+        Assert.assertNull(reopened.getMemberInfo("/group/b"));
+        reopened.close();
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        store.recordSnapshot(snapshot("/group", 1, 10, "a"));
+        store.recordChange(snapshot("/group", 2, 11, "a", "b"),
+                           Collections.singletonList("b"),
+                           Collections.<String>emptyList());
+        store.close();
+        /* Cut the last record short, as if the process died while writing it */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        raf.setLength(length-3);
+        raf.close();
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        Assert.assertEquals(Collections.singletonList("a"), reopened.getSnapshot("/group").getMembers());
+        Assert.assertTrue(file.length()<length-3);
+        /* Appends continue from the last good record */
+        reopened.recordChange(snapshot("/group", 3, 12, "a", "c"),
+                              Collections.singletonList("c"),
+                              Collections.<String>emptyList());
+        reopened.close();
+        MembershipStore again = new MembershipStore(file);
+        again.open();
+        Assert.assertEquals(Arrays.asList("a", "c"), again.getSnapshot("/group").getMembers());
+        again.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.setCompactSize(4096);
+        store.open();
+        store.recordSnapshot(snapshot("/group", 0, 0));
+        for(int i=0; i<1000; i++) {
+            String member = "member-"+i;
+            store.recordChange(snapshot("/group", i*2+1, i*2+1, member),
+                               Collections.singletonList(member),
+                               Collections.<String>emptyList());
+            store.recordChange(snapshot("/group", i*2+2, i*2+2),
+                               Collections.<String>emptyList(),
+                               Collections.singletonList(member));
+        }
+        store.recordChange(snapshot("/group", 2001, 2001, "last"),
+                           Collections.singletonList("last"),
+                           Collections.<String>emptyList());
+        store.close();
+        Assert.assertTrue("Expected the log to have been compacted, was "+file.length(), file.length()<4*4096);
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        MembershipSnapshot snapshot = reopened.getSnapshot("/group");
+        Assert.assertEquals(Collections.singletonList("last"), snapshot.getMembers());
+        Assert.assertEquals(2001, snapshot.getZxid());
+        reopened.close();
+    }
+
+    @Test
+    public void testMemberDataChangesAreNotAppended() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        MemberInfo joined = new MemberInfo("10.0.0.1", 2181, 1, null);
+        store.recordMemberData("/group/a", joined.encode());
+        store.close();
+        long length = file.length();
+
+        store.open();
+        for(int i=2; i<100; i++)
+            store.recordMemberData("/group/a", new MemberInfo("10.0.0.1", 2181, i, null).encode());
+        store.close();
+        Assert.assertEquals(length, file.length());
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        Assert.assertEquals(joined, reopened.getMemberInfo("/group/a"));
+        reopened.recordMemberData("/group/a", null);
+        reopened.close();
+        Assert.assertTrue(file.length()>length);
+    }
+
+    @Test
+    public void testIncompleteCompactionIsDiscarded() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        store.recordSnapshot(snapshot("/group", 1, 1, "a"));
+        store.close();
+        /* The process died while writing the compacted file, the log is still in place */
+        File compacted = new File(file.getPath()+".compact");
+        RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+        raf.writeInt(0x525a4d53);
+        raf.close();
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        Assert.assertEquals(Collections.singletonList("a"), reopened.getSnapshot("/group").getMembers());
+        Assert.assertFalse(compacted.exists());
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactedFileIsRecovered() throws IOException {
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        store.recordSnapshot(snapshot("/group", 1, 1, "a"));
+        store.close();
+        /* The process died between deleting the log and renaming the compacted file */
+        File compacted = new File(file.getPath()+".compact");
+        Assert.assertTrue(file.renameTo(compacted));
+
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        Assert.assertEquals(Collections.singletonList("a"), reopened.getSnapshot("/group").getMembers());
+        Assert.assertTrue(file.exists());
+        Assert.assertFalse(compacted.exists());
+        reopened.close();
+    }
+
+    @Test
+    public void testNotAStore() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeUTF("something else entirely");
+        raf.close();
+        MembershipStore store = new MembershipStore(file);
+        store.open();
+        Assert.assertNull(store.getSnapshot("/group"));
+        store.recordSnapshot(snapshot("/group", 1, 1, "a"));
+        store.close();
+        MembershipStore reopened = new MembershipStore(file);
+        reopened.open();
+        Assert.assertEquals(Collections.singletonList("a"), reopened.getSnapshot("/group").getMembers());
+        reopened.close();
+    }
+
+    private static MembershipSnapshot snapshot(final String path, final int version, final long zxid, final String... members) {
+        return new MembershipSnapshot(path, Arrays.asList(members), version, zxid, false);
+    }
+}
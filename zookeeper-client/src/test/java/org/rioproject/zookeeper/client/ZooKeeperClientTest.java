@@ -16,6 +16,7 @@
 package org.rioproject.zookeeper.client;
 
 import junit.framework.Assert;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 import org.junit.After;
 import org.junit.Before;
@@ -23,6 +24,10 @@ import org.junit.Test;
 import org.rioproject.zookeeper.ZooKeeperStarter;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Dennis Reedy
@@ -46,4 +51,104 @@ public class ZooKeeperClientTest {
         ZooKeeper zooKeeper = client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get();
         Assert.assertNotNull(zooKeeper);
     }
+
+    @Test
+    public void testSharedSession() throws Exception {
+        String hosts = "127.0.0.1:"+zooKeeperStarter.getPort();
+        ZooKeeperClient client1 = new ZooKeeperClient(true);
+        ZooKeeperClient client2 = new ZooKeeperClient(true);
+        ZooKeeper zooKeeper1 = client1.connect(hosts, 3000).get();
+        ZooKeeper zooKeeper2 = client2.connect(hosts, 3000).get();
+        Assert.assertSame(zooKeeper1, zooKeeper2);
+        client1.close();
+        Assert.assertNull(client1.getZooKeeper());
+        Assert.assertTrue(zooKeeper2.getState().isConnected());
+        Assert.assertNotNull(zooKeeper2.exists("/", false));
+        client2.close();
+        Assert.assertFalse(zooKeeper2.getState().isAlive());
+    }
+
+    @Test
+    public void testUnsharedSessions() throws Exception {
+        String hosts = "127.0.0.1:"+zooKeeperStarter.getPort();
+        ZooKeeperClient client1 = new ZooKeeperClient();
+        ZooKeeperClient client2 = new ZooKeeperClient();
+        ZooKeeper zooKeeper1 = client1.connect(hosts, 3000).get();
+        ZooKeeper zooKeeper2 = client2.connect(hosts, 3000).get();
+        Assert.assertNotSame(zooKeeper1, zooKeeper2);
+        client1.close();
+        client2.close();
+    }
+
+    @Test
+    public void testConnectionStateNotification() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        StateRecorder recorder = new StateRecorder();
+        client.addConnectionStateListener(recorder);
+        client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(ConnectionState.CONNECTED, recorder.states.get(0));
+        client.close();
+    }
+
+    @Test
+    public void testConnectFailsFast() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        StateRecorder recorder = new StateRecorder();
+        client.addConnectionStateListener(recorder);
+        client.setConnectTimeout(500);
+        client.setRetryPolicy(new RetryPolicy(100, 200, 2));
+        long start = System.currentTimeMillis();
+        try {
+            client.connect("127.0.0.1:1", 3000).get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected connect to fail");
+        } catch(ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof KeeperException.ConnectionLossException);
+        }
+        Assert.assertTrue(System.currentTimeMillis()-start<5000);
+        Assert.assertTrue(recorder.states.contains(ConnectionState.LOST));
+        client.close();
+    }
+
+    @Test
+    public void testPreferredHostsFallBack() throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        client.setConnectTimeout(500);
+        client.setCanBeReadOnly(true);
+        /* Nothing listens on the preferred host, the full connect string is tried next */
+        client.setPreferredHosts("127.0.0.1:1");
+        long start = System.currentTimeMillis();
+        ZooKeeper zooKeeper = client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(zooKeeper.getState().isConnected());
+        Assert.assertTrue(System.currentTimeMillis()-start<5000);
+        Assert.assertFalse(client.isReadOnly());
+        Assert.assertNotNull(zooKeeper.exists("/", false));
+        client.close();
+    }
+
+    @Test
+    public void testPreferredHostsChroot() {
+        Assert.assertEquals("a:1,b:2/app", ZooKeeperSession.withChroot("a:1,b:2", "c:3,d:4/app"));
+        Assert.assertEquals("a:1", ZooKeeperSession.withChroot("a:1", "c:3,d:4"));
+        Assert.assertEquals("a:1/other", ZooKeeperSession.withChroot("a:1/other", "c:3/app"));
+    }
+
+    @Test
+    public void testRetryPolicy() {
+        RetryPolicy retryPolicy = new RetryPolicy(100, 1000, 3);
+        Assert.assertTrue(retryPolicy.allowRetry(2));
+        Assert.assertFalse(retryPolicy.allowRetry(3));
+        for(int i=0; i<10; i++) {
+            long delay = retryPolicy.getDelay(i);
+            long expected = Math.min(1000, 100<<i);
+            Assert.assertTrue(delay>=expected/2 && delay<=expected);
+        }
+    }
+
+    class StateRecorder implements ConnectionStateListener {
+        final List<ConnectionState> states = new CopyOnWriteArrayList<ConnectionState>();
+
+        public void stateChanged(ZooKeeperClient client, ConnectionState state) {
+            states.add(state);
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.fdh;
+
+import junit.framework.Assert;
+import net.jini.core.lookup.ServiceID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@code ZooKeeperFaultDetectionHandler}
+ *
+ * @author Dennis Reedy
+ */
+public class ZooKeeperFaultDetectionHandlerTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private final ZooKeeperClient client = new ZooKeeperClient();
+    private FaultDetectionRegistration registration;
+
+    @Before
+    public void startZooKeeper() throws IOException, InterruptedException, ExecutionException {
+        zooKeeperStarter.start();
+        registration = new FaultDetectionRegistration(
+            new GroupManagement(client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get()));
+    }
+
+    @After
+    public void stopZooKeeper() {
+        client.close();
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testServiceFailure() throws Exception {
+        ServiceID serviceID = createServiceID();
+        ServiceID otherID = createServiceID();
+        registration.register(serviceID, null).get(5, TimeUnit.SECONDS);
+        registration.register(otherID, null).get(5, TimeUnit.SECONDS);
+        Object proxy = new Object();
+        Listener listener = new Listener(2);
+        ZooKeeperFaultDetectionHandler handler1 = createHandler(listener);
+        ZooKeeperFaultDetectionHandler handler2 = createHandler(listener);
+        ZooKeeperFaultDetectionHandler other = createHandler(listener);
+        handler1.monitor(proxy, serviceID);
+        handler2.monitor(proxy, serviceID);
+        other.monitor(new Object(), otherID);
+
+        registration.unregister(serviceID).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(listener.failed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, listener.serviceIDs.size());
+        Assert.assertEquals(serviceID, listener.serviceIDs.get(0));
+        Assert.assertSame(proxy, listener.services.get(0));
+
+        /* A terminated handler is not notified */
+        other.terminate();
+        registration.unregister(otherID).get(5, TimeUnit.SECONDS);
+        Thread.sleep(1000);
+        Assert.assertEquals(2, listener.serviceIDs.size());
+        handler1.terminate();
+        handler2.terminate();
+    }
+
+    @Test
+    public void testMonitorBeforeRegistration() throws Exception {
+        final ServiceID serviceID = createServiceID();
+        Listener listener = new Listener(1);
+        ZooKeeperFaultDetectionHandler handler = createHandler(listener);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                    registration.register(serviceID, null);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.start();
+        handler.monitor(new Object(), serviceID);
+        registration.unregister(serviceID).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(listener.failed.await(10, TimeUnit.SECONDS));
+        handler.terminate();
+    }
+
+    @Test
+    public void testMonitorInCachedGroup() throws Exception {
+        /* Another handler has the group cached already */
+        ServiceID cachedID = createServiceID();
+        registration.register(cachedID, null).get(5, TimeUnit.SECONDS);
+        ZooKeeperFaultDetectionHandler cached = createHandler(new Listener(1));
+        cached.monitor(new Object(), cachedID);
+
+        for(int i=0; i<10; i++) {
+            final ServiceID serviceID = createServiceID();
+            Listener listener = new Listener(1);
+            ZooKeeperFaultDetectionHandler handler = createHandler(listener);
+            new Thread() {
+                @Override
+                public void run() {
+                    registration.register(serviceID, null);
+                }
+            }.start();
+            handler.monitor(new Object(), serviceID);
+            registration.unregister(serviceID).get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(listener.failed.await(10, TimeUnit.SECONDS));
+            handler.terminate();
+        }
+        cached.terminate();
+    }
+
+    @Test
+    public void testRegistrationTimeout() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(ZooKeeperFaultDetectionHandler.CONNECT_STRING, "127.0.0.1:"+zooKeeperStarter.getPort());
+        properties.setProperty(ZooKeeperFaultDetectionHandler.REGISTRATION_TIMEOUT, "500");
+        ZooKeeperFaultDetectionHandler handler = new ZooKeeperFaultDetectionHandler();
+        handler.configure(properties);
+        try {
+            handler.monitor(new Object(), createServiceID());
+            Assert.fail("Expected monitor to time out");
+        } catch(TimeoutException e) {
+            /* expected */
+        }
+        handler.terminate();
+    }
+
+    private ZooKeeperFaultDetectionHandler createHandler(final Listener listener) {
+        Properties properties = new Properties();
+        properties.setProperty(ZooKeeperFaultDetectionHandler.CONNECT_STRING, "127.0.0.1:"+zooKeeperStarter.getPort());
+        ZooKeeperFaultDetectionHandler handler = new ZooKeeperFaultDetectionHandler();
+        handler.configure(properties);
+        handler.register(listener);
+        return handler;
+    }
+
+    private static ServiceID createServiceID() {
+        UUID uuid = UUID.randomUUID();
+        return new ServiceID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    class Listener implements FaultDetectionListener<ServiceID> {
+        final CountDownLatch failed;
+        final List<Object> services = new CopyOnWriteArrayList<Object>();
+        final List<ServiceID> serviceIDs = new CopyOnWriteArrayList<ServiceID>();
+
+        Listener(final int count) {
+            failed = new CountDownLatch(count);
+        }
+
+        public void serviceFailure(Object service, ServiceID serviceID) {
+            services.add(service);
+            serviceIDs.add(serviceID);
+            failed.countDown();
+        }
+    }
+}
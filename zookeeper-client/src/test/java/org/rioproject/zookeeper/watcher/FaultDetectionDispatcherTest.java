@@ -0,0 +1,115 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+import org.rioproject.impl.fdh.FaultDetectionListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@code FaultDetectionDispatcher}
+ *
+ * @author Dennis Reedy
+ */
+public class FaultDetectionDispatcherTest {
+    private final FaultDetectionDispatcher dispatcher = new FaultDetectionDispatcher(2, 100);
+
+    @After
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testOrderingPerListener() throws InterruptedException {
+        RecordingListener listener = new RecordingListener(50, 0);
+        for(int i=0; i<50; i++)
+            dispatcher.dispatch(listener, String.format("/group/member:%d", i));
+        Assert.assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        for(int i=0; i<50; i++)
+            Assert.assertEquals(String.format("/group/member:%d", i), listener.paths.get(i));
+        Assert.assertEquals(50, dispatcher.getDispatchCount());
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockOthers() throws InterruptedException {
+        RecordingListener slow = new RecordingListener(1, 2000);
+        RecordingListener fast = new RecordingListener(1, 0);
+        dispatcher.dispatch(slow, "/group/slow");
+        dispatcher.dispatch(fast, "/group/fast");
+        Assert.assertTrue(fast.done.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        RecordingListener blocker = new RecordingListener(1, 500);
+        dispatcher.dispatch(blocker, "/group/blocker");
+        dispatcher.dispatch(blocker, "/group/member");
+        dispatcher.dispatch(blocker, "/group/member");
+        dispatcher.dispatch(blocker, "/group/member");
+        Thread.sleep(1500);
+        Assert.assertEquals(2, blocker.paths.size());
+        Assert.assertEquals(2, dispatcher.getCoalescedCount());
+        Assert.assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testQueuedPastAlertThreshold() throws InterruptedException {
+        RecordingListener slow = new RecordingListener(150, 1);
+        Thread caller = Thread.currentThread();
+        for(int i=0; i<150; i++)
+            dispatcher.dispatch(slow, String.format("/group/member:%d", i));
+        Assert.assertTrue(slow.done.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(slow.threads.contains(caller));
+        Assert.assertTrue(dispatcher.getOverflowCount()>0);
+        for(int i=0; i<150; i++)
+            Assert.assertEquals(String.format("/group/member:%d", i), slow.paths.get(i));
+    }
+
+    class RecordingListener implements FaultDetectionListener<String> {
+        final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch done;
+        final long delay;
+
+        RecordingListener(int expected, long delay) {
+            this.done = new CountDownLatch(expected);
+            this.delay = delay;
+        }
+
+        public void serviceFailure(Object service, String serviceID) {
+            if(delay>0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            threads.add(Thread.currentThread());
+            paths.add(serviceID);
+            done.countDown();
+        }
+    }
+}
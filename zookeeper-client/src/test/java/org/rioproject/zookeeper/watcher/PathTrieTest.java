@@ -0,0 +1,72 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.watcher;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Tests for {@code PathTrie}
+ *
+ * @author Dennis Reedy
+ */
+public class PathTrieTest {
+
+    @Test
+    public void testExactRegistrations() {
+        PathTrie<String> trie = new PathTrie<String>();
+        Assert.assertNull(trie.put("/a/b/c", "c"));
+        Assert.assertNull(trie.put("/a/b", "b"));
+        Assert.assertEquals("c", trie.put("/a/b/c", "c2"));
+        Assert.assertEquals(2, trie.size());
+        Assert.assertEquals("b", trie.get("/a/b"));
+        Assert.assertNull(trie.get("/a"));
+        Assert.assertFalse(trie.containsKey("/a/b/c/d"));
+        Assert.assertEquals(2, trie.toMap().size());
+        Assert.assertEquals(Collections.singleton("c"), trie.getChildren("/a/b"));
+        Assert.assertTrue(trie.getChildren("/a").isEmpty());
+        Assert.assertEquals("c2", trie.remove("/a/b/c"));
+        Assert.assertNull(trie.remove("/a/b/c"));
+        Assert.assertEquals(1, trie.size());
+        Assert.assertEquals("b", trie.get("/a/b"));
+    }
+
+    @Test
+    public void testSubtreeMatching() {
+        PathTrie<String> trie = new PathTrie<String>();
+        trie.addSubtree("/opstring", "deployment");
+        trie.addSubtree("/opstring/group", "group");
+        trie.addSubtree("/", "everything");
+        trie.put("/opstring/group/member", "member");
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("deployment", "group", "everything")),
+                            trie.matchSubtrees("/opstring/group/member"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("deployment", "everything")),
+                            trie.matchSubtrees("/opstring/other/member"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("everything")), trie.matchSubtrees("/other"));
+        Assert.assertTrue(trie.isSubtreeRoot("/opstring/group"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("/", "/opstring", "/opstring/group")), trie.getSubtreeRoots());
+
+        Assert.assertTrue(trie.removeSubtree("/opstring/group", "group"));
+        Assert.assertFalse(trie.isSubtreeRoot("/opstring/group"));
+        Assert.assertEquals("member", trie.get("/opstring/group/member"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("deployment", "everything")),
+                            trie.matchSubtrees("/opstring/group/member"));
+    }
+}
@@ -16,6 +16,10 @@
 package org.rioproject.zookeeper.watcher;
 
 import junit.framework.Assert;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.junit.After;
 import org.junit.Before;
@@ -23,12 +27,17 @@ import org.junit.Test;
 import org.rioproject.impl.fdh.FaultDetectionListener;
 import org.rioproject.zookeeper.ZooKeeperStarter;
 import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.LoadPublisher;
+import org.rioproject.zookeeper.client.MemberInfo;
 import org.rioproject.zookeeper.client.ZooKeeperClient;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -92,14 +101,190 @@ public class ZooKeeperServiceWatcherTest {
         Assert.assertEquals(100, listener.counter.get());
     }
 
+    @Test
+    public void testNodeDisconnectGroupMode() throws InterruptedException {
+        Listener listener = new Listener();
+        setupNodes(listener, ZooKeeperServiceWatcher.Mode.GROUP);
+        Thread.sleep(1000);
+        for(Node node : nodes) {
+            node.close();
+        }
+        int waited = 0;
+        while(listener.counter.get()<100 && waited<10) {
+            System.out.println("Received "+listener.counter+" notifications");
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(100, listener.counter.get());
+    }
+
+    @Test
+    public void testDeleteGroupGroupMode() throws InterruptedException {
+        Listener listener = new Listener();
+        setupNodes(listener, ZooKeeperServiceWatcher.Mode.GROUP);
+        Thread.sleep(1000);
+        groupManagement.delete("group");
+        int waited = 0;
+        while(listener.counter.get()<100 && waited<10) {
+            System.out.println("Received "+listener.counter+" notifications");
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(100, listener.counter.get());
+    }
+
+    @Test
+    public void testAbsentServiceGroupMode() throws InterruptedException {
+        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(zooKeeper, ZooKeeperServiceWatcher.Mode.GROUP);
+        zooKeeper.register(serviceWatcher);
+        Listener listener = new Listener();
+        /* Added before the group has been read, and not in it */
+        serviceWatcher.addService("/group/absent", listener);
+        Thread.sleep(1000);
+        Assert.assertNull(serviceWatcher.removeService("/group/absent"));
+        Assert.assertEquals(0, listener.counter.get());
+    }
+
+    @Test
+    public void testSessionExpiryRecovery() throws Exception {
+        String hosts = "127.0.0.1:"+zooKeeperStarter.getPort();
+        ZooKeeperClient watcherClient = new ZooKeeperClient();
+        watcherClient.connect(hosts, 3000).get();
+        ZooKeeperClient memberClient = new ZooKeeperClient();
+        GroupManagement members = new GroupManagement(memberClient.connect(hosts, 3000).get());
+        List<String> names = new ArrayList<String>();
+        for(int i=0; i<10; i++)
+            names.add(String.format("member:%d", i));
+        members.joinAll("group", names);
+
+        Listener listener = new Listener();
+        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(watcherClient, ZooKeeperServiceWatcher.Mode.MEMBER);
+        for(String name : names)
+            serviceWatcher.addService("/group/"+name, listener);
+        Thread.sleep(1000);
+
+        expire(hosts, watcherClient.getZooKeeper());
+        for(int i=0; i<5; i++)
+            members.delete("group", names.get(i));
+        int waited = 0;
+        while(listener.counter.get()<5 && waited<20) {
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(5, listener.counter.get());
+        Assert.assertTrue(serviceWatcher.getLastRecoveryTime()>=0);
+        memberClient.close();
+        watcherClient.close();
+    }
+
+    @Test
+    public void testHeartbeatSuspicion() throws Exception {
+        MemberInfo memberInfo = new MemberInfo("127.0.0.1", 8080, 1, Collections.<String, String>emptyMap());
+        String path = groupManagement.join("group", "heartbeat", memberInfo).get(5, TimeUnit.SECONDS);
+        LoadPublisher publisher = new LoadPublisher(zooKeeper, path, memberInfo);
+        publisher.setMinInterval(0);
+        publisher.setHeartbeatInterval(100);
+
+        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(zooKeeper, ZooKeeperServiceWatcher.Mode.MEMBER);
+        serviceWatcher.setHeartbeatMonitoring(true);
+        serviceWatcher.setSuspicionCheckInterval(50);
+        final CountDownLatch suspected = new CountDownLatch(1);
+        final CountDownLatch cleared = new CountDownLatch(1);
+        serviceWatcher.addSuspicionListener(new SuspicionListener() {
+            public void suspected(String zNode, double phi) {
+                suspected.countDown();
+            }
+
+            public void cleared(String zNode) {
+                cleared.countDown();
+            }
+        }, 3);
+        Listener listener = new Listener();
+        serviceWatcher.addService(path, listener);
+
+        Thread.sleep(2000);
+        Assert.assertTrue(serviceWatcher.getPhi(path)<3);
+        Assert.assertEquals(1, suspected.getCount());
+
+        /* The member stops heartbeating but its session, and zNode, remain */
+        publisher.close();
+        Assert.assertTrue(suspected.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(serviceWatcher.getPhi(path)>=3);
+        Assert.assertEquals(0, listener.counter.get());
+
+        zooKeeper.setData(path, memberInfo.encode(), -1);
+        Assert.assertTrue(cleared.await(5, TimeUnit.SECONDS));
+        serviceWatcher.close();
+    }
+
+    @Test
+    public void testSubtreeSubscription() throws Exception {
+        groupManagement.create("deploy").get(5, TimeUnit.SECONDS);
+        zooKeeper.create("/deploy/group-a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for(int i=0; i<10; i++)
+            zooKeeper.create(String.format("/deploy/group-a/member:%d", i), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+        Listener listener = new Listener();
+        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(zooKeeper, ZooKeeperServiceWatcher.Mode.MEMBER);
+        serviceWatcher.addSubtree("/deploy", listener);
+        Thread.sleep(1000);
+
+        /* A group and members created after the subscription are discovered */
+        zooKeeper.create("/deploy/group-b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        Thread.sleep(500);
+        for(int i=0; i<10; i++)
+            zooKeeper.create(String.format("/deploy/group-b/member:%d", i), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        Thread.sleep(1000);
+
+        for(int i=0; i<5; i++) {
+            zooKeeper.delete(String.format("/deploy/group-a/member:%d", i), -1);
+            zooKeeper.delete(String.format("/deploy/group-b/member:%d", i), -1);
+        }
+        int waited = 0;
+        while(listener.counter.get()<10 && waited<10) {
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(10, listener.counter.get());
+
+        /* Deleting the whole deployment reports the remaining members, not the persistent groups */
+        Assert.assertEquals(13, groupManagement.delete("deploy").get(10, TimeUnit.SECONDS).intValue());
+        waited = 0;
+        while(listener.counter.get()<20 && waited<10) {
+            Thread.sleep(500);
+            waited++;
+        }
+        Assert.assertEquals(20, listener.counter.get());
+        serviceWatcher.close();
+    }
+
+    /*
+     * Expire a session by connecting with its id and password, then closing the duplicate
+     */
+    void expire(String hosts, ZooKeeper zooKeeper) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(hosts, 3000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if(event.getState()==Event.KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        }, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        duplicate.close();
+    }
+
     void setupNodes(Listener listener) {
+        setupNodes(listener, ZooKeeperServiceWatcher.Mode.MEMBER);
+    }
+
+    void setupNodes(Listener listener, ZooKeeperServiceWatcher.Mode mode) {
         for(Node node : nodes) {
             node.connect();
         }
         for(Node node : nodes) {
             node.join();
         }
-        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(zooKeeper);
+        ZooKeeperServiceWatcher serviceWatcher = new ZooKeeperServiceWatcher(zooKeeper, mode);
         zooKeeper.register(serviceWatcher);
         for(Node node : nodes) {
             serviceWatcher.addService(node.getPath(), listener);
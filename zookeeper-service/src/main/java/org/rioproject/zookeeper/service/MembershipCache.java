@@ -0,0 +1,274 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.service;
+
+import org.rioproject.zookeeper.api.Membership;
+import org.rioproject.zookeeper.api.MembershipChanges;
+import org.rioproject.zookeeper.api.MembershipPage;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.GroupMembership;
+import org.rioproject.zookeeper.client.MembershipListener;
+import org.rioproject.zookeeper.client.MembershipSnapshot;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves membership queries from {@link GroupMembership} caches, watching each group on first request,
+ * and keeps a bounded history of changes per group so clients can ask for the changes since a version.
+ *
+ * <p>The version of a membership is the zxid of the last change to the group's children.</p>
+ *
+ * <p>A group seeded from a {@link org.rioproject.zookeeper.client.MembershipStore} is served
+ * straight away, flagged as stale, rather than waiting for it to be read.</p>
+ *
+ * @author Dennis Reedy
+ */
+class MembershipCache {
+    static final int DEFAULT_HISTORY = 1000;
+    private final GroupManagement groupManagement;
+    private final int history;
+    private final long timeout;
+    private final ConcurrentMap<String, GroupLog> logs = new ConcurrentHashMap<String, GroupLog>();
+    private volatile boolean closed;
+
+    /**
+     * Create a {@code MembershipCache}.
+     *
+     * @param groupManagement The {@code GroupManagement} used to watch groups.
+     * @param history The number of changes retained per group.
+     * @param timeout How long (ms) to wait for a newly watched group to be read.
+     */
+    MembershipCache(final GroupManagement groupManagement, final int history, final long timeout) {
+        if(groupManagement==null)
+            throw new IllegalArgumentException("groupManagement must not be null");
+        if(history<1)
+            throw new IllegalArgumentException("history must be greater than zero");
+        this.groupManagement = groupManagement;
+        this.history = history;
+        this.timeout = timeout;
+    }
+
+    Membership getMembership(final String group) throws IOException {
+        return getLog(group).getMembership();
+    }
+
+    Map<String, Membership> getMemberships(final Collection<String> groups) throws IOException {
+        if(groups==null)
+            throw new IllegalArgumentException("groups must not be null");
+        /* Start watching all groups before waiting on any of them */
+        List<GroupLog> pending = new ArrayList<GroupLog>();
+        for(String group : groups)
+            pending.add(watch(group));
+        Map<String, Membership> memberships = new LinkedHashMap<String, Membership>();
+        for(GroupLog log : pending) {
+            await(log);
+            memberships.put(log.group, log.getMembership());
+        }
+        return memberships;
+    }
+
+    MembershipPage getMembershipPage(final String group, final int offset, final int limit) throws IOException {
+        if(offset<0)
+            throw new IllegalArgumentException("offset must not be negative");
+        if(limit<1)
+            throw new IllegalArgumentException("limit must be greater than zero");
+        return page(getMembership(group), offset, limit);
+    }
+
+    static MembershipPage page(final Membership membership, final int offset, final int limit) {
+        if(offset<0)
+            throw new IllegalArgumentException("offset must not be negative");
+        if(limit<1)
+            throw new IllegalArgumentException("limit must be greater than zero");
+        List<String> members = membership.getMembers();
+        int from = Math.min(offset, members.size());
+        int to = (int)Math.min((long)from+limit, members.size());
+        return new MembershipPage(membership.getGroup(),
+                                  membership.getVersion(),
+                                  new ArrayList<String>(members.subList(from, to)),
+                                  from,
+                                  members.size());
+    }
+
+    MembershipChanges getMembershipChanges(final String group, final long version) throws IOException {
+        return getLog(group).getChanges(version);
+    }
+
+    /**
+     * Stop watching the groups, queries made after this fail with an {@code IOException}.
+     */
+    void close() {
+        closed = true;
+        /* Whoever removes a log unwatches its group, a log published while closing is removed once */
+        for(String group : logs.keySet()) {
+            if(logs.remove(group)!=null)
+                groupManagement.unwatch(group);
+        }
+    }
+
+    private GroupLog getLog(final String group) throws IOException {
+        GroupLog log = watch(group);
+        await(log);
+        return log;
+    }
+
+    private GroupLog watch(final String group) throws IOException {
+        if(group==null)
+            throw new IllegalArgumentException("group must not be null");
+        if(closed)
+            throw new IOException("Membership cache has been closed");
+        GroupLog log = logs.get(group);
+        if(log==null) {
+            /* Publish the log fully built, a racing thread is handed the same GroupMembership */
+            GroupLog created = new GroupLog(group, groupManagement.watch(group));
+            log = logs.putIfAbsent(group, created);
+            if(log==null) {
+                log = created;
+                log.membership.addListener(log);
+            }
+        }
+        /* Closed while watching, the log may have been published after close() went over them */
+        if(closed) {
+            if(logs.remove(group, log))
+                groupManagement.unwatch(group);
+            throw new IOException("Membership cache has been closed");
+        }
+        return log;
+    }
+
+    private void await(final GroupLog log) throws IOException {
+        try {
+            log.init(log.getMembership(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading group "+log.group);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to read group "+log.group, e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out reading group "+log.group);
+        }
+    }
+
+    /**
+     * A change between two versions of a group.
+     */
+    static class Change {
+        final long from;
+        final long to;
+        final Collection<String> added;
+        final Collection<String> removed;
+
+        Change(final long from, final long to, final Collection<String> added, final Collection<String> removed) {
+            this.from = from;
+            this.to = to;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Tracks the current membership of a group and the changes leading up to it.
+     */
+    class GroupLog implements MembershipListener {
+        final String group;
+        final GroupMembership membership;
+        private final LinkedList<Change> changes = new LinkedList<Change>();
+        private MembershipSnapshot current;
+        private Membership sorted;
+        private boolean sortedStale;
+
+        GroupLog(final String group, final GroupMembership membership) {
+            this.group = group;
+            this.membership = membership;
+        }
+
+        MembershipSnapshot getMembership(final long timeout) throws InterruptedException, ExecutionException, TimeoutException {
+            if(!membership.isInitialized()) {
+                MembershipSnapshot seed = membership.getSnapshot();
+                if(seed.getZxid()!=-1)
+                    return seed;
+            }
+            membership.getInitialized().get(timeout, TimeUnit.MILLISECONDS);
+            return membership.getSnapshot();
+        }
+
+        synchronized void init(final MembershipSnapshot snapshot) {
+            if(current==null)
+                current = snapshot;
+        }
+
+        public synchronized void membershipChanged(final MembershipSnapshot snapshot,
+                                                   final Collection<String> added,
+                                                   final Collection<String> removed) {
+            if(current==null) {
+                current = snapshot;
+                return;
+            }
+            if(snapshot.getZxid()==current.getZxid() && snapshot.getVersion()==current.getVersion())
+                return;
+            changes.add(new Change(current.getZxid(), snapshot.getZxid(),
+                                   new ArrayList<String>(added), new ArrayList<String>(removed)));
+            if(changes.size()>history)
+                changes.removeFirst();
+            current = snapshot;
+            sorted = null;
+        }
+
+        synchronized Membership getMembership() {
+            boolean stale = membership.getSnapshot().isStale();
+            if(sorted==null || sortedStale!=stale) {
+                List<String> members = new ArrayList<String>(current.getMembers());
+                Collections.sort(members);
+                sorted = new Membership(group, current.getZxid(), members, stale);
+                sortedStale = stale;
+            }
+            return sorted;
+        }
+
+        synchronized MembershipChanges getChanges(final long version) {
+            long latest = current.getZxid();
+            if(version==latest)
+                return new MembershipChanges(group, version, latest,
+                                             Collections.<String>emptyList(), Collections.<String>emptyList(), false);
+            /* Walk back from the latest change to the one made from the requested version */
+            ListIterator<Change> iterator = changes.listIterator(changes.size());
+            boolean found = false;
+            while(!found && iterator.hasPrevious())
+                found = iterator.previous().from==version;
+            if(!found)
+                return new MembershipChanges(group, version, latest,
+                                             getMembership().getMembers(), Collections.<String>emptyList(), true);
+            Set<String> added = new LinkedHashSet<String>();
+            Set<String> removed = new LinkedHashSet<String>();
+            while(iterator.hasNext()) {
+                Change change = iterator.next();
+                for(String member : change.removed) {
+                    if(!added.remove(member))
+                        removed.add(member);
+                }
+                added.addAll(change.added);
+            }
+            return new MembershipChanges(group, version, latest,
+                                         new ArrayList<String>(added), new ArrayList<String>(removed), false);
+        }
+    }
+}
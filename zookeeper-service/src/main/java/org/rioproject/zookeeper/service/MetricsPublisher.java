@@ -0,0 +1,154 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.service;
+
+import org.rioproject.impl.watch.GaugeWatch;
+import org.rioproject.servicebean.ServiceBeanContext;
+import org.rioproject.zookeeper.client.LatencyHistogram;
+import org.rioproject.zookeeper.client.ZooKeeperMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically samples {@link ZooKeeperMetrics} and publishes the values through Rio watches, so
+ * SLAs can be declared on ZooKeeper operation latency and failure detection latency.
+ *
+ * <p>Latency percentiles are computed over each sampling interval, not since startup. For each
+ * operation the 50th and 99th percentile latency (ms), throughput (operations/second) and
+ * in-flight count are published, along with the watch event rate and the latency from a watch
+ * event to the resulting failure notification.</p>
+ *
+ * @author Dennis Reedy
+ */
+class MetricsPublisher {
+    static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    private final ServiceBeanContext context;
+    private final ZooKeeperMetrics metrics;
+    private final long interval;
+    private final List<GaugeWatch> watches = new ArrayList<GaugeWatch>();
+    private final Map<ZooKeeperMetrics.Operation, OperationWatches> operations =
+        new EnumMap<ZooKeeperMetrics.Operation, OperationWatches>(ZooKeeperMetrics.Operation.class);
+    private final GaugeWatch watchEventRate;
+    private final GaugeWatch detectionP50;
+    private final GaugeWatch detectionP99;
+    private final GaugeWatch detectionMax;
+    private LatencyHistogram.Snapshot lastDetection;
+    private long lastWatchEvents;
+    private ScheduledExecutorService scheduler;
+    private static Logger logger = LoggerFactory.getLogger(MetricsPublisher.class);
+
+    MetricsPublisher(final ServiceBeanContext context, final ZooKeeperMetrics metrics, final long interval) {
+        this.context = context;
+        this.metrics = metrics;
+        this.interval = interval;
+        for(ZooKeeperMetrics.Operation operation : ZooKeeperMetrics.Operation.values())
+            operations.put(operation, new OperationWatches(operation));
+        watchEventRate = create("zookeeper.watch.events.rate");
+        detectionP50 = create("zookeeper.detection.latency.p50");
+        detectionP99 = create("zookeeper.detection.latency.p99");
+        detectionMax = create("zookeeper.detection.latency.max");
+    }
+
+    private GaugeWatch create(final String id) {
+        GaugeWatch watch = new GaugeWatch(id);
+        watches.add(watch);
+        return watch;
+    }
+
+    synchronized void start() {
+        for(GaugeWatch watch : watches)
+            context.getWatchRegistry().register(watch);
+        lastWatchEvents = metrics.getWatchEventCount();
+        lastDetection = metrics.getDetectionLatency().snapshot();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ZooKeeper-MetricsPublisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    publish();
+                } catch(Throwable t) {
+                    logger.warn("Publishing ZooKeeper metrics", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if(scheduler!=null)
+            scheduler.shutdownNow();
+        for(GaugeWatch watch : watches)
+            context.getWatchRegistry().deregister(watch);
+    }
+
+    private synchronized void publish() {
+        double seconds = (double)interval/1000;
+        for(OperationWatches operationWatches : operations.values())
+            operationWatches.publish(seconds);
+        long watchEvents = metrics.getWatchEventCount();
+        watchEventRate.addValue((watchEvents-lastWatchEvents)/seconds);
+        lastWatchEvents = watchEvents;
+        LatencyHistogram.Snapshot detection = metrics.getDetectionLatency().snapshot();
+        LatencyHistogram.Snapshot delta = detection.since(lastDetection);
+        lastDetection = detection;
+        if(delta.getCount()>0) {
+            detectionP50.addValue(delta.getPercentile(50));
+            detectionP99.addValue(delta.getPercentile(99));
+            detectionMax.addValue(delta.getMax());
+        }
+    }
+
+    private class OperationWatches {
+        final ZooKeeperMetrics.Operation operation;
+        final GaugeWatch p50;
+        final GaugeWatch p99;
+        final GaugeWatch throughput;
+        final GaugeWatch inFlight;
+        LatencyHistogram.Snapshot last;
+
+        OperationWatches(final ZooKeeperMetrics.Operation operation) {
+            this.operation = operation;
+            String name = operation.name().toLowerCase();
+            p50 = create(String.format("zookeeper.%s.latency.p50", name));
+            p99 = create(String.format("zookeeper.%s.latency.p99", name));
+            throughput = create(String.format("zookeeper.%s.throughput", name));
+            inFlight = create(String.format("zookeeper.%s.inflight", name));
+            last = metrics.getLatency(operation).snapshot();
+        }
+
+        void publish(final double seconds) {
+            LatencyHistogram.Snapshot current = metrics.getLatency(operation).snapshot();
+            LatencyHistogram.Snapshot delta = current.since(last);
+            last = current;
+            throughput.addValue(delta.getCount()/seconds);
+            inFlight.addValue(metrics.getInFlight(operation));
+            if(delta.getCount()>0) {
+                p50.addValue(delta.getPercentile(50));
+                p99.addValue(delta.getPercentile(99));
+            }
+        }
+    }
+}
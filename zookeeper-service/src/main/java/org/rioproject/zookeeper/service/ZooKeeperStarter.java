@@ -16,15 +16,334 @@
 package org.rioproject.zookeeper.service;
 
 import com.sun.jini.start.LifeCycle;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
+import net.jini.config.ConfigurationProvider;
+import org.apache.zookeeper.server.DatadirCleanupManager;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ServerConfig;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Properties;
 
 /**
+ * Runs a ZooKeeper server in-process, either standalone or as a member of a quorum, configured from
+ * the {@value #COMPONENT} component:
+ *
+ * <ul>
+ *     <li>{@code clientPort}: Port clients connect to, defaults to 2181. When the quorum members all run
+ *     on the same host, member {@code n} listens on {@code clientPort+n-1}</li>
+ *     <li>{@code tickTime}: Defaults to 2000 ms</li>
+ *     <li>{@code dataDir}: Snapshot directory, defaults to {@code java.io.tmpdir/zookeeper-<myid>/data}</li>
+ *     <li>{@code dataLogDir}: Transaction log directory, defaults to
+ *     {@code java.io.tmpdir/zookeeper-<myid>/log}. Put this on its own device</li>
+ *     <li>{@code maxClientCnxns}: Maximum connections per client address, defaults to 60</li>
+ *     <li>{@code snapRetainCount}: Snapshots kept by autopurge, defaults to 3</li>
+ *     <li>{@code purgeInterval}: Autopurge interval in hours, 0 (the default) disables autopurge</li>
+ *     <li>{@code preAllocSize}: Transaction log preallocation size in KB, defaults to 65536</li>
+ *     <li>{@code servers}: Quorum members as {@code host:peerPort:electionPort}, member {@code n} is
+ *     element {@code n-1}. If fewer than two are declared the server runs standalone</li>
+ *     <li>{@code myid}: This member's id in the quorum</li>
+ *     <li>{@code initLimit}, {@code syncLimit}: Quorum limits in ticks, default 10 and 5</li>
+ * </ul>
+ *
  * @author Dennis Reedy
  */
 public class ZooKeeperStarter {
-    private final String[] configuration;
+    public static final String COMPONENT = "org.rioproject.zookeeper";
+    private static final Logger logger = LoggerFactory.getLogger(ZooKeeperStarter.class);
+    private final LifeCycle lifeCycle;
+    private final QuorumPeerConfig peerConfig;
+    private final String connectString;
+    private final int clientPort;
+    private DatadirCleanupManager purgeManager;
+    private volatile EmbeddedServer server;
+    private volatile EmbeddedQuorumPeer quorumPeer;
+
+    /**
+     * Create and start a {@code ZooKeeperStarter}, invoked by the service starter.
+     *
+     * @param configuration Configuration arguments.
+     * @param lifeCycle Notified when the server is stopped, may be {@code null}.
+     *
+     * @throws ConfigurationException if the configuration cannot be loaded or is invalid.
+     * @throws IOException if the data directories cannot be created.
+     */
+    public ZooKeeperStarter(final String[] configuration, final LifeCycle lifeCycle) throws ConfigurationException, IOException {
+        this(ConfigurationProvider.getInstance(configuration), 1, lifeCycle);
+        start();
+    }
+
+    /**
+     * Create a {@code ZooKeeperStarter}. The server is not started until {@link #start()} is invoked.
+     *
+     * @param config The configuration to use, must not be {@code null}.
+     * @param id The id to use if {@code myid} is not configured, for example the service's instance id.
+     *
+     * @throws ConfigurationException if the configuration is invalid.
+     * @throws IOException if the data directories cannot be created.
+     */
+    public ZooKeeperStarter(final Configuration config, final long id) throws ConfigurationException, IOException {
+        this(config, id, null);
+    }
+
+    private ZooKeeperStarter(final Configuration config, final long id, final LifeCycle lifeCycle)
+        throws ConfigurationException, IOException {
+        if(config==null)
+            throw new IllegalArgumentException("config must not be null");
+        this.lifeCycle = lifeCycle;
+        long myid = config.getEntry(COMPONENT, "myid", long.class, id);
+        int clientPort = config.getEntry(COMPONENT, "clientPort", int.class, 2181);
+        String[] servers = config.getEntry(COMPONENT, "servers", String[].class, new String[0]);
+        File base = new File(System.getProperty("java.io.tmpdir"), "zookeeper-"+myid);
+        File dataDir = new File(config.getEntry(COMPONENT, "dataDir", String.class, new File(base, "data").getPath()));
+        File dataLogDir = new File(config.getEntry(COMPONENT, "dataLogDir", String.class, new File(base, "log").getPath()));
+        mkdirs(dataDir);
+        mkdirs(dataLogDir);
+        FileTxnLog.setPreallocSize(config.getEntry(COMPONENT, "preAllocSize", long.class, 65536L)*1024);
+
+        boolean colocated = colocated(servers);
+        Properties properties = new Properties();
+        properties.setProperty("tickTime", Integer.toString(config.getEntry(COMPONENT, "tickTime", int.class, 2000)));
+        properties.setProperty("dataDir", dataDir.getAbsolutePath());
+        properties.setProperty("dataLogDir", dataLogDir.getAbsolutePath());
+        properties.setProperty("maxClientCnxns", Integer.toString(config.getEntry(COMPONENT, "maxClientCnxns", int.class, 60)));
+        properties.setProperty("autopurge.snapRetainCount",
+                               Integer.toString(config.getEntry(COMPONENT, "snapRetainCount", int.class, 3)));
+        properties.setProperty("autopurge.purgeInterval",
+                               Integer.toString(config.getEntry(COMPONENT, "purgeInterval", int.class, 0)));
+        if(servers.length>1) {
+            if(myid<1 || myid>servers.length)
+                throw new ConfigurationException("myid "+myid+" must be between 1 and "+servers.length);
+            this.clientPort = colocated?clientPort+(int)myid-1:clientPort;
+            properties.setProperty("clientPort", Integer.toString(this.clientPort));
+            properties.setProperty("initLimit", Integer.toString(config.getEntry(COMPONENT, "initLimit", int.class, 10)));
+            properties.setProperty("syncLimit", Integer.toString(config.getEntry(COMPONENT, "syncLimit", int.class, 5)));
+            StringBuilder hosts = new StringBuilder();
+            for(int i=0; i<servers.length; i++) {
+                properties.setProperty("server."+(i+1), servers[i]);
+                if(hosts.length()>0)
+                    hosts.append(",");
+                hosts.append(host(servers[i])).append(":").append(colocated?clientPort+i:clientPort);
+            }
+            connectString = hosts.toString();
+            /* The quorum configuration reads this member's id from the data directory */
+            Writer writer = new FileWriter(new File(dataDir, "myid"));
+            try {
+                writer.write(Long.toString(myid));
+            } finally {
+                writer.close();
+            }
+        } else {
+            this.clientPort = clientPort;
+            properties.setProperty("clientPort", Integer.toString(clientPort));
+            connectString = "127.0.0.1:"+clientPort;
+        }
+        peerConfig = new QuorumPeerConfig();
+        try {
+            peerConfig.parseProperties(properties);
+        } catch (QuorumPeerConfig.ConfigException e) {
+            throw new ConfigurationException("Invalid ZooKeeper configuration", e);
+        }
+    }
+
+    /**
+     * Start the server. The server runs on a daemon thread, this method returns once it has been started.
+     */
+    public synchronized void start() {
+        if(server!=null || quorumPeer!=null)
+            return;
+        purgeManager = new DatadirCleanupManager(peerConfig.getDataDir(),
+                                                 peerConfig.getDataLogDir(),
+                                                 peerConfig.getSnapRetainCount(),
+                                                 peerConfig.getPurgeInterval());
+        purgeManager.start();
+        Runnable runner;
+        if(peerConfig.isDistributed()) {
+            final EmbeddedQuorumPeer peer = new EmbeddedQuorumPeer();
+            quorumPeer = peer;
+            runner = new Runnable() {
+                public void run() {
+                    try {
+                        peer.runFromConfig(peerConfig);
+                    } catch (IOException e) {
+                        logger.error("ZooKeeper quorum peer failed", e);
+                    }
+                }
+            };
+        } else {
+            final EmbeddedServer standalone = new EmbeddedServer();
+            server = standalone;
+            final ServerConfig serverConfig = new ServerConfig();
+            serverConfig.readFrom(peerConfig);
+            runner = new Runnable() {
+                public void run() {
+                    try {
+                        standalone.runFromConfig(serverConfig);
+                    } catch (IOException e) {
+                        logger.error("ZooKeeper server failed", e);
+                    }
+                }
+            };
+        }
+        Thread thread = new Thread(runner, "ZooKeeperServer");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Started ZooKeeper {}, clients connect to {}",
+                    peerConfig.isDistributed()?"quorum peer "+peerConfig.getServerId():"server", connectString);
+    }
+
+    /**
+     * Stop the server.
+     */
+    public synchronized void stop() {
+        if(purgeManager!=null)
+            purgeManager.shutdown();
+        if(quorumPeer!=null)
+            quorumPeer.stop();
+        if(server!=null)
+            server.stop();
+        quorumPeer = null;
+        server = null;
+        if(lifeCycle!=null)
+            lifeCycle.unregister(this);
+    }
+
+    /**
+     * Get the connect string for the server, or for all quorum members.
+     */
+    public String getConnectString() {
+        return connectString;
+    }
 
-    public ZooKeeperStarter(final String[] configuration, final LifeCycle lifeCycle) {
-        this.configuration = configuration;
+    /**
+     * Get the port this server accepts client connections on.
+     */
+    public int getClientPort() {
+        return clientPort;
     }
 
+    public boolean isQuorum() {
+        return peerConfig.isDistributed();
+    }
+
+    private static boolean colocated(final String[] servers) {
+        for(String server : servers) {
+            if(!host(server).equals(host(servers[0])))
+                return false;
+        }
+        return true;
+    }
+
+    private static String host(final String server) {
+        int ndx = server.indexOf(':');
+        return ndx<0?server:server.substring(0, ndx);
+    }
+
+    private static void mkdirs(final File dir) throws IOException {
+        if(!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create "+dir.getPath());
+    }
+
+    /**
+     * Runs a standalone server. The server is started and stopped under the same lock, so a stop
+     * that arrives before the server has started prevents it from starting.
+     */
+    static class EmbeddedServer {
+        private ServerCnxnFactory factory;
+        private boolean stopped;
+
+        void runFromConfig(final ServerConfig config) throws IOException {
+            FileTxnSnapLog txnLog = new FileTxnSnapLog(new File(config.getDataLogDir()), new File(config.getDataDir()));
+            try {
+                ZooKeeperServer zkServer = new ZooKeeperServer();
+                zkServer.setTxnLogFactory(txnLog);
+                zkServer.setTickTime(config.getTickTime());
+                zkServer.setMinSessionTimeout(config.getMinSessionTimeout());
+                zkServer.setMaxSessionTimeout(config.getMaxSessionTimeout());
+                ServerCnxnFactory created;
+                synchronized(this) {
+                    if(stopped)
+                        return;
+                    created = ServerCnxnFactory.createFactory();
+                    created.configure(config.getClientPortAddress(), config.getMaxClientCnxns());
+                    created.startup(zkServer);
+                    factory = created;
+                }
+                created.join();
+                if(zkServer.isRunning())
+                    zkServer.shutdown();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("ZooKeeper server interrupted", e);
+            } finally {
+                txnLog.close();
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if(factory!=null)
+                factory.shutdown();
+        }
+    }
+
+    /**
+     * Runs a quorum peer. The peer is started and stopped under the same lock, so a stop that
+     * arrives before the peer has started prevents it from starting.
+     */
+    static class EmbeddedQuorumPeer {
+        private QuorumPeer quorumPeer;
+        private boolean stopped;
+
+        void runFromConfig(final QuorumPeerConfig config) throws IOException {
+            QuorumPeer peer;
+            synchronized(this) {
+                if(stopped)
+                    return;
+                ServerCnxnFactory cnxnFactory = ServerCnxnFactory.createFactory();
+                cnxnFactory.configure(config.getClientPortAddress(), config.getMaxClientCnxns());
+                peer = new QuorumPeer();
+                peer.setClientPortAddress(config.getClientPortAddress());
+                peer.setTxnFactory(new FileTxnSnapLog(new File(config.getDataLogDir()), new File(config.getDataDir())));
+                peer.setQuorumPeers(config.getServers());
+                peer.setElectionType(config.getElectionAlg());
+                peer.setMyid(config.getServerId());
+                peer.setTickTime(config.getTickTime());
+                peer.setMinSessionTimeout(config.getMinSessionTimeout());
+                peer.setMaxSessionTimeout(config.getMaxSessionTimeout());
+                peer.setInitLimit(config.getInitLimit());
+                peer.setSyncLimit(config.getSyncLimit());
+                peer.setQuorumVerifier(config.getQuorumVerifier());
+                peer.setCnxnFactory(cnxnFactory);
+                peer.setZKDatabase(new ZKDatabase(peer.getTxnFactory()));
+                peer.setLearnerType(config.getPeerType());
+                peer.start();
+                quorumPeer = peer;
+            }
+            try {
+                peer.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("ZooKeeper quorum peer interrupted", e);
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if(quorumPeer!=null)
+                quorumPeer.shutdown();
+        }
+    }
 }
@@ -1,17 +1,37 @@
 package org.rioproject.zookeeper.service;
 
-import org.apache.zookeeper.KeeperException;
+import net.jini.config.Configuration;
+import net.jini.config.ConfigurationException;
 import org.apache.zookeeper.ZooKeeper;
 import org.rioproject.annotation.SetServiceBeanContext;
 import org.rioproject.servicebean.ServiceBeanContext;
+import org.rioproject.zookeeper.api.Membership;
+import org.rioproject.zookeeper.api.MembershipChanges;
+import org.rioproject.zookeeper.api.MembershipPage;
 import org.rioproject.zookeeper.api.Zookeeper;
+import org.rioproject.zookeeper.client.ConnectionState;
+import org.rioproject.zookeeper.client.ConnectionStateListener;
 import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.LeaderElection;
+import org.rioproject.zookeeper.client.LeadershipListener;
+import org.rioproject.zookeeper.client.LoadPublisher;
+import org.rioproject.zookeeper.client.MemberInfo;
+import org.rioproject.zookeeper.client.MembershipSnapshot;
+import org.rioproject.zookeeper.client.MembershipStore;
 import org.rioproject.zookeeper.client.ZooKeeperClient;
+import org.rioproject.zookeeper.client.ZooKeeperMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.File;
 import java.io.IOException;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Zookeeper service implementation
@@ -21,7 +41,24 @@ import java.util.concurrent.ExecutionException;
 public class ZookeeperImpl implements Zookeeper {
     private ServiceBeanContext context;
     private final ZooKeeperClient zooKeeperClient = new ZooKeeperClient();
-    private GroupManagement groupManagement;
+    private volatile GroupManagement groupManagement;
+    private MetricsPublisher metricsPublisher;
+    private ZooKeeperStarter zooKeeperStarter;
+    private volatile MembershipCache membershipCache;
+    private volatile LoadPublisher loadPublisher;
+    private volatile LeaderElection leaderElection;
+    private volatile MembershipStore membershipStore;
+    private Thread startup;
+    private final SessionListener sessionListener = new SessionListener();
+    private volatile boolean closed;
+    private final ExecutorService recovery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ZookeeperImpl-recovery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static Logger logger = LoggerFactory.getLogger(ZookeeperImpl.class);
 
     @SetServiceBeanContext
     public void set(ServiceBeanContext context) {
@@ -29,12 +66,302 @@ public class ZookeeperImpl implements Zookeeper {
     }
 
     @PostConstruct
-    public void after() throws IOException, KeeperException, InterruptedException, ExecutionException {
-        String zooInfo = "127.0.0.1:3010";
-        ZooKeeper zooKeeper= zooKeeperClient.connect(zooInfo, 3000).get();
-        groupManagement = new GroupManagement(zooKeeper);
+    public void after() throws IOException, ConfigurationException {
+        metricsPublisher = new MetricsPublisher(context, ZooKeeperMetrics.getInstance(), MetricsPublisher.DEFAULT_INTERVAL);
+        metricsPublisher.start();
+        final Configuration config = context.getConfiguration();
+        final String zooInfo;
+        if(config.getEntry(ZooKeeperStarter.COMPONENT, "embedded", boolean.class, false)) {
+            zooKeeperStarter = new ZooKeeperStarter(config, context.getServiceBeanConfig().getInstanceID());
+            zooKeeperStarter.start();
+            zooInfo = zooKeeperStarter.getConnectString();
+        } else {
+            zooInfo = config.getEntry(ZooKeeperStarter.COMPONENT, "connectString", String.class, "127.0.0.1:3010");
+        }
+        /* The last known membership is served, flagged as stale, until the ensemble has been reached */
+        String storeFile = config.getEntry(ZooKeeperStarter.COMPONENT, "membershipStore", String.class, null);
+        if(storeFile!=null) {
+            MembershipStore store = new MembershipStore(new File(storeFile));
+            try {
+                store.open();
+                membershipStore = store;
+            } catch(IOException e) {
+                logger.warn("Unable to open membership store {}, starting without it", storeFile, e);
+            }
+        }
+        /* Do not hold up the service bean's start on a slow or unreachable ensemble */
+        startup = new Thread("ZookeeperImpl-startup") {
+            @Override
+            public void run() {
+                try {
+                    start(config, zooInfo);
+                } catch(InterruptedException e) {
+                    logger.info("Startup interrupted");
+                } catch(Exception e) {
+                    logger.error("Unable to start", e);
+                }
+            }
+        };
+        startup.setDaemon(true);
+        startup.start();
+    }
+
+    private void start(final Configuration config, final String zooInfo) throws ConfigurationException,
+                                                                                ExecutionException,
+                                                                                InterruptedException {
+        int sessionTimeout = config.getEntry(ZooKeeperStarter.COMPONENT, "sessionTimeout", int.class, 3000);
+        /* Keep answering membership queries, flagged as stale, through a loss of quorum */
+        zooKeeperClient.setCanBeReadOnly(config.getEntry(ZooKeeperStarter.COMPONENT, "canBeReadOnly", boolean.class, false));
+        zooKeeperClient.setPreferredHosts(config.getEntry(ZooKeeperStarter.COMPONENT, "preferredHosts", String.class, null));
+        zooKeeperClient.addConnectionStateListener(sessionListener);
+        ZooKeeper zooKeeper= zooKeeperClient.connect(zooInfo, sessionTimeout).get();
+        bind(config, zooKeeper, sessionTimeout);
+    }
+
+    /*
+     * Create the group, join it and enter the election using a session. Called on start and again once
+     * a new session has been established after the previous one expired, everything bound to the
+     * expired session is discarded.
+     */
+    private synchronized void bind(final Configuration config,
+                                   final ZooKeeper zooKeeper,
+                                   final int sessionTimeout) throws ConfigurationException,
+                                                                    ExecutionException,
+                                                                    InterruptedException {
+        if(closed)
+            return;
+        withdraw();
+        MembershipCache previous = membershipCache;
+        GroupManagement groupManagement = new GroupManagement(zooKeeper);
+        /* Merge bursts of membership changes, such as a Cybernode taking its members with it */
+        long coalesceWindow = config.getEntry(ZooKeeperStarter.COMPONENT, "coalesceWindow", long.class, 0L);
+        groupManagement.setCoalescing(coalesceWindow,
+                                      config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                      "maxCoalesceDelay",
+                                                      long.class,
+                                                      coalesceWindow*5));
+        groupManagement.setStore(membershipStore);
+        this.groupManagement = groupManagement;
+        membershipCache = new MembershipCache(groupManagement,
+                                              config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                              "historySize",
+                                                              int.class,
+                                                              MembershipCache.DEFAULT_HISTORY),
+                                              config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                              "queryTimeout",
+                                                              long.class,
+                                                              (long)sessionTimeout));
+        /* Close the previous cache only once queries are served by this one */
+        if(previous!=null)
+            previous.close();
         groupManagement.create(context.getServiceElement().getOperationalStringName());
-        groupManagement.join(context.getServiceElement().getOperationalStringName(), getNodeName());
+        /* Wait for the join to be committed, the create fails if another instance created the group */
+        MemberInfo memberInfo = createMemberInfo(config);
+        String path = groupManagement.join(context.getServiceElement().getOperationalStringName(),
+                                           getNodeName(),
+                                           memberInfo).get();
+        LoadPublisher publisher = new LoadPublisher(zooKeeper, path, memberInfo);
+        publisher.setMinInterval(config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                 "loadPublishInterval",
+                                                 long.class,
+                                                 LoadPublisher.DEFAULT_MIN_INTERVAL));
+        publisher.setSamplePeriod(config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                  "loadSamplePeriod",
+                                                  long.class,
+                                                  MetricsPublisher.DEFAULT_INTERVAL));
+        /* Heartbeats let watchers suspect this instance before its session times out */
+        publisher.setHeartbeatInterval(config.getEntry(ZooKeeperStarter.COMPONENT,
+                                                       "heartbeatInterval",
+                                                       long.class,
+                                                       0L));
+        loadPublisher = publisher;
+        /* Only a member of the group may be elected */
+        if(config.getEntry(ZooKeeperStarter.COMPONENT, "leaderElection", boolean.class, true)) {
+            LeaderElection election = new LeaderElection(zooKeeperClient,
+                                                         context.getServiceElement().getOperationalStringName()+"-election",
+                                                         getNodeName());
+            election.addListener(new LeadershipListener() {
+                public void leadershipAcquired(LeaderElection election) {
+                    logger.info("{} is now the coordinator", election.getCandidateId());
+                }
+
+                public void leadershipLost(LeaderElection election) {
+                    logger.info("{} is no longer the coordinator", election.getCandidateId());
+                }
+            });
+            leaderElection = election;
+            election.start();
+        }
+    }
+
+    /*
+     * Leave the election and stop publishing load, neither is valid without a member node. Not
+     * synchronized, it is called from the ZooKeeper event thread while bind may be waiting on it.
+     */
+    private void withdraw() {
+        LeaderElection election = leaderElection;
+        leaderElection = null;
+        if(election!=null)
+            election.close();
+        LoadPublisher publisher = loadPublisher;
+        loadPublisher = null;
+        if(publisher!=null)
+            publisher.close();
+    }
+
+    /**
+     * Re-joins once a new session has been established after the previous one expired.
+     */
+    class SessionListener implements ConnectionStateListener {
+        private boolean lost;
+
+        public void stateChanged(final ZooKeeperClient client, final ConnectionState state) {
+            switch(state) {
+                case LOST:
+                    synchronized(this) {
+                        lost = true;
+                    }
+                    withdraw();
+                    break;
+                case RECONNECTED:
+                    synchronized(this) {
+                        if(!lost)
+                            return;
+                        lost = false;
+                    }
+                    /* Joining blocks, it must not be done on the ZooKeeper event thread */
+                    recovery.execute(new Runnable() {
+                        public void run() {
+                            recover();
+                        }
+                    });
+                    break;
+            }
+        }
+    }
+
+    private void recover() {
+        ZooKeeper zooKeeper = zooKeeperClient.getZooKeeper();
+        if(zooKeeper==null || closed)
+            return;
+        Configuration config = context.getConfiguration();
+        try {
+            bind(config,
+                 zooKeeper,
+                 config.getEntry(ZooKeeperStarter.COMPONENT, "sessionTimeout", int.class, 3000));
+            logger.info("Recovered from session expiration, rejoined as {}", getNodeName());
+        } catch(InterruptedException e) {
+            logger.info("Recovery interrupted");
+        } catch(Exception e) {
+            logger.error("Unable to recover from session expiration", e);
+        }
+    }
+
+    public boolean isLeader() {
+        LeaderElection election = leaderElection;
+        return election!=null && election.isLeader();
+    }
+
+    public Membership getMembership(final String group) throws IOException {
+        requestStarted();
+        try {
+            MembershipCache cache = membershipCache;
+            if(cache==null)
+                return getStoredMembership(group);
+            return cache.getMembership(group);
+        } finally {
+            requestCompleted();
+        }
+    }
+
+    public Map<String, Membership> getMemberships(final Collection<String> groups) throws IOException {
+        requestStarted();
+        try {
+            MembershipCache cache = membershipCache;
+            if(cache==null) {
+                if(groups==null)
+                    throw new IllegalArgumentException("groups must not be null");
+                Map<String, Membership> memberships = new LinkedHashMap<String, Membership>();
+                for(String group : groups)
+                    memberships.put(group, getStoredMembership(group));
+                return memberships;
+            }
+            return cache.getMemberships(groups);
+        } finally {
+            requestCompleted();
+        }
+    }
+
+    public MembershipPage getMembershipPage(final String group, final int offset, final int limit) throws IOException {
+        requestStarted();
+        try {
+            MembershipCache cache = membershipCache;
+            if(cache==null)
+                return MembershipCache.page(getStoredMembership(group), offset, limit);
+            return cache.getMembershipPage(group, offset, limit);
+        } finally {
+            requestCompleted();
+        }
+    }
+
+    public MembershipChanges getMembershipChanges(final String group, final long version) throws IOException {
+        requestStarted();
+        try {
+            return getMembershipCache().getMembershipChanges(group, version);
+        } finally {
+            requestCompleted();
+        }
+    }
+
+    private void requestStarted() {
+        LoadPublisher publisher = loadPublisher;
+        if(publisher!=null)
+            publisher.requestStarted();
+    }
+
+    private void requestCompleted() {
+        LoadPublisher publisher = loadPublisher;
+        if(publisher!=null)
+            publisher.requestCompleted();
+    }
+
+    /*
+     * Serve the last known membership of a group until connected
+     */
+    private Membership getStoredMembership(final String group) throws IOException {
+        if(group==null)
+            throw new IllegalArgumentException("group must not be null");
+        MembershipStore store = membershipStore;
+        MembershipSnapshot snapshot = store==null?null:store.getSnapshot(String.format("/%s", group));
+        if(snapshot==null)
+            throw new IOException("Not connected to ZooKeeper");
+        List<String> members = new ArrayList<String>(snapshot.getMembers());
+        Collections.sort(members);
+        return new Membership(group, snapshot.getZxid(), members, true);
+    }
+
+    private MembershipCache getMembershipCache() throws IOException {
+        MembershipCache cache = membershipCache;
+        if(cache==null)
+            throw new IOException("Not connected to ZooKeeper");
+        return cache;
+    }
+
+    /*
+     * Joining with how to reach this instance saves clients a separate lookup of the ZooKeeperEntry
+     */
+    private MemberInfo createMemberInfo(final Configuration config) throws ConfigurationException {
+        int port = config.getEntry(ZooKeeperStarter.COMPONENT,
+                                   "port",
+                                   int.class,
+                                   zooKeeperStarter==null?0:zooKeeperStarter.getClientPort());
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("name", context.getServiceElement().getName());
+        attributes.put("opstring", context.getServiceElement().getOperationalStringName());
+        return new MemberInfo(context.getComputeResourceManager().getComputeResource().getAddress().getHostAddress(),
+                              port,
+                              context.getServiceBeanConfig().getInstanceID(),
+                              attributes);
     }
 
     private String getNodeName() {
@@ -45,10 +372,24 @@ public class ZookeeperImpl implements Zookeeper {
 
     @PreDestroy
     public void shutdown() {
-        if(groupManagement==null)
-            return;
-        groupManagement.delete(context.getServiceElement().getOperationalStringName(), getNodeName());
-        zooKeeperClient.close();
+        closed = true;
+        if(startup!=null)
+            startup.interrupt();
+        recovery.shutdownNow();
+        zooKeeperClient.removeConnectionStateListener(sessionListener);
+        if(metricsPublisher!=null)
+            metricsPublisher.stop();
+        withdraw();
+        if(membershipCache!=null)
+            membershipCache.close();
+        if(groupManagement!=null) {
+            groupManagement.delete(context.getServiceElement().getOperationalStringName(), getNodeName());
+            zooKeeperClient.close();
+        }
+        if(zooKeeperStarter!=null)
+            zooKeeperStarter.stop();
+        if(membershipStore!=null)
+            membershipStore.close();
     }
 
 }
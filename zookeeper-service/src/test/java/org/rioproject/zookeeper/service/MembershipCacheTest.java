@@ -0,0 +1,131 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rioproject.zookeeper.ZooKeeperStarter;
+import org.rioproject.zookeeper.api.Membership;
+import org.rioproject.zookeeper.api.MembershipChanges;
+import org.rioproject.zookeeper.api.MembershipPage;
+import org.rioproject.zookeeper.client.GroupManagement;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests for {@code MembershipCache}
+ *
+ * @author Dennis Reedy
+ */
+public class MembershipCacheTest {
+    private final ZooKeeperStarter zooKeeperStarter = new ZooKeeperStarter();
+    private final ZooKeeperClient client = new ZooKeeperClient();
+    private GroupManagement groupManagement;
+    private MembershipCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        zooKeeperStarter.start();
+        groupManagement = new GroupManagement(client.connect("127.0.0.1:"+zooKeeperStarter.getPort(), 3000).get());
+        groupManagement.create("Foo").get();
+        groupManagement.joinAll("Foo", Arrays.asList("c", "a", "b"));
+        cache = new MembershipCache(groupManagement, 2, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+        client.close();
+        zooKeeperStarter.stop(true);
+    }
+
+    @Test
+    public void testMemberships() throws Exception {
+        Membership membership = cache.getMembership("Foo");
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), membership.getMembers());
+        Map<String, Membership> memberships = cache.getMemberships(Arrays.asList("Foo", "Bar"));
+        Assert.assertEquals(2, memberships.size());
+        Assert.assertEquals(3, memberships.get("Foo").getMembers().size());
+        Assert.assertEquals(-1, memberships.get("Bar").getVersion());
+        Assert.assertTrue(memberships.get("Bar").getMembers().isEmpty());
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        MembershipPage page = cache.getMembershipPage("Foo", 0, 2);
+        Assert.assertEquals(Arrays.asList("a", "b"), page.getMembers());
+        Assert.assertTrue(page.hasMore());
+        page = cache.getMembershipPage("Foo", 2, 2);
+        Assert.assertEquals(Arrays.asList("c"), page.getMembers());
+        Assert.assertFalse(page.hasMore());
+        Assert.assertEquals(3, page.getTotal());
+        Assert.assertTrue(cache.getMembershipPage("Foo", 10, 2).getMembers().isEmpty());
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        long version = cache.getMembership("Foo").getVersion();
+        Assert.assertFalse(cache.getMembershipChanges("Foo", version).hasChanges());
+
+        groupManagement.join("Foo", "d").get();
+        waitForChange(version);
+        groupManagement.delete("Foo", "a").get();
+        long latest = waitForChange(cache.getMembership("Foo").getVersion());
+
+        MembershipChanges changes = cache.getMembershipChanges("Foo", version);
+        Assert.assertFalse(changes.isReset());
+        Assert.assertEquals(latest, changes.getVersion());
+        Assert.assertEquals(Arrays.asList("d"), changes.getAdded());
+        Assert.assertEquals(Arrays.asList("a"), changes.getRemoved());
+
+        /* Only 2 changes are retained */
+        groupManagement.join("Foo", "e").get();
+        waitForChange(latest);
+        changes = cache.getMembershipChanges("Foo", version);
+        Assert.assertTrue(changes.isReset());
+        Assert.assertEquals(Arrays.asList("b", "c", "d", "e"), changes.getAdded());
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        Assert.assertEquals(3, cache.getMembership("Foo").getMembers().size());
+        cache.close();
+        for(String group : Arrays.asList("Foo", "Bar")) {
+            try {
+                cache.getMembership(group);
+                Assert.fail("Expected IOException querying "+group+" after close");
+            } catch(IOException e) {
+                /* expected */
+            }
+        }
+    }
+
+    private long waitForChange(final long version) throws Exception {
+        for(int i=0; i<50; i++) {
+            long current = cache.getMembership("Foo").getVersion();
+            if(current!=version)
+                return current;
+            Thread.sleep(100);
+        }
+        Assert.fail("Membership did not change from version "+version);
+        return version;
+    }
+}
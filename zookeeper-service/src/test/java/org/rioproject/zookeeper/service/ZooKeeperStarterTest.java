@@ -0,0 +1,107 @@
+/*
+ * Copyright to the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rioproject.zookeeper.service;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rioproject.zookeeper.client.RetryPolicy;
+import org.rioproject.zookeeper.client.ZooKeeperClient;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the embedded {@code ZooKeeperStarter}
+ *
+ * @author Dennis Reedy
+ */
+public class ZooKeeperStarterTest {
+    private final List<ZooKeeperStarter> starters = new ArrayList<ZooKeeperStarter>();
+    private final List<ZooKeeperClient> clients = new ArrayList<ZooKeeperClient>();
+    private final File base = new File(System.getProperty("java.io.tmpdir"), "zookeeper-starter-test");
+
+    @After
+    public void stop() {
+        for(ZooKeeperClient client : clients)
+            client.close();
+        for(ZooKeeperStarter starter : starters)
+            starter.stop();
+        remove(base);
+    }
+
+    @Test
+    public void testStandalone() throws Exception {
+        ZooKeeperStarter starter = new ZooKeeperStarter(new String[]{"-",
+                                                                     "org.rioproject.zookeeper.clientPort=3011",
+                                                                     dir("dataDir", "standalone/data"),
+                                                                     dir("dataLogDir", "standalone/log")},
+                                                        null);
+        starters.add(starter);
+        Assert.assertFalse(starter.isQuorum());
+        Assert.assertEquals("127.0.0.1:3011", starter.getConnectString());
+        Assert.assertTrue(new File(base, "standalone/log").exists());
+        createNode(starter.getConnectString());
+        Assert.assertTrue(new File(base, "standalone/log/version-2").exists());
+    }
+
+    @Test
+    public void testQuorum() throws Exception {
+        String servers = "org.rioproject.zookeeper.servers=new String[]{"+
+                         "\"127.0.0.1:3020:3030\", \"127.0.0.1:3021:3031\", \"127.0.0.1:3022:3032\"}";
+        for(int id=1; id<=3; id++) {
+            ZooKeeperStarter starter = new ZooKeeperStarter(new String[]{"-",
+                                                                         "org.rioproject.zookeeper.clientPort=3012",
+                                                                         "org.rioproject.zookeeper.myid="+id,
+                                                                         servers,
+                                                                         dir("dataDir", id+"/data"),
+                                                                         dir("dataLogDir", id+"/log")},
+                                                            null);
+            starters.add(starter);
+            Assert.assertTrue(starter.isQuorum());
+            Assert.assertEquals("127.0.0.1:3012,127.0.0.1:3013,127.0.0.1:3014", starter.getConnectString());
+        }
+        createNode(starters.get(0).getConnectString());
+    }
+
+    private void createNode(final String connectString) throws Exception {
+        ZooKeeperClient client = new ZooKeeperClient();
+        client.setRetryPolicy(new RetryPolicy(500, 2000, 20));
+        clients.add(client);
+        ZooKeeper zooKeeper = client.connect(connectString, 5000).get(60, TimeUnit.SECONDS);
+        zooKeeper.create("/starter", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        Assert.assertNotNull(zooKeeper.exists("/starter", false));
+    }
+
+    private String dir(final String entry, final String path) {
+        return String.format("org.rioproject.zookeeper.%s=\"%s\"",
+                             entry, new File(base, path).getAbsolutePath().replace("\\", "/"));
+    }
+
+    private static void remove(final File file) {
+        File[] files = file.listFiles();
+        if(files!=null) {
+            for(File f : files)
+                remove(f);
+        }
+        file.delete();
+    }
+}